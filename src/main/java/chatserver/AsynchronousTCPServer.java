@@ -1,21 +1,37 @@
 package chatserver;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A {@link AsynchronousTCPServer} manages a {@link ServerSocket} and Executes a new thread for each client in
  * case a new TCP Connection is opened.
+ * <p>
+ * If the session executor is bounded, connections that find neither a free session nor a free place in the
+ * accept queue are refused with a {@link Chatserver.Marker#MARKER_REFUSED} line.
  */
 public class AsynchronousTCPServer extends Thread {
 
     private static final Logger LOGGER = Logger.getLogger("AsynchronousTCPServer");
 
+    static final String MSG_REFUSED_BUSY = "Server is busy, please try again later.";
+
     static {
         LOGGER.setLevel(Level.WARNING);
     }
@@ -24,13 +40,81 @@ public class AsynchronousTCPServer extends Thread {
     private ServerSocket socket;
     private ClientHandlerFactory factory;
     private final ExecutorService pool;
+    private final AtomicLong rejected = new AtomicLong();
 
     public AsynchronousTCPServer(int port, ClientHandlerFactory clientHandlerFactory) {
+        this(port, Executors.newCachedThreadPool(), clientHandlerFactory);
+    }
+
+    public AsynchronousTCPServer(int port, ExecutorService pool, ClientHandlerFactory clientHandlerFactory) {
         this.port = port;
-        this.pool = Executors.newCachedThreadPool();
+        this.pool = pool;
         this.factory = clientHandlerFactory;
     }
 
+    /**
+     * Creates the executor the sessions are run on.
+     *
+     * @param mode        "virtual" for one virtual thread per session, anything else for platform threads
+     * @param maxSessions the maximum number of sessions running at the same time, 0 for no limit
+     * @param acceptQueue the number of accepted connections that may wait for a free session slot
+     * @return the executor
+     */
+    public static ExecutorService createSessionExecutor(String mode, int maxSessions, int acceptQueue) {
+        ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        if (mode.equals("virtual")) {
+            // looked up reflectively, so the server still runs on JVMs without virtual threads
+            try {
+                if (maxSessions <= 0) {
+                    Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) factoryMethod.invoke(null);
+                }
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                threadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                LOGGER.warning("Virtual threads are not supported by this JVM, using platform threads instead");
+            }
+        }
+
+        if (maxSessions <= 0) {
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+
+        BlockingQueue<Runnable> queue = acceptQueue > 0
+                ? new ArrayBlockingQueue<Runnable>(acceptQueue)
+                : new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxSessions, maxSessions, 60L, TimeUnit.SECONDS, queue, threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return the number of sessions currently being served (-1 if the executor does not tell)
+     */
+    public int getActiveSessions() {
+        if (this.pool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) this.pool).getActiveCount();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of accepted connections waiting for a free session slot
+     */
+    public int getQueueDepth() {
+        if (this.pool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) this.pool).getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of connections refused since the server started
+     */
+    public long getRejectedSessions() {
+        return this.rejected.get();
+    }
+
     @Override
     public synchronized void start() {
         try {
@@ -52,7 +136,11 @@ public class AsynchronousTCPServer extends Thread {
 
                 LOGGER.info("Client " + client.getInetAddress().getHostAddress() + " connected!");
 
-                pool.execute(this.factory.createClientHandler(client));
+                try {
+                    pool.execute(this.factory.createClientHandler(client));
+                } catch (RejectedExecutionException e) {
+                    this.refuse(client);
+                }
             } catch (IOException e) {
                 if (this.socket.isClosed()) {
                     // Thats why it dies...
@@ -70,6 +158,30 @@ public class AsynchronousTCPServer extends Thread {
         this.interrupt();
     }
 
+    /**
+     * Tells a client that there is no free session slot and closes the connection.
+     *
+     * @param client the connection to refuse
+     */
+    private void refuse(Socket client) {
+        this.rejected.incrementAndGet();
+        LOGGER.warning("Session limit reached, refusing " + client.getInetAddress().getHostAddress());
+
+        try {
+            OutputStream out = client.getOutputStream();
+            out.write((Chatserver.Marker.MARKER_REFUSED + " " + MSG_REFUSED_BUSY + "\n").getBytes());
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to tell client about refusal: " + e.getMessage());
+        }
+
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close refused socket");
+        }
+    }
+
     @Override
     public void interrupt() {
         try {
@@ -0,0 +1,163 @@
+package chatserver;
+
+import util.CommunicationChannel;
+import util.crypto.BrokenMessageException;
+import util.crypto.GroupKey;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers public messages. Every logged in user owns an {@link OutboundMessageQueue}, broadcasting a message only
+ * puts it into the queues of the recipients.
+ * <p>
+ * For the users that negotiated group broadcasts a message is sealed once with the current {@link GroupKey} and the
+ * same record is queued for all of them, the others get the line encrypted by their own session. A new group key
+ * is picked whenever a user logs in or out.
+ */
+public class BroadcastEngine {
+
+    private static final Logger LOGGER = Logger.getLogger("BroadcastEngine");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final UserRegistry userDB;
+    private final int queueCapacity;
+    private final ExecutorService writers;
+
+    private final SecureRandom random = new SecureRandom();
+    private int epoch = 0;
+    private volatile GroupKey groupKey;
+
+    private final AtomicLong sealed = new AtomicLong();
+    private final AtomicLong groupDeliveries = new AtomicLong();
+    private final AtomicLong sessionDeliveries = new AtomicLong();
+
+    /**
+     * @param userDB        the user directory of the server
+     * @param queueCapacity the number of lines that may wait for delivery per user
+     * @param writers       the number of threads writing to the recipients
+     */
+    public BroadcastEngine(UserRegistry userDB, int queueCapacity, int writers) {
+        this.userDB = userDB;
+        this.queueCapacity = queueCapacity;
+        // a thread is only used while a queue has something to write, queues wait for a free writer otherwise
+        this.writers = Executors.newFixedThreadPool(writers);
+        this.rotate();
+    }
+
+    /**
+     * Creates the outbound queue of a user that just logged in.
+     *
+     * @param user    the user
+     * @param channel the channel to deliver to
+     */
+    public void open(UserData user, CommunicationChannel channel) {
+        OutboundMessageQueue old = user.getOutbound();
+        if (old != null) {
+            old.close();
+        }
+        user.setOutbound(new OutboundMessageQueue(user, channel, this.writers, this.queueCapacity));
+        this.rotate();
+    }
+
+    /**
+     * Stops the delivery to a user.
+     *
+     * @param user the user that logged out
+     */
+    public void close(UserData user) {
+        OutboundMessageQueue queue = user.getOutbound();
+        if (queue != null) {
+            queue.close();
+            user.setOutbound(null);
+            // the user still knows the current key
+            this.rotate();
+        }
+    }
+
+    private synchronized void rotate() {
+        this.groupKey = GroupKey.generate(++this.epoch, this.random);
+    }
+
+    /**
+     * Queues a line for every online user except the sender.
+     *
+     * @param sender the user sending the line
+     * @param line   the line (without line break)
+     */
+    public void broadcast(UserData sender, String line) {
+        GroupKey key = this.groupKey;
+        byte[] record = null;
+        for (UserData d : this.userDB.getOnline()) {
+            OutboundMessageQueue queue = d.getOutbound();
+            if (d == sender || queue == null) {
+                continue;
+            }
+            if (queue.isGroupMember()) {
+                if (record == null) {
+                    record = this.seal(key, line);
+                }
+                if (record != null) {
+                    queue.offer(key, record);
+                    this.groupDeliveries.incrementAndGet();
+                    continue;
+                }
+            }
+            queue.offer(line);
+            this.sessionDeliveries.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the record, null if sealing failed (the line is sent over the sessions then)
+     */
+    private byte[] seal(GroupKey key, String line) {
+        try {
+            byte[] record = key.seal(line.getBytes());
+            this.sealed.incrementAndGet();
+            return record;
+        } catch (BrokenMessageException | IllegalStateException e) {
+            LOGGER.log(Level.WARNING, "Failed to seal broadcast with the group key", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of broadcasts encrypted with the group key (once each)
+     */
+    public long getSealed() {
+        return this.sealed.get();
+    }
+
+    /**
+     * @return the number of group records queued, all of them encrypted by {@link #getSealed()} operations
+     */
+    public long getGroupDeliveries() {
+        return this.groupDeliveries.get();
+    }
+
+    /**
+     * @return the number of lines queued to be encrypted by the session of the recipient
+     */
+    public long getSessionDeliveries() {
+        return this.sessionDeliveries.get();
+    }
+
+    /**
+     * @return the epoch of the current group key
+     */
+    public int getGroupEpoch() {
+        return this.groupKey.getEpoch();
+    }
+
+    public void shutdown() {
+        this.writers.shutdown();
+    }
+}
@@ -7,32 +7,36 @@ import cli.Shell;
 import nameserver.INameserverForChatserver;
 import util.CommunicationChannel;
 import util.Config;
+import util.HandshakeFeatures;
 import util.Keys;
+import util.crypto.KeyMaterialPool;
+import util.crypto.cryptors.CompressingMessageCryptor;
+import util.crypto.cryptors.RSAMessageCryptor;
 import util.SimpleSocketCommunicationChannel;
 
+import javax.crypto.Cipher;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Socket;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.security.InvalidKeyException;
 import java.security.Key;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.logging.Level;
+import java.security.PrivateKey;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 public class Chatserver implements IChatserverCli, Runnable {
 
     private static final int UDPSIZE = 1024;
-    private static final String MSG_UDP_UNKNOWN_COMMAND = "Unknown command";
 
     private final Logger logger;
 
@@ -41,14 +45,24 @@ public class Chatserver implements IChatserverCli, Runnable {
     private InputStream userRequestStream;
     private PrintStream userResponseStream;
 
-    private ArrayList<UserData> userData;
+    private UserRegistry userData;
+    private OnlineListCache onlineList;
 
-    private UDPServerThread udpServer;
-    private AsynchronousTCPServer tcpServer;
+    private BroadcastEngine broadcast;
+    private HandshakeStage handshakes;
+    private ServerHandshakeContext handshakeContext;
+    private ExecutorService commandWorkers;
+
+    private UDPServer udpServer;
+    private Thread tcpServer;
     private Shell shell;
 
     private Key serverPrivateKey;
-    private String clientKeyDir;
+    private PrivateKey serverEcKey;
+    private PublicKeyCache clientKeys;
+    private PublicKeyCache ecClientKeys;
+    private KeyMaterialPool keyMaterial;
+    private TicketIssuer tickets;
 
 
     private String registryHost;
@@ -76,22 +90,12 @@ public class Chatserver implements IChatserverCli, Runnable {
         this.registryHost = this.config.getString("registry.host");
         this.rootId = this.config.getString("root_id");
 
-        this.userData = new ArrayList<>();
+        this.userData = new UserRegistry();
         fillUserData(this.userData, new Config("user"));
-        Collections.sort(this.userData, new Comparator<UserData>() {
-            @Override
-            public int compare(UserData o1, UserData o2) {
-                if (o1 == null) {
-                    return -1;
-                } else if (o2 == null) {
-                    return 1;
-                }
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
+        this.onlineList = new OnlineListCache(this.userData, UDPSIZE);
     }
 
-    private void fillUserData(List<UserData> list, Config config) {
+    private void fillUserData(UserRegistry registry, Config config) {
         for (String key : config.listKeys()) {
             logger.info("Looking at: " + key);
 
@@ -102,7 +106,7 @@ public class Chatserver implements IChatserverCli, Runnable {
                 String password = config.getString(key);
 
 
-                list.add(new UserData(name, password, null));
+                registry.add(new UserData(name, password, null));
                 logger.info("Successfully added user '" + name + "'!");
             }
         }
@@ -118,7 +122,30 @@ public class Chatserver implements IChatserverCli, Runnable {
             e.printStackTrace();
         }
 
-        this.clientKeyDir = this.config.getString("keys.dir");
+        // load the public keys of the users, so logins do not have to read them
+        this.clientKeys = new PublicKeyCache(this.config.getString("keys.dir"));
+        this.clientKeys.start();
+
+        // the keys of the EC handshake
+        try {
+            this.serverEcKey = Keys.readPrivatePEM(new File(this.config.getString("ec.key")));
+        } catch (IOException e) {
+            logger.warning("Failed to load server EC key, EC handshakes are refused: " + e.getMessage());
+        }
+        this.ecClientKeys = new PublicKeyCache(this.config.getString("ec.keys.dir"));
+        this.ecClientKeys.start();
+
+        // keys, IVs and challenges for the handshakes are generated in the background
+        this.keyMaterial = new KeyMaterialPool(this.config.getInt("handshake.pool.depth"));
+
+        // resumption tickets survive a restart as long as the ticket key stays the same
+        Key ticketKey = null;
+        try {
+            ticketKey = Keys.readSecretKey(new File(this.config.getString("resume.key")));
+        } catch (IOException e) {
+            logger.warning("Failed to load ticket key, tickets will not survive a restart: " + e.getMessage());
+        }
+        this.tickets = new TicketIssuer(ticketKey, this.config.getInt("resume.lifetime") * 1000L);
 
 
         try {
@@ -129,12 +156,41 @@ public class Chatserver implements IChatserverCli, Runnable {
             e.printStackTrace();
         }
 
+        this.broadcast = new BroadcastEngine(this.userData, this.config.getInt("broadcast.queue.size"),
+                this.config.getInt("broadcast.writers"));
+        this.handshakes = new HandshakeStage(this.config.getInt("handshake.threads"), this.config.getInt("handshake.queue"),
+                this.config.getInt("handshake.rsa.max"), this.config.getInt("handshake.timeout"));
+        this.handshakeContext = new ServerHandshakeContext(this.serverPrivateKey, this.serverEcKey, this.userData,
+                this.clientKeys, this.ecClientKeys, this.keyMaterial,
+                this.handshakes.getRsaPermits(), HandshakeFeatures.parse(this.config.getString("handshake.features")), this.tickets,
+                this.config.getInt("line.max"));
+
+        // the RSA ciphers of the server key are ready before the first login
+        if (this.serverPrivateKey != null) {
+            try {
+                RSAMessageCryptor.getCipherPool().prepare(this.serverPrivateKey, Cipher.DECRYPT_MODE, this.config.getInt("handshake.rsa.max"));
+            } catch (InvalidKeyException e) {
+                logger.warning("Invalid server private key: " + e.getMessage());
+            }
+        }
+
         // setup TCP Server (requests are handled by ChatserverClientHandlerFactory)
-        tcpServer = new AsynchronousTCPServer(this.config.getInt("tcp.port"), new ChatserverClientHandlerFactory());
+        String engine = this.config.getString("tcp.engine");
+        // the commands of the nio engine and the tagged commands of both engines, they may wait for the nameserver
+        this.commandWorkers = Executors.newFixedThreadPool(this.config.getInt("tcp.workers"));
+        if (engine.equals("nio")) {
+            tcpServer = new NioTCPServer(this.config.getInt("tcp.port"), this.config.getInt("tcp.nio.threads"),
+                    this.config.getInt("tcp.sessions.max"), new ChatserverClientHandlerFactory());
+        } else {
+            tcpServer = new AsynchronousTCPServer(this.config.getInt("tcp.port"),
+                    AsynchronousTCPServer.createSessionExecutor(this.config.getString("tcp.executor"),
+                            this.config.getInt("tcp.sessions.max"), this.config.getInt("tcp.accept.queue")),
+                    new ChatserverClientHandlerFactory());
+        }
         tcpServer.start();
 
         // setup UDP Server
-        udpServer = new UDPServerThread(this.config.getInt("udp.port"));
+        udpServer = new UDPServer(this.config.getInt("udp.port"), this.config.getInt("udp.threads"), this.onlineList, UDPSIZE);
         udpServer.start();
 
         // start main loop to handle user input
@@ -149,35 +205,121 @@ public class Chatserver implements IChatserverCli, Runnable {
 
         StringBuilder builder = new StringBuilder();
 
-        synchronized (this.userData) {
-            for (UserData data : this.userData) {
+        for (UserData data : this.userData.getAll()) {
+            builder.append(data.getName());
+            builder.append("\t");
+            builder.append(data.isOnline() ? "online" : "offline");
+            builder.append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    @Command("!queues")
+    public String queues() {
+        StringBuilder builder = new StringBuilder();
+
+        for (UserData data : this.userData.getOnline()) {
+            OutboundMessageQueue queue = data.getOutbound();
+            if (queue != null) {
                 builder.append(data.getName());
-                builder.append("\t");
-                builder.append(data.isOnline() ? "online" : "offline");
+                builder.append("\tqueued: ").append(queue.getDepth());
+                builder.append("\tdelivered: ").append(queue.getDelivered());
+                builder.append("\tdropped: ").append(queue.getDropped());
+                builder.append("\tfailed: ").append(queue.getFailed());
+                builder.append(String.format("\tlatency: %.2fms avg / %.2fms max", queue.getAverageLatencyMillis(), queue.getMaxLatencyMillis()));
                 builder.append("\n");
             }
         }
 
+        if (builder.length() == 0) {
+            builder.append("No user online.\n");
+        }
+        builder.append("broadcasts: ").append(this.broadcast.getSealed()).append(" sealed once");
+        builder.append("\tgroup deliveries: ").append(this.broadcast.getGroupDeliveries());
+        builder.append("\tsession deliveries: ").append(this.broadcast.getSessionDeliveries());
+        builder.append("\tgroup key: ").append(this.broadcast.getGroupEpoch());
         return builder.toString();
     }
 
+    @Command("!udp")
+    public String udp() {
+        return "received: " + this.udpServer.getReceived()
+                + "\tsent: " + this.udpServer.getSent()
+                + "\tdropped: " + this.udpServer.getDropped()
+                + "\tunknown commands: " + this.udpServer.getUnknownCommands()
+                + "\tpackets/s: " + this.udpServer.getPacketsPerSecond();
+    }
+
+    @Command("!sessions")
+    public String sessions() {
+        if (this.tcpServer instanceof NioTCPServer) {
+            NioTCPServer server = (NioTCPServer) this.tcpServer;
+            return "active: " + server.getActiveSessions()
+                    + "\trefused: " + server.getRejectedSessions();
+        }
+
+        AsynchronousTCPServer server = (AsynchronousTCPServer) this.tcpServer;
+        return "active: " + server.getActiveSessions()
+                + "\tqueued: " + server.getQueueDepth()
+                + "\trefused: " + server.getRejectedSessions();
+    }
+
+    @Command("!handshakes")
+    public String handshakes() {
+        return "running: " + this.handshakes.getActive()
+                + "\tqueued: " + this.handshakes.getQueueDepth()
+                + String.format("\tqueue latency: %.2fms avg / %.2fms max", this.handshakes.getAverageQueueLatencyMillis(), this.handshakes.getMaxQueueLatencyMillis())
+                + "\trejected: " + this.handshakes.getRejected()
+                + "\ttimed out: " + this.handshakes.getTimedOut()
+                + "\nkey material: " + this.keyMaterial.getAvailable() + " ready"
+                + "\thits: " + this.keyMaterial.getHits()
+                + "\tmisses: " + this.keyMaterial.getMisses()
+                + String.format("\trefilled: %d (%.1f/s)", this.keyMaterial.getRefilled(), this.keyMaterial.getRefillRate())
+                + "\nRSA ciphers: " + RSAMessageCryptor.getCipherPool().getHits() + " reused"
+                + "\t" + RSAMessageCryptor.getCipherPool().getMisses() + " created"
+                + "\nresumption tickets: " + this.tickets.getIssued() + " issued"
+                + "\t" + this.tickets.getAccepted() + " accepted"
+                + "\t" + this.tickets.getRejected() + " rejected";
+    }
+
+    @Command("!compression")
+    public String compression() {
+        CompressingMessageCryptor.Statistics stats = CompressingMessageCryptor.getStatistics();
+        return "stored: " + stats.getStored()
+                + "\tdeflated: " + stats.getDeflated()
+                + "\tinflated: " + stats.getInflated()
+                + String.format("\tratio: %.1f%%", stats.getRatio() * 100)
+                + String.format("\tcpu: %.1fus deflate / %.1fus inflate", stats.getAverageDeflateMicros(), stats.getAverageInflateMicros());
+    }
+
     @Override
     @Command("!exit")
     public String exit() throws IOException {
         // logout users
-        synchronized (this.userData) {
-            for (UserData data : this.userData) {
-                CommunicationChannel s = data.getClient();
-                if (s != null) {
-                    s.close();
-                }
+        for (UserData data : this.userData.getOnline()) {
+            CommunicationChannel s = data.getClient();
+            if (s != null) {
+                s.close();
             }
         }
         // shutdown TCP server
         this.tcpServer.interrupt();
 
         // shutdown UDP server
-        this.udpServer.interrupt();
+        this.udpServer.shutdown();
+
+        // stop delivering public messages
+        this.broadcast.shutdown();
+
+        // abort pending handshakes
+        this.handshakes.shutdown();
+        if (this.commandWorkers != null) {
+            this.commandWorkers.shutdownNow();
+        }
+        this.clientKeys.shutdown();
+        this.ecClientKeys.shutdown();
+        this.keyMaterial.shutdown();
 
         // close the shell
         this.shell.close();
@@ -192,10 +334,28 @@ public class Chatserver implements IChatserverCli, Runnable {
             return new Runnable() {
                 @Override
                 public void run() {
+                    // the client is read on this thread, only the RSA and EC operations wait for the handshake threads
+                    final AtomicBoolean loggedIn = new AtomicBoolean(false);
+                    ScheduledFuture<?> timeout = handshakes.scheduleTimeout(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            if (loggedIn.get()) {
+                                return false;
+                            }
+                            logger.info("Handshake timed out, closing connection");
+                            try {
+                                channel.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                            return true;
+                        }
+                    });
+
                     UserData d;
                     try {
-                        LoginStage loginStage = new LoginStage(serverPrivateKey, userData, clientKeyDir);
-                        d = loginStage.execute(null, channel);
+                        d = new LoginStage(handshakeContext, handshakes).execute(null, channel);
+                        loggedIn.set(true);
                     } catch (TerminateSessionException e) {
                         logger.warning("Exception occured while logging in, terminating session!");
                         try {
@@ -204,12 +364,14 @@ public class Chatserver implements IChatserverCli, Runnable {
                             ex.printStackTrace();
                         }
                         return;
+                    } finally {
+                        timeout.cancel(false);
                     }
 
                     logger.info("Successfully logged in user: " + d.getName());
 
                     try {
-                        PerformingStage performingStage = new PerformingStage(userData, nameserver);
+                        PerformingStage performingStage = new PerformingStage(userData, broadcast, nameserver, commandWorkers);
                         d = performingStage.execute(d, d.getClient());
                     } catch (TerminateSessionException e) {
                         logger.warning("Exception occured while performing, terminating session!");
@@ -230,6 +392,11 @@ public class Chatserver implements IChatserverCli, Runnable {
                 }
             };
         }
+
+        @Override
+        public SessionHandler createSessionHandler(NioCommunicationChannel channel) {
+            return new NonBlockingClientSession(channel, handshakeContext, handshakes, commandWorkers, broadcast, nameserver);
+        }
     }
 
     /**
@@ -243,117 +410,17 @@ public class Chatserver implements IChatserverCli, Runnable {
         chatserver.run();
     }
 
-    private class UDPServerThread extends Thread {
-        private final Logger LOGGER = Logger.getLogger("UDPServerThread");
-
-        private DatagramSocket socket;
-
-        private int port;
-
-        public UDPServerThread(int port) {
-            this.port = port;
-
-            this.LOGGER.setLevel(Level.WARNING);
-        }
-
-        @Override
-        public synchronized void start() {
-            try {
-                this.socket = new DatagramSocket(this.port);
-
-                logger.info("Opened UDP Socket on " + this.port);
-
-                super.start();
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Failed to open socket", e);
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            this.socket.close();
-
-            super.interrupt();
-        }
-
-        @Override
-        public void run() {
-            byte[] recvBuffer = new byte[256];
-            DatagramPacket recvPacket = new DatagramPacket(recvBuffer, recvBuffer.length);
-
-            while (!this.isInterrupted()) {
-                try {
-
-                    logger.info("Waiting for udp packet...");
-
-                    this.socket.receive(recvPacket);
-
-                    logger.info("Got udp packet!");
-
-                    String cmd = new String(recvBuffer);
-                    cmd = cmd.substring(0, cmd.indexOf("\0"));
-                    if (cmd.equals("!list")) {
-                        LOGGER.info("List command called");
-
-                        // compile response
-                        StringBuilder builder = new StringBuilder();
-                        synchronized (userData) {
-                            for (UserData d : userData) {
-                                if (d.isOnline()) {
-                                    builder.append(d.getName());
-                                    builder.append("\n");
-                                }
-                            }
-                        }
-
-                        byte[] toSend = builder.toString().getBytes();
-
-                        // sending as many packets as needed, because of buffer size
-                        byte[] buffer = new byte[UDPSIZE];
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, recvPacket.getSocketAddress());
-                        for (int pos = 0; pos < builder.length(); pos += (UDPSIZE - 1)) {
-                            System.arraycopy(toSend, pos, buffer, 0, Math.min((UDPSIZE - 1), toSend.length - pos));
-
-                            // add another packet will follow flag to the package if needed
-                            if (pos + UDPSIZE - 1 < builder.length()) {
-                                buffer[UDPSIZE - 1] = 31; // Unit Seperator
-                            }
-
-                            this.socket.send(packet);
-                        }
-
-                    } else {
-                        LOGGER.warning("Unknown command: '" + cmd + "'");
-
-                        byte[] buffer = MSG_UDP_UNKNOWN_COMMAND.getBytes();
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, recvPacket.getSocketAddress());
-                        this.socket.send(packet);
-                    }
-
-
-                } catch (IOException e) {
-                    if (this.socket.isClosed()) {
-                        // Thats why...
-                        break;
-                    } else {
-                        LOGGER.log(Level.SEVERE, "Failed to receive packet", e);
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-            LOGGER.info("UDP Server stopped. Closing...");
-
-            this.interrupt();
-        }
-    }
-
     public static class Marker {
         public static final String MARKER_LOGIN_RESPONSE = "!loginResponse";
         public static final String MARKER_LOGOUT_RESPONSE = "!logoutResponse";
         public static final String MARKER_SEND_RESPONSE = "!sendResponse";
         public static final String MARKER_REGISTER_RESPONSE = "!registerResponse";
         public static final String MARKER_LOOKUP_RESPONSE = "!lookupResponse";
+        public static final String MARKER_REFUSED = "!refused";
+        // the answer to a request with an ID that failed
+        public static final String MARKER_ERROR = "!error";
+        // starts the ID of a request and of its response: "@<id> <command>"
+        public static final String REQUEST_TAG = "@";
     }
 
 }
@@ -9,9 +9,12 @@ import nameserver.exceptions.InvalidDomainException;
 import util.CommunicationChannel;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.rmi.RemoteException;
-import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,19 +44,40 @@ public class ChatserverClientHandler extends SilentShell implements IServerClien
     private static final String MSG_UNKNOWN_COMMAND = "Unknown command!";
     private static final String MSG_RESPONSE_NOTLOGGEDIN = "Not logged in.";
 
+    // tagged requests of one session executed at the same time, further ones run on the reading thread
+    private static final int MAX_CONCURRENT_REQUESTS = 16;
+
     private CommunicationChannel channel;
     private INameserverForChatserver rootNameserver;
-    private final List<UserData> userDB;
+    private final UserRegistry userDB;
+    private final BroadcastEngine broadcast;
     private final UserData user; // Thats the currently logged in one
+    private final Executor requests;
+    private final Semaphore running = new Semaphore(MAX_CONCURRENT_REQUESTS);
+    // responses of concurrent requests must not interleave
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // the ID of the request being handled by the current thread, prepended to the first line written for it
+    private final ThreadLocal<String> tag = new ThreadLocal<>();
 
-    public ChatserverClientHandler(String name, CommunicationChannel channel, UserData user, List<UserData> userDB, INameserverForChatserver nameserver) throws IOException {
+    public ChatserverClientHandler(String name, CommunicationChannel channel, UserData user, UserRegistry userDB, BroadcastEngine broadcast, INameserverForChatserver nameserver) throws IOException {
+        this(name, channel, user, userDB, broadcast, nameserver, null);
+    }
+
+    /**
+     * @param requests executes the tagged requests, null to execute them one after the other on the reading thread
+     */
+    public ChatserverClientHandler(String name, CommunicationChannel channel, UserData user, UserRegistry userDB, BroadcastEngine broadcast, INameserverForChatserver nameserver, Executor requests) throws IOException {
         super(name, channel.getInputStream(), channel.getOutputStream());
+        this.requests = requests;
         this.rootNameserver = nameserver;
         this.channel = channel;
         this.user = user;
         this.userDB = userDB;
+        this.broadcast = broadcast;
 
         this.register(this);
+        this.broadcast.open(user, channel);
     }
 
 
@@ -101,11 +125,12 @@ public class ChatserverClientHandler extends SilentShell implements IServerClien
             return Marker.MARKER_LOGOUT_RESPONSE + MSG_RESPONSE_NOTLOGGEDIN;
         }
 
-        synchronized (this.user) {
+        this.user.getLock().lock();
+        try {
             LOGGER.info("Logout from " + this.user.getName());
 
-            this.user.setOnlineStatus(false);
-            this.user.setClient(null);
+            this.userDB.logout(this.user);
+            this.broadcast.close(this.user);
 
             try {
                 this.writeLine(Chatserver.Marker.MARKER_LOGOUT_RESPONSE + MSG_RESPONSE_LOGOUT_SUCCESSFUL);
@@ -115,6 +140,8 @@ public class ChatserverClientHandler extends SilentShell implements IServerClien
             }
 
             this.close();
+        } finally {
+            this.user.getLock().unlock();
         }
 
         return null;
@@ -125,22 +152,8 @@ public class ChatserverClientHandler extends SilentShell implements IServerClien
     public String send(String message) {
         message = this.user.getName() + ": " + message; // append sender
 
-        // send to other clients
-        synchronized (this.userDB) {
-            for (UserData d : this.userDB) {
-                if (d != this.user && d.getClient() != null) {
-                    synchronized (d) {
-                        try {
-                            OutputStream os = d.getClient().getOutputStream();
-                            os.write(("!show" + message + "\n").getBytes());
-                            os.flush();
-                        } catch (IOException e) {
-                            LOGGER.warning("Failed to send message to " + d.getName() + " (channel: " + d.getClient() + ")");
-                        }
-                    }
-                }
-            }
-        }
+        // queue for the other clients, their writers deliver it
+        this.broadcast.broadcast(this.user, "!show" + message);
 
         return Chatserver.Marker.MARKER_SEND_RESPONSE + MSG_RESPONSE_SEND_SUCCESSFUL;
     }
@@ -198,6 +211,94 @@ public class ChatserverClientHandler extends SilentShell implements IServerClien
         }
     }
 
+    /**
+     * Handles a command line. A command may start with an ID ({@code @<id> !send ...}, sent by clients that negotiated
+     * {@link util.HandshakeFeatures#PIPELINE}), its response then starts with the same ID and it always gets exactly
+     * one: failures are answered with {@link Marker#MARKER_ERROR} instead of a stack trace.
+     * <p>
+     * Commands with an ID are handed to the request executor and run at the same time as the following lines, so
+     * clients must not expect the responses in the order of the requests. Once a session has too many of them running
+     * (or there is no executor), the reading thread runs the command itself and reads no further lines meanwhile.
+     * Commands without an ID run on the reading thread as before.
+     */
+    @Override
+    public void handleLine(String line) throws IOException {
+        if (!line.startsWith(Marker.REQUEST_TAG)) {
+            super.handleLine(line);
+            return;
+        }
+
+        int space = line.indexOf(' ');
+        final String id = space < 0 ? line : line.substring(0, space);
+        final String command = space < 0 ? "" : line.substring(space + 1);
+        if (this.requests == null || !this.running.tryAcquire()) {
+            this.handleRequest(id, command);
+            return;
+        }
+
+        try {
+            this.requests.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleRequest(id, command);
+                    } catch (IOException e) {
+                        LOGGER.warning("Failed to answer request " + id + ": " + e.getMessage());
+                        close();
+                    } finally {
+                        running.release();
+                        // !logout closes the shell, which interrupts the current thread
+                        Thread.interrupted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.running.release();
+            this.handleRequest(id, command);
+        }
+    }
+
+    /**
+     * Executes a command that carried an ID and writes its response.
+     */
+    private void handleRequest(String id, String command) throws IOException {
+        this.tag.set(id);
+        try {
+            Object result;
+            try {
+                result = this.invoke(command);
+            } catch (Throwable t) {
+                Throwable cause = t instanceof InvocationTargetException && t.getCause() != null ? t.getCause() : t;
+                result = Marker.MARKER_ERROR + " " + (cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+            }
+
+            if (result != null) {
+                this.writeLine(String.valueOf(result));
+            } else if (this.tag.get() != null) {
+                // nothing written (!logout writes its own response), the request must not stay unanswered
+                this.writeLine(Marker.MARKER_ERROR + " No response");
+            }
+        } finally {
+            this.tag.remove();
+        }
+    }
+
+    @Override
+    public void writeLine(String line) throws IOException {
+        String current = this.tag.get();
+        if (current != null) {
+            // one response per request
+            this.tag.remove();
+            line = current + " " + line;
+        }
+        this.writeLock.lock();
+        try {
+            super.writeLine(line);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
     @Override
     public void close() {
         super.close();
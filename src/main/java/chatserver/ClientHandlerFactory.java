@@ -11,4 +11,12 @@ public interface ClientHandlerFactory {
      * @return
      */
     Runnable createClientHandler(Socket client) throws IOException;
+
+    /**
+     * Create a new event driven handler for a new client. Used by servers that do not spend a thread per client.
+     *
+     * @param channel the (non-blocking) connection to the client
+     * @return a handler that gets every line sent by the client
+     */
+    SessionHandler createSessionHandler(NioCommunicationChannel channel);
 }
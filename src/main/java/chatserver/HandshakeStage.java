@@ -0,0 +1,217 @@
+package chatserver;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the handshakes of new clients apart from the established sessions.
+ * <p>
+ * The RSA and EC operations of the handshakes are executed by a fixed number of threads with their own queue, the
+ * number of concurrent RSA operations is limited by {@link #getRsaPermits()}. Waiting for the client is up to the
+ * session, see {@link #scheduleTimeout(Callable)}. A reconnect storm therefore queues up here instead of taking the CPU away
+ * from users that are already logged in. Handshakes that do not finish in time are aborted.
+ */
+public class HandshakeStage {
+
+    private static final Logger LOGGER = Logger.getLogger("HandshakeStage");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer;
+    private final Semaphore rsaPermits;
+    private final long timeoutMillis;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private volatile long maxQueueNanos = 0;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param threads          the number of threads performing handshakes
+     * @param queueCapacity    the number of handshakes that may wait for a thread
+     * @param maxRsaOperations the number of RSA operations allowed at the same time
+     * @param timeoutMillis    the time a client has to finish the handshake (including the time in the queue)
+     */
+    public HandshakeStage(int threads, int queueCapacity, int maxRsaOperations, long timeoutMillis) {
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity));
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.rsaPermits = new Semaphore(maxRsaOperations, true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the permits every RSA operation of a handshake has to acquire
+     */
+    public Semaphore getRsaPermits() {
+        return this.rsaPermits;
+    }
+
+    /**
+     * Runs a CPU bound step of a blocking handshake on the handshake threads and waits for its result. The step must
+     * not read from the client, a silent client would hold the thread until the timeout.
+     * If the step does not finish in time it gets interrupted, the caller should close the connection then.
+     *
+     * @param handshake the step
+     * @return the result of the step
+     * @throws TerminateSessionException if the step failed, timed out or the queue is full
+     */
+    public <T> T execute(Callable<T> handshake) throws TerminateSessionException {
+        Future<T> future;
+        try {
+            future = this.pool.submit(new TimedCallable<>(handshake));
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            throw new TerminateSessionException("Handshake queue is full", e);
+        }
+
+        try {
+            try {
+                return future.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (future.cancel(true)) {
+                    // counted by the timeout of the session, see scheduleTimeout(Callable)
+                    throw new TerminateSessionException("Handshake timed out", e);
+                }
+                // finished just in time
+                return future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TerminateSessionException) {
+                throw (TerminateSessionException) e.getCause();
+            }
+            throw new TerminateSessionException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TerminateSessionException(e);
+        }
+    }
+
+    /**
+     * Queues a step of a non-blocking handshake.
+     *
+     * @param step the step
+     * @throws TerminateSessionException if the queue is full
+     */
+    public void submit(Runnable step) throws TerminateSessionException {
+        try {
+            this.pool.execute(new TimedCallable<>(Executors.callable(step)).asRunnable());
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            throw new TerminateSessionException("Handshake queue is full", e);
+        }
+    }
+
+    /**
+     * Runs the given action after the handshake timeout, unless the returned future is cancelled before. This is the
+     * only place timed out handshakes are counted.
+     *
+     * @param onTimeout the action aborting the handshake, returns true if the client had not logged in yet
+     * @return the future to cancel once the handshake finished
+     */
+    public ScheduledFuture<?> scheduleTimeout(final Callable<Boolean> onTimeout) {
+        return this.timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (onTimeout.call()) {
+                        timedOut.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to abort handshake", e);
+                }
+            }
+        }, this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getQueueDepth() {
+        return this.pool.getQueue().size();
+    }
+
+    public int getActive() {
+        return this.pool.getActiveCount();
+    }
+
+    /**
+     * @return the average time handshakes waited for a thread in milliseconds
+     */
+    public double getAverageQueueLatencyMillis() {
+        long count = this.started.get();
+        return count == 0 ? 0 : this.totalQueueNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return the longest time a handshake waited for a thread in milliseconds
+     */
+    public double getMaxQueueLatencyMillis() {
+        return this.maxQueueNanos / 1e6;
+    }
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    public long getTimedOut() {
+        return this.timedOut.get();
+    }
+
+    public void shutdown() {
+        this.pool.shutdownNow();
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * Measures the time between creation (= enqueueing) and the start of the execution.
+     */
+    private class TimedCallable<T> implements Callable<T> {
+        private final Callable<T> task;
+        private final long enqueued = System.nanoTime();
+
+        TimedCallable(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            long waited = System.nanoTime() - this.enqueued;
+            started.incrementAndGet();
+            totalQueueNanos.addAndGet(waited);
+            if (waited > maxQueueNanos) {
+                maxQueueNanos = waited;
+            }
+            return this.task.call();
+        }
+
+        Runnable asRunnable() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Handshake step failed", e);
+                    }
+                }
+            };
+        }
+    }
+}
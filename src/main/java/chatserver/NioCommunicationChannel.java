@@ -0,0 +1,342 @@
+package chatserver;
+
+import util.ByteBufferChannel;
+import util.CommunicationChannel;
+import util.crypto.BufferPool;
+import util.crypto.Framing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A {@link CommunicationChannel} on top of a non-blocking {@link SocketChannel} that is managed by a {@link NioEventLoop}.
+ * <p>
+ * Writing never blocks: written bytes are queued and sent by the event loop as soon as the socket is writable.
+ * Buffers passed to {@link #write(ByteBuffer)} are queued as they are, without copying.
+ * Reading is push based, every received line (or record, see {@link #setFraming(Framing)}) is handed to the
+ * {@link SessionHandler} of the channel, so the {@link InputStream} of this channel cannot be read from.
+ */
+public class NioCommunicationChannel implements ByteBufferChannel {
+    private static final Logger logger = Logger.getLogger("NioCommunicationChannel");
+
+    private final SocketChannel socket;
+    private final NioEventLoop loop;
+
+    private SelectionKey key;
+    private SessionHandler handler;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+    private volatile Framing framing = Framing.TEXT;
+    private volatile int maxLineLength = Framing.MAX_LINE_LENGTH;
+
+    // the record currently received in binary framing
+    private final byte[] recordHeader = new byte[4];
+    private int headerRead = 0;
+    private byte[] record = null;
+    private int recordRead = 0;
+    private volatile boolean closeRequested = false;
+    private volatile boolean readsSuspended = false;
+    private boolean closed = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            throw new IOException("A non-blocking channel pushes its lines to the session handler");
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closeRequested) {
+                throw new IOException("Channel is closed");
+            }
+            // released by writeOutbound like the buffers handed to write(ByteBuffer)
+            ByteBuffer copy = BufferPool.shared().acquire(len);
+            copy.put(b, off, len);
+            copy.flip();
+            outbound.add(copy);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            loop.requestWrite(NioCommunicationChannel.this);
+        }
+    };
+
+    NioCommunicationChannel(SocketChannel socket, NioEventLoop loop) {
+        this.socket = socket;
+        this.loop = loop;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.out;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (this.closeRequested) {
+            BufferPool.shared().release(buffer);
+            throw new IOException("Channel is closed");
+        }
+        this.outbound.add(buffer);
+        this.loop.requestWrite(this);
+    }
+
+    /**
+     * Closes the connection as soon as all queued bytes are sent.
+     */
+    @Override
+    public void close() throws IOException {
+        logger.info("Closing channel! (socket: " + this.socket + ")");
+        this.closeRequested = true;
+        this.loop.requestWrite(this);
+    }
+
+    SocketChannel getSocket() {
+        return this.socket;
+    }
+
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void setHandler(SessionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Switches how incoming data is split. Must be called before the client sends the first message of the new
+     * framing, ie. before the message announcing the switch is written.
+     *
+     * @param framing the framing of all following messages
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    /**
+     * Sets the longest line accepted from now on, longer lines end the session. Lines of an encrypted session are
+     * bounded by {@link Framing#MAX_LINE_LENGTH} like in a {@link util.crypto.CryptoChannel}, which is the default.
+     *
+     * @param maxLineLength the longest line (in bytes, without line break)
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    boolean isCloseRequested() {
+        return this.closeRequested;
+    }
+
+    /**
+     * Stops reading from the socket until {@link #resumeReads()} is called, so a client sending faster than its
+     * session handles the messages is slowed down by TCP. The messages already received are still handed over.
+     */
+    public void suspendReads() {
+        this.readsSuspended = true;
+    }
+
+    /**
+     * Continues reading after {@link #suspendReads()}. Can be called from any thread.
+     */
+    public void resumeReads() {
+        if (this.readsSuspended) {
+            this.readsSuspended = false;
+            // the event loop updates the interest of the key
+            this.loop.requestWrite(this);
+        }
+    }
+
+    boolean isReadsSuspended() {
+        return this.readsSuspended;
+    }
+
+    boolean hasOutbound() {
+        return !this.outbound.isEmpty();
+    }
+
+    /**
+     * Reads everything available from the socket and hands complete lines to the session handler.
+     *
+     * @param buffer a buffer that can be used for reading
+     * @return false if the client closed the connection
+     */
+    boolean readLines(ByteBuffer buffer) throws IOException, TerminateSessionException {
+        for (; ; ) {
+            if (this.closeRequested) {
+                // the handler closed the session (eg. !logout), the queued response still has to be written
+                return true;
+            }
+            if (this.readsSuspended) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+                return true;
+            }
+            // handlers may close their shell, which interrupts the current thread: reading on an interrupted
+            // thread would close the socket
+            Thread.interrupted();
+
+            buffer.clear();
+            int read = this.socket.read(buffer);
+            if (read < 0) {
+                return false;
+            } else if (read == 0) {
+                return true;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (this.framing == Framing.BINARY) {
+                    this.readRecord(buffer);
+                    continue;
+                }
+
+                this.readLine(buffer);
+            }
+        }
+    }
+
+    /**
+     * Consumes bytes up to the next line break, hands the line to the session handler if it is complete.
+     */
+    private void readLine(ByteBuffer buffer) throws TerminateSessionException {
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && !isLineBreak(buffer.get(end))) {
+            end++;
+        }
+        int length = end - start;
+
+        int max = this.maxLineLength;
+        if (this.lineBuffer.size() + length > max) {
+            throw new TerminateSessionException("Line longer than " + max + " bytes");
+        }
+        if (buffer.hasArray()) {
+            this.lineBuffer.write(buffer.array(), buffer.arrayOffset() + start, length);
+            buffer.position(end);
+        } else {
+            for (int i = 0; i < length; i++) {
+                this.lineBuffer.write(buffer.get());
+            }
+        }
+
+        if (end < buffer.limit()) {
+            buffer.get(); // the line break
+            String line;
+            try {
+                line = this.lineBuffer.toString(StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            this.lineBuffer.reset();
+            this.handler.lineReceived(line);
+        }
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == 0;
+    }
+
+    /**
+     * Consumes bytes of the current record, hands it to the session handler once it is complete.
+     */
+    private void readRecord(ByteBuffer buffer) throws TerminateSessionException {
+        if (this.record == null) {
+            int n = Math.min(buffer.remaining(), 4 - this.headerRead);
+            buffer.get(this.recordHeader, this.headerRead, n);
+            this.headerRead += n;
+            if (this.headerRead < 4) {
+                return;
+            }
+
+            int length = ((this.recordHeader[0] & 0xff) << 24) | ((this.recordHeader[1] & 0xff) << 16)
+                    | ((this.recordHeader[2] & 0xff) << 8) | (this.recordHeader[3] & 0xff);
+            if (length < 0 || length > Framing.MAX_RECORD_LENGTH) {
+                throw new TerminateSessionException("Invalid record length: " + length);
+            }
+            this.record = new byte[length];
+            this.recordRead = 0;
+        }
+
+        int n = Math.min(buffer.remaining(), this.record.length - this.recordRead);
+        buffer.get(this.record, this.recordRead, n);
+        this.recordRead += n;
+
+        if (this.recordRead == this.record.length) {
+            byte[] complete = this.record;
+            this.record = null;
+            this.headerRead = 0;
+            this.handler.recordReceived(complete);
+        }
+    }
+
+    /**
+     * Writes as many queued bytes as the socket accepts.
+     *
+     * @return true if there is nothing left to write
+     */
+    boolean writeOutbound() throws IOException {
+        for (ByteBuffer b; (b = this.outbound.peek()) != null; ) {
+            this.socket.write(b);
+            if (b.hasRemaining()) {
+                return false; // socket buffer is full
+            }
+            this.outbound.poll();
+            BufferPool.shared().release(b);
+        }
+        return true;
+    }
+
+    void closeNow() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.closeRequested = true;
+        for (ByteBuffer b; (b = this.outbound.poll()) != null; ) {
+            BufferPool.shared().release(b);
+        }
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            logger.warning("Failed to close socket: " + e.getMessage());
+        }
+        if (this.handler != null) {
+            this.handler.connectionClosed();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioCommunicationChannel{" + this.socket + "}";
+    }
+}
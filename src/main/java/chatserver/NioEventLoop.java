@@ -0,0 +1,176 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link NioEventLoop} owns a {@link Selector} and serves any number of {@link NioCommunicationChannel}s with a
+ * single thread. Received lines are pushed to the {@link SessionHandler} of each channel, queued output is written
+ * as soon as the socket accepts it.
+ */
+public class NioEventLoop extends Thread {
+
+    private static final Logger LOGGER = Logger.getLogger("NioEventLoop");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Selector selector;
+    private final Queue<NioCommunicationChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioCommunicationChannel> writeRequests = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a channel over to this loop. Can be called from any thread.
+     *
+     * @param channel the channel (its socket must be in non-blocking mode)
+     */
+    public void register(NioCommunicationChannel channel) {
+        this.registrations.add(channel);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Tells the loop that the given channel has queued output (or wants to be closed or read again). Can be called
+     * from any thread.
+     *
+     * @param channel the channel
+     */
+    void requestWrite(NioCommunicationChannel channel) {
+        this.writeRequests.add(channel);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select();
+
+                for (NioCommunicationChannel c; (c = this.registrations.poll()) != null; ) {
+                    this.attach(c);
+                }
+
+                for (NioCommunicationChannel c; (c = this.writeRequests.poll()) != null; ) {
+                    this.write(c);
+                }
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    NioCommunicationChannel c = (NioCommunicationChannel) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        this.read(c);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        this.write(c);
+                    }
+                }
+            } catch (IOException e) {
+                if (!this.selector.isOpen()) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Exception in event loop", e);
+            }
+        }
+
+        LOGGER.info("Event loop " + this.getName() + " stopped. Closing...");
+
+        for (SelectionKey key : this.selector.keys()) {
+            ((NioCommunicationChannel) key.attachment()).closeNow();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close selector");
+        }
+    }
+
+    private void attach(NioCommunicationChannel c) {
+        try {
+            c.setKey(c.getSocket().register(this.selector, SelectionKey.OP_READ, c));
+        } catch (ClosedChannelException e) {
+            // the client was gone before the loop got to it
+            LOGGER.info("Client closed connection before registration: " + c);
+            c.closeNow();
+            return;
+        }
+        if (c.hasOutbound() || c.isCloseRequested()) {
+            this.write(c);
+        }
+    }
+
+    private void read(NioCommunicationChannel c) {
+        try {
+            if (!c.readLines(this.readBuffer)) {
+                LOGGER.info("Client closed connection: " + c);
+                c.closeNow();
+            }
+        } catch (IOException | TerminateSessionException e) {
+            LOGGER.warning("Terminating session (" + c + "): " + e.getMessage());
+            c.closeNow();
+        } catch (RuntimeException e) {
+            // only this session is broken, the other ones of the loop are served on
+            LOGGER.log(Level.WARNING, "Unexpected failure, terminating session (" + c + ")", e);
+            c.closeNow();
+        } finally {
+            // handlers may close their shell, which interrupts the current thread
+            Thread.interrupted();
+        }
+    }
+
+    private void write(NioCommunicationChannel c) {
+        SelectionKey key = c.getKey();
+        if (key == null || !key.isValid()) {
+            // not registered yet (output is written after registration) or already closed
+            return;
+        }
+
+        try {
+            int read = c.isReadsSuspended() ? 0 : SelectionKey.OP_READ;
+            if (c.writeOutbound()) {
+                if (c.isCloseRequested()) {
+                    c.closeNow();
+                } else {
+                    key.interestOps(read);
+                }
+            } else {
+                key.interestOps(read | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to write to " + c + ": " + e.getMessage());
+            c.closeNow();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unexpected failure writing to " + c, e);
+            c.closeNow();
+        }
+    }
+
+    /**
+     * Stops the loop and closes all of its connections.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+}
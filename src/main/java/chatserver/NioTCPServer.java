@@ -0,0 +1,196 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link NioTCPServer} accepts TCP connections and distributes them over a fixed number of {@link NioEventLoop}s.
+ * In contrast to the {@link AsynchronousTCPServer} no thread is spent per client, every client is served by the
+ * {@link SessionHandler} the {@link ClientHandlerFactory} creates for it.
+ * <p>
+ * Like the {@link AsynchronousTCPServer} the number of sessions can be limited, further connections are refused with
+ * a {@link Chatserver.Marker#MARKER_REFUSED} line. As waiting sessions cost no thread there is no accept queue.
+ */
+public class NioTCPServer extends Thread {
+
+    private static final Logger LOGGER = Logger.getLogger("NioTCPServer");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final int port;
+    private ServerSocketChannel socket;
+    private ClientHandlerFactory factory;
+    private final NioEventLoop[] loops;
+    private int nextLoop = 0;
+    private final int maxSessions;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public NioTCPServer(int port, int ioThreads, ClientHandlerFactory clientHandlerFactory) {
+        this(port, ioThreads, 0, clientHandlerFactory);
+    }
+
+    /**
+     * @param maxSessions the maximum number of sessions served at the same time, 0 for no limit
+     */
+    public NioTCPServer(int port, int ioThreads, int maxSessions, ClientHandlerFactory clientHandlerFactory) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        this.port = port;
+        this.factory = clientHandlerFactory;
+        this.loops = new NioEventLoop[ioThreads];
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @return the number of sessions currently being served
+     */
+    public int getActiveSessions() {
+        return this.active.get();
+    }
+
+    /**
+     * @return the number of connections refused since the server started
+     */
+    public long getRejectedSessions() {
+        return this.rejected.get();
+    }
+
+    @Override
+    public synchronized void start() {
+        try {
+            this.socket = ServerSocketChannel.open();
+            this.socket.socket().bind(new InetSocketAddress(this.port));
+
+            for (int i = 0; i < this.loops.length; i++) {
+                this.loops[i] = new NioEventLoop("NioEventLoop-" + i);
+                this.loops[i].start();
+            }
+
+            super.start();
+
+            LOGGER.info("Server started on port " + this.port + " with " + this.loops.length + " I/O threads");
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start TCP Server on port " + this.port, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!this.isInterrupted()) {
+            try {
+                LOGGER.info("Listening...");
+                SocketChannel client = this.socket.accept();
+
+                LOGGER.info("Client " + client.socket().getInetAddress().getHostAddress() + " connected!");
+
+                if (this.maxSessions > 0 && this.active.get() >= this.maxSessions) {
+                    this.refuse(client);
+                    continue;
+                }
+
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = this.loops[this.nextLoop];
+                this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+
+                NioCommunicationChannel channel = new NioCommunicationChannel(client, loop);
+                channel.setHandler(new CountedSession(this.factory.createSessionHandler(channel)));
+                this.active.incrementAndGet();
+                loop.register(channel);
+            } catch (IOException e) {
+                if (!this.socket.isOpen()) {
+                    // Thats why it dies...
+                    break;
+                } else {
+                    // Unwanted Exception
+                    LOGGER.warning("Exception: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        LOGGER.info("NioTCPServer stopped taking requests! Closing...");
+
+        this.interrupt();
+    }
+
+    /**
+     * Tells a client that there is no free session slot and closes the connection.
+     *
+     * @param client the connection to refuse, still blocking
+     */
+    private void refuse(SocketChannel client) {
+        this.rejected.incrementAndGet();
+        LOGGER.warning("Session limit reached, refusing " + client.socket().getInetAddress().getHostAddress());
+
+        try {
+            client.write(ByteBuffer.wrap((Chatserver.Marker.MARKER_REFUSED + " "
+                    + AsynchronousTCPServer.MSG_REFUSED_BUSY + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            LOGGER.warning("Failed to tell client about refusal: " + e.getMessage());
+        }
+
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close refused socket");
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close tcp socket");
+        }
+
+        for (NioEventLoop loop : this.loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+
+        super.interrupt();
+    }
+
+    /**
+     * Frees the session slot once the connection is closed.
+     */
+    private class CountedSession implements SessionHandler {
+        private final SessionHandler handler;
+
+        CountedSession(SessionHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void lineReceived(String line) throws TerminateSessionException {
+            this.handler.lineReceived(line);
+        }
+
+        @Override
+        public void recordReceived(byte[] record) throws TerminateSessionException {
+            this.handler.recordReceived(record);
+        }
+
+        @Override
+        public void connectionClosed() {
+            active.decrementAndGet();
+            this.handler.connectionClosed();
+        }
+    }
+}
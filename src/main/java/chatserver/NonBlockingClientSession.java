@@ -0,0 +1,323 @@
+package chatserver;
+
+import nameserver.INameserverForChatserver;
+import util.CommunicationChannel;
+import util.HandshakeFailedException;
+import util.crypto.BrokenMessageException;
+import util.crypto.CryptoChannel;
+import util.crypto.EcHandshake;
+import util.crypto.Framing;
+import util.crypto.Resumption;
+import util.crypto.cryptors.MessageCryptor;
+import util.crypto.cryptors.RSAMessageCryptor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event driven counterpart of the login and performing stage. The session is a state machine that is advanced
+ * by every message the client sends: first the handshake of {@link ServerHandshakePerformer}, afterwards the commands
+ * of the {@link ChatserverClientHandler}.
+ * <p>
+ * The RSA (or EC) part of the handshake is handed to the {@link HandshakeStage}, so the I/O thread keeps serving the
+ * other sessions meanwhile. Resumption requests need no RSA and are answered on the I/O thread.
+ * <p>
+ * Commands are decrypted on the I/O thread and executed on the worker pool, one at a time and in the order they
+ * arrived, since some of them wait for the nameserver.
+ */
+public class NonBlockingClientSession implements SessionHandler {
+
+    private static final Logger LOGGER = Logger.getLogger("NonBlockingClientSession");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    // commands received but not executed yet, the channel stops reading from a client sending more
+    private static final int MAX_PENDING_COMMANDS = 1024;
+
+    private enum State {
+        AWAIT_MESSAGE_1, PROCESSING_MESSAGE_1, AWAIT_MESSAGE_3, PERFORMING
+    }
+
+    private final NioCommunicationChannel channel;
+    private final UserRegistry userDB;
+    private final BroadcastEngine broadcast;
+    private final INameserverForChatserver nameserver;
+    private final ServerHandshakePerformer handshake;
+    private final HandshakeStage handshakes;
+    private final ScheduledFuture<?> handshakeTimeout;
+    private final Executor workers;
+    private final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // advanced by the handshake threads as well
+    private volatile State state = State.AWAIT_MESSAGE_1;
+    private volatile MessageCryptor sessionCryptor;
+    private ChatserverClientHandler clientHandler;
+
+    /**
+     * @param workers executes the commands of the client
+     */
+    public NonBlockingClientSession(NioCommunicationChannel channel, ServerHandshakeContext context, HandshakeStage handshakes, Executor workers, BroadcastEngine broadcast, INameserverForChatserver nameserver) {
+        this.channel = channel;
+        this.workers = workers;
+        this.userDB = context.getUsers();
+        this.broadcast = broadcast;
+        this.nameserver = nameserver;
+        this.handshakes = handshakes;
+        this.handshake = new ServerHandshakePerformer(context);
+        // like the blocking engine, which reads message 1 with this limit
+        channel.setMaxLineLength(context.getMaxLineLength());
+        this.handshakeTimeout = handshakes.scheduleTimeout(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (state == State.PERFORMING) {
+                    return false;
+                }
+                LOGGER.info("Handshake timed out in state " + state);
+                closeChannel();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void lineReceived(String line) throws TerminateSessionException {
+        this.messageReceived(line, null);
+    }
+
+    @Override
+    public void recordReceived(byte[] record) throws TerminateSessionException {
+        this.messageReceived(null, record);
+    }
+
+    /**
+     * @param line   the message in text framing, or null
+     * @param record the message in binary framing, or null
+     */
+    private void messageReceived(String line, byte[] record) throws TerminateSessionException {
+        try {
+            switch (this.state) {
+                case AWAIT_MESSAGE_1:
+                    if (line == null) {
+                        throw new TerminateSessionException("Message 1 has to be a line");
+                    }
+                    if (Resumption.isResume(line)) {
+                        // no RSA involved, answered right away
+                        this.answerResume(line);
+                        break;
+                    }
+                    final String msg1 = line;
+                    final boolean ec = EcHandshake.isHello(line);
+                    this.state = State.PROCESSING_MESSAGE_1;
+                    this.handshakes.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (ec) {
+                                    answerEcHello(msg1);
+                                } else {
+                                    answerMessage1(msg1);
+                                }
+                            } catch (HandshakeFailedException | BrokenMessageException | InvalidKeyException | IOException e) {
+                                LOGGER.log(Level.INFO, "Handshake failed", e);
+                                closeChannel();
+                            } catch (RuntimeException e) {
+                                // e.g. a message 1 that is no Base64, the client would otherwise wait for the timeout
+                                LOGGER.log(Level.WARNING, "Handshake failed unexpectedly", e);
+                                closeChannel();
+                            }
+                        }
+                    });
+                    break;
+
+                case PROCESSING_MESSAGE_1:
+                    throw new TerminateSessionException("Client sent data before message 2");
+
+                case AWAIT_MESSAGE_3:
+                    this.handshake.processMessage3(this.decrypt(line, record));
+                    if (this.handshake.isEcHandshake()) {
+                        this.sendTicket();
+                    }
+
+                    CommunicationChannel secureChannel = this.handshake.createSessionChannel(this.channel, this.sessionCryptor);
+                    UserData u = this.handshake.getLastLoggedIn();
+                    this.userDB.login(u, secureChannel);
+
+                    LOGGER.info("Successfully logged in user: " + u.getName());
+
+                    this.clientHandler = new ChatserverClientHandler("", secureChannel, u, this.userDB, this.broadcast, this.nameserver, this.workers);
+                    this.state = State.PERFORMING;
+                    this.handshakeTimeout.cancel(false);
+                    break;
+
+                case PERFORMING:
+                    // decrypted here, in the order the messages arrived
+                    this.commands.add(this.decrypt(line, record));
+                    if (this.commands.size() >= MAX_PENDING_COMMANDS) {
+                        this.channel.suspendReads();
+                        // the worker may have caught up before it could see the suspension
+                        if (this.commands.size() < MAX_PENDING_COMMANDS / 2) {
+                            this.channel.resumeReads();
+                        }
+                    }
+                    this.scheduleCommands();
+                    break;
+            }
+        } catch (HandshakeFailedException | BrokenMessageException | InvalidKeyException | IOException e) {
+            throw new TerminateSessionException(e);
+        }
+    }
+
+    /**
+     * Runs on the handshake threads: decrypts message 1 and sends message 2.
+     */
+    private void answerMessage1(String line) throws HandshakeFailedException, BrokenMessageException, InvalidKeyException, IOException {
+        RSAMessageCryptor rsaCryptor = this.handshake.createHandshakeCryptor();
+        MessageCryptor limited = this.handshake.limit(rsaCryptor);
+        String msg2 = this.handshake.processMessage1(limited.decrypt(line), rsaCryptor);
+
+        this.awaitMessage3();
+
+        OutputStreamWriter rsaWriter = new OutputStreamWriter(new CryptoChannel(this.channel, limited).getOutputStream());
+        rsaWriter.write(msg2 + "\n");
+        rsaWriter.flush();
+        this.sendTicket();
+    }
+
+    /**
+     * Runs on the handshake threads: answers the hello of an EC handshake. If the EC handshake is not possible the
+     * client is told so and message 1 is awaited.
+     */
+    private void answerEcHello(String line) throws InvalidKeyException, IOException {
+        String answer;
+        try {
+            answer = this.handshake.processEcHello(line);
+        } catch (HandshakeFailedException e) {
+            LOGGER.info("EC handshake failed: " + e.getMessage());
+            this.state = State.AWAIT_MESSAGE_1;
+            ServerHandshakePerformer.sendPlain(this.channel, EcHandshake.FAILED);
+            return;
+        }
+
+        // the ticket follows message 3, see ServerHandshakePerformer#isEcHandshake()
+        this.awaitMessage3();
+        ServerHandshakePerformer.sendPlain(this.channel, answer);
+    }
+
+    /**
+     * Answers a resumption request. If the ticket cannot be used the client is told so and message 1 is awaited.
+     */
+    private void answerResume(String line) throws InvalidKeyException, IOException {
+        String answer;
+        try {
+            answer = this.handshake.processResume(line);
+        } catch (HandshakeFailedException e) {
+            LOGGER.info("Resumption failed: " + e.getMessage());
+            ServerHandshakePerformer.sendPlain(this.channel, Resumption.RESUME_FAILED);
+            return;
+        }
+
+        this.awaitMessage3();
+        ServerHandshakePerformer.sendPlain(this.channel, answer);
+        this.sendTicket();
+    }
+
+    /**
+     * Message 3 may arrive as soon as the answer to message 1 left, so the session has to be ready before.
+     */
+    private void awaitMessage3() throws InvalidKeyException {
+        this.sessionCryptor = this.handshake.createSessionCryptor();
+        this.channel.setFraming(this.handshake.getFraming());
+        this.channel.setMaxLineLength(Framing.MAX_LINE_LENGTH);
+        this.state = State.AWAIT_MESSAGE_3;
+    }
+
+    private void sendTicket() throws IOException {
+        String ticket = this.handshake.createTicketMessage();
+        if (ticket != null) {
+            ServerHandshakePerformer.sendPlain(this.channel, ticket);
+        }
+    }
+
+    private void scheduleCommands() throws TerminateSessionException {
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runCommands();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                throw new TerminateSessionException("Chatserver is shutting down", e);
+            }
+        }
+    }
+
+    /**
+     * Runs on the worker pool: executes the queued commands, at most one task per session at any time.
+     */
+    private void runCommands() {
+        for (String command; (command = this.commands.poll()) != null; ) {
+            if (this.commands.size() < MAX_PENDING_COMMANDS / 2) {
+                this.channel.resumeReads();
+            }
+            try {
+                this.clientHandler.handleLine(command);
+            } catch (IOException e) {
+                LOGGER.log(Level.INFO, "Failed to answer command, closing session", e);
+                this.commands.clear();
+                this.closeChannel();
+            } finally {
+                // !logout closes the shell, which interrupts the current thread
+                Thread.interrupted();
+            }
+        }
+
+        this.scheduled.set(false);
+
+        // a command may have arrived after the last poll but before the flag was reset
+        if (!this.commands.isEmpty()) {
+            try {
+                this.scheduleCommands();
+            } catch (TerminateSessionException e) {
+                this.commands.clear();
+                this.closeChannel();
+            }
+        }
+    }
+
+    private String decrypt(String line, byte[] record) throws BrokenMessageException {
+        byte[] message = record != null ? this.sessionCryptor.decrypt(record) : CryptoChannel.decryptLine(this.sessionCryptor, line);
+        // UTF-8, like the LineReader of a blocking session
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    private void closeChannel() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close channel", e);
+        }
+    }
+
+    @Override
+    public void connectionClosed() {
+        this.handshakeTimeout.cancel(false);
+        this.commands.clear();
+        LOGGER.info("Session closed in state " + this.state);
+    }
+}
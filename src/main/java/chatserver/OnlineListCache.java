@@ -0,0 +1,85 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the UDP answer to {@code !list} as ready to send packets.
+ * <p>
+ * The packets are only encoded again if the presence version of the {@link UserRegistry} changed since they were
+ * built, so serving a request usually neither walks the user list nor allocates.
+ * <p>
+ * Packet format: every packet has the full packet size, the names (one per line) fill all but the last byte,
+ * which is set to the unit separator (31) if another packet follows.
+ */
+public class OnlineListCache {
+
+    public static final byte UNIT_SEPARATOR = 31;
+
+    private final UserRegistry registry;
+    private final int packetSize;
+
+    private volatile Snapshot snapshot = new Snapshot(-1, null);
+
+    public OnlineListCache(UserRegistry registry, int packetSize) {
+        this.registry = registry;
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * Returns the packets listing the online users. The arrays must not be modified.
+     *
+     * @return at least one packet
+     */
+    public byte[][] getPackets() {
+        long version = this.registry.getPresenceVersion();
+        Snapshot s = this.snapshot;
+        if (s.version != version) {
+            synchronized (this) {
+                s = this.snapshot;
+                if (s.version != version) {
+                    s = new Snapshot(version, this.encode());
+                    this.snapshot = s;
+                }
+            }
+        }
+        return s.packets;
+    }
+
+    private byte[][] encode() {
+        StringBuilder builder = new StringBuilder();
+        for (UserData d : this.registry.getOnline()) {
+            builder.append(d.getName());
+            builder.append("\n");
+        }
+        byte[] data = builder.toString().getBytes();
+
+        int payload = this.packetSize - 1;
+        List<byte[]> packets = new ArrayList<>();
+        int pos = 0;
+        do {
+            byte[] packet = new byte[this.packetSize];
+            int length = Math.min(payload, data.length - pos);
+            System.arraycopy(data, pos, packet, 0, length);
+            pos += length;
+
+            // tell the client another packet will follow
+            if (pos < data.length) {
+                packet[payload] = UNIT_SEPARATOR;
+            }
+            packets.add(packet);
+        } while (pos < data.length);
+
+        return packets.toArray(new byte[packets.size()][]);
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final byte[][] packets;
+
+        Snapshot(long version, byte[][] packets) {
+            this.version = version;
+            this.packets = packets;
+        }
+    }
+}
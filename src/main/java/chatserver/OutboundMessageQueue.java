@@ -0,0 +1,203 @@
+package chatserver;
+
+import util.CommunicationChannel;
+import util.crypto.CryptoChannel;
+import util.crypto.GroupKey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of lines waiting to be delivered to one user.
+ * <p>
+ * Senders only enqueue, the queue drains itself on the writer pool. At most one drain task per queue runs at any
+ * time, so the order of the lines is kept and a slow recipient only delays its own queue. Lines that do not fit
+ * into a full queue are dropped.
+ * <p>
+ * Lines to a {@link CryptoChannel} are sent with {@link CryptoChannel#send(String)}, so in binary framing they are
+ * encrypted into pooled buffers instead of going through the byte-wise output stream. Records sealed with a
+ * {@link GroupKey} are written as they are, the key itself is queued in front of the first record that needs it.
+ */
+public class OutboundMessageQueue implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger("OutboundMessageQueue");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final UserData user;
+    private final CommunicationChannel channel;
+    private final Executor writers;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private volatile long maxLatencyNanos = 0;
+
+    private volatile boolean closed = false;
+
+    // the epoch of the last group key queued for the user
+    private int groupEpoch = -1;
+
+    public OutboundMessageQueue(UserData user, CommunicationChannel channel, Executor writers, int capacity) {
+        this.user = user;
+        this.channel = channel;
+        this.writers = writers;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Queues a line for delivery. Never blocks.
+     *
+     * @param line the line (without line break)
+     * @return false if the line was dropped because the queue is full or closed
+     */
+    public boolean offer(String line) {
+        return this.offer(new Entry(line, null));
+    }
+
+    /**
+     * @return true if the session of the user takes group records
+     */
+    public boolean isGroupMember() {
+        return this.channel instanceof CryptoChannel && ((CryptoChannel) this.channel).hasGroupRecords();
+    }
+
+    /**
+     * Queues a record sealed with a group key for delivery. Never blocks. The record is shared with the other
+     * members and written unchanged.
+     *
+     * @param key    the key the record was sealed with
+     * @param record the record
+     * @return false if the record (or the key in front of it) was dropped
+     */
+    public synchronized boolean offer(GroupKey key, byte[] record) {
+        if (this.groupEpoch != key.getEpoch()) {
+            if (!this.offer(key.toLine())) {
+                return false;
+            }
+            this.groupEpoch = key.getEpoch();
+        }
+        return this.offer(new Entry(null, record));
+    }
+
+    private boolean offer(Entry entry) {
+        if (this.closed || !this.queue.offer(entry)) {
+            this.dropped.incrementAndGet();
+            LOGGER.fine("Dropped message for " + this.user.getName());
+            return false;
+        }
+        this.schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.writers.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        for (Entry e; !this.closed && (e = this.queue.poll()) != null; ) {
+            this.user.getLock().lock();
+            try {
+                if (e.record != null) {
+                    ((CryptoChannel) this.channel).sendGroupRecord(e.record);
+                } else if (this.channel instanceof CryptoChannel) {
+                    ((CryptoChannel) this.channel).send(e.line);
+                } else {
+                    OutputStream os = this.channel.getOutputStream();
+                    os.write((e.line + "\n").getBytes());
+                    os.flush();
+                }
+            } catch (IOException ex) {
+                LOGGER.warning("Failed to send message to " + this.user.getName() + " (channel: " + this.channel + ")");
+                this.failed.incrementAndGet();
+                continue;
+            } finally {
+                this.user.getLock().unlock();
+            }
+
+            long latency = System.nanoTime() - e.enqueued;
+            this.delivered.incrementAndGet();
+            this.totalLatencyNanos.addAndGet(latency);
+            if (latency > this.maxLatencyNanos) {
+                this.maxLatencyNanos = latency;
+            }
+        }
+
+        this.scheduled.set(false);
+
+        // somebody may have added a line after the last poll but before the flag was reset
+        if (!this.closed && !this.queue.isEmpty()) {
+            this.schedule();
+        }
+    }
+
+    /**
+     * Stops the delivery, lines still in the queue are discarded.
+     */
+    public void close() {
+        this.closed = true;
+        this.dropped.addAndGet(this.queue.size());
+        this.queue.clear();
+    }
+
+    public int getDepth() {
+        return this.queue.size();
+    }
+
+    public long getDelivered() {
+        return this.delivered.get();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return the number of lines that could not be written, they count neither as delivered nor into the latency
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the average time between enqueueing and writing a line in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = this.delivered.get();
+        return count == 0 ? 0 : this.totalLatencyNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return the highest time between enqueueing and writing a line in milliseconds
+     */
+    public double getMaxLatencyMillis() {
+        return this.maxLatencyNanos / 1e6;
+    }
+
+    private static class Entry {
+        private final String line;
+        private final byte[] record;
+        private final long enqueued;
+
+        Entry(String line, byte[] record) {
+            this.line = line;
+            this.record = record;
+            this.enqueued = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package chatserver;
+
+import util.Keys;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the public keys of the users ({@code <username>.pub.pem} in the key directory) in memory.
+ * <p>
+ * All keys are parsed in parallel by {@link #start()}. Afterwards a {@link WatchService} keeps the cache in sync with
+ * the directory, so looking up a key during a login never touches the disk.
+ */
+public class PublicKeyCache {
+
+    private static final Logger LOGGER = Logger.getLogger("PublicKeyCache");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final String SUFFIX = ".pub.pem";
+
+    private final File dir;
+    private final ConcurrentMap<String, PublicKey> keys = new ConcurrentHashMap<>();
+    private WatchService watcher;
+
+    public PublicKeyCache(String dir) {
+        this.dir = new File(dir);
+    }
+
+    /**
+     * Loads all keys and starts watching the directory for changes.
+     */
+    public void start() {
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+            this.dir.toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to watch key directory " + this.dir + ", changes will not be noticed", e);
+            this.watcher = null;
+        }
+
+        // register before loading, so no change gets lost in between
+        this.loadAll();
+
+        if (this.watcher != null) {
+            Thread t = new Thread(new Watcher(), "PublicKeyCache");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            if (this.watcher != null) {
+                this.watcher.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close key directory watcher");
+        }
+    }
+
+    /**
+     * @param username the name of the user
+     * @return the public key of the user or null if there is none
+     */
+    public PublicKey get(String username) {
+        return this.keys.get(username);
+    }
+
+    /**
+     * @return the number of keys in the cache
+     */
+    public int size() {
+        return this.keys.size();
+    }
+
+    private void loadAll() {
+        File[] files = this.dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            LOGGER.warning("Cannot list key directory " + this.dir);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final File f : files) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    load(f);
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+
+        LOGGER.info("Loaded " + this.keys.size() + " public keys from " + this.dir);
+    }
+
+    private void load(File f) {
+        String username = f.getName().substring(0, f.getName().length() - SUFFIX.length());
+        try {
+            PublicKey key = Keys.readPublicPEM(f);
+            if (key != null) {
+                this.keys.put(username, key);
+            } else {
+                LOGGER.info("Public key " + f + " is empty");
+            }
+        } catch (IOException | ClassCastException e) {
+            // the file might still be written, the next modify event loads it again
+            LOGGER.log(Level.WARNING, "Failed to read public key " + f, e);
+        }
+    }
+
+    private class Watcher implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    break;
+                }
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events got lost, start over (without emptying the cache, logins go on meanwhile)
+                        loadAll();
+                        for (String username : keys.keySet()) {
+                            if (!new File(dir, username + SUFFIX).exists()) {
+                                keys.remove(username);
+                            }
+                        }
+                        continue;
+                    }
+
+                    String name = ((Path) event.context()).getFileName().toString();
+                    if (!name.endsWith(SUFFIX)) {
+                        continue;
+                    }
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        LOGGER.info("Removed public key " + name);
+                        keys.remove(name.substring(0, name.length() - SUFFIX.length()));
+                    } else {
+                        LOGGER.info("Reloading public key " + name);
+                        load(new File(dir, name));
+                    }
+                }
+
+                if (!key.reset()) {
+                    LOGGER.warning("Key directory " + dir + " is no longer accessible");
+                    break;
+                }
+            }
+
+            LOGGER.info("Stopped watching " + dir);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package chatserver;
+
+import util.crypto.KeyMaterialPool;
+
+import java.security.Key;
+import java.security.PrivateKey;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Everything the server side of a handshake needs that is shared by all handshakes.
+ */
+public class ServerHandshakeContext {
+
+    private final Key serverPrivateKey;
+    private final PrivateKey serverEcKey;
+    private final UserRegistry users;
+    private final PublicKeyCache clientKeys;
+    private final PublicKeyCache ecClientKeys;
+    private final KeyMaterialPool keyMaterial;
+    private final Semaphore rsaPermits;
+    private final Set<String> features;
+    private final TicketIssuer tickets;
+    private final int maxLineLength;
+
+    /**
+     * @param serverPrivateKey the private key of the chatserver
+     * @param serverEcKey      the private EC key of the chatserver, null if there is none
+     * @param users            the known users
+     * @param clientKeys       the public keys of the users
+     * @param ecClientKeys     the public EC keys of the users
+     * @param keyMaterial      the source of challenges, session keys and IVs
+     * @param rsaPermits       every RSA operation acquires one of these permits, null for no limit
+     * @param features         the {@link util.HandshakeFeatures} the server accepts
+     * @param tickets          issues and checks the resumption tickets
+     * @param maxLineLength    the longest line (in bytes) accepted before the session is encrypted
+     */
+    public ServerHandshakeContext(Key serverPrivateKey, PrivateKey serverEcKey, UserRegistry users,
+                                  PublicKeyCache clientKeys, PublicKeyCache ecClientKeys, KeyMaterialPool keyMaterial,
+                                  Semaphore rsaPermits, Set<String> features, TicketIssuer tickets,
+                                  int maxLineLength) {
+        this.serverPrivateKey = serverPrivateKey;
+        this.serverEcKey = serverEcKey;
+        this.users = users;
+        this.clientKeys = clientKeys;
+        this.ecClientKeys = ecClientKeys;
+        this.keyMaterial = keyMaterial;
+        this.rsaPermits = rsaPermits;
+        this.features = features;
+        this.tickets = tickets;
+        this.maxLineLength = maxLineLength;
+    }
+
+    public Key getServerPrivateKey() {
+        return this.serverPrivateKey;
+    }
+
+    public PrivateKey getServerEcKey() {
+        return this.serverEcKey;
+    }
+
+    public UserRegistry getUsers() {
+        return this.users;
+    }
+
+    public PublicKeyCache getClientKeys() {
+        return this.clientKeys;
+    }
+
+    public PublicKeyCache getEcClientKeys() {
+        return this.ecClientKeys;
+    }
+
+    public KeyMaterialPool getKeyMaterial() {
+        return this.keyMaterial;
+    }
+
+    public Semaphore getRsaPermits() {
+        return this.rsaPermits;
+    }
+
+    public Set<String> getFeatures() {
+        return this.features;
+    }
+
+    public TicketIssuer getTickets() {
+        return this.tickets;
+    }
+
+    /**
+     * @return the longest line (in bytes) accepted before the session is encrypted, lines of the encrypted session
+     * are bounded by {@link util.crypto.Framing#MAX_LINE_LENGTH}
+     */
+    public int getMaxLineLength() {
+        return this.maxLineLength;
+    }
+}
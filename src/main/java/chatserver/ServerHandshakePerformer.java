@@ -3,19 +3,29 @@ package chatserver;
 import org.bouncycastle.util.encoders.Base64;
 import util.*;
 import util.crypto.CryptoChannel;
+import util.crypto.EcHandshake;
+import util.crypto.EllipticCurves;
+import util.crypto.Framing;
+import util.crypto.KeyDerivation;
+import util.crypto.Resumption;
+import util.crypto.cryptors.AESGCMMessageCryptor;
 import util.crypto.cryptors.AESMessageCryptor;
+import util.crypto.cryptors.CompressingMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
 import util.crypto.cryptors.RSAMessageCryptor;
+import util.crypto.cryptors.ThrottledMessageCryptor;
 
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.List;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 
@@ -23,146 +33,474 @@ public class ServerHandshakePerformer implements HandshakePerformer {
 
     private static final Logger logger = Logger.getLogger("ServerHandshakePerformer");
 
-    private Key serverPrivateKey;
-    private List<UserData> userDataList;
-    private String clientKeyDir;
+    private final ServerHandshakeContext context;
+    private final HandshakeStage stage;
+
+    private UserData pendingUser = null;
+    private String serverChallengeB64 = null;
+    private byte[] sessionKey = null, sessionIv = null;
+    private Set<String> features = Collections.emptySet();
+    private String ecTranscript = null;
+    private PublicKey ecClientKey = null;
 
     private UserData lastLoggedIn = null;
 
-    public ServerHandshakePerformer(Key serverPrivateKey, List<UserData> userDataList, String clientKeyDir) {
-        this.serverPrivateKey = serverPrivateKey;
-        this.userDataList = userDataList;
-        this.clientKeyDir = clientKeyDir;
+    public ServerHandshakePerformer(ServerHandshakeContext context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context the state shared by all handshakes
+     * @param stage   runs the RSA and EC operations of {@link #execute(CommunicationChannel)}, null to run them on the
+     *                calling thread
+     */
+    public ServerHandshakePerformer(ServerHandshakeContext context, HandshakeStage stage) {
+        this.context = context;
+        this.stage = stage;
     }
 
     @Override
-    public CommunicationChannel execute(CommunicationChannel start) throws HandshakeFailedException {
+    public CommunicationChannel execute(final CommunicationChannel start) throws HandshakeFailedException {
         logger.info("Starting handshake on: " + start.toString());
 
         try {
-            // Message 1
-            // prepare channel
-            RSAMessageCryptor rsaCryptor = new RSAMessageCryptor(null, this.serverPrivateKey); // needed to set clients public key later
-            CommunicationChannel rsaChannel = new CryptoChannel(start, rsaCryptor);
-
-            // recieve
-            // BufferedReader reader = new BufferedReader(new InputStreamReader(rsaChannel.getInputStream()));
-            LineReader reader = new LineReader(rsaChannel.getInputStream());
+            // Message 1 (or a resumption request or EC hello, which are not encrypted)
+            LineReader reader = new LineReader(start.getInputStream(), this.context.getMaxLineLength());
 
             logger.info("Waiting for message 1 ...");
             String msg1 = reader.readLine();
-            logger.info("Client sent (message 1): " + msg1);
 
-            if (msg1 == null) {
-                throw new HandshakeFailedException("Client sent empty message");
+            String answer = null;
+            if (msg1 != null && Resumption.isResume(msg1)) {
+                try {
+                    answer = this.processResume(msg1);
+                } catch (HandshakeFailedException e) {
+                    // the client falls back to the full handshake
+                    logger.info("Resumption failed: " + e.getMessage());
+                    sendPlain(start, Resumption.RESUME_FAILED);
+                    msg1 = reader.readLine();
+                }
+            }
+            if (answer == null && msg1 != null && EcHandshake.isHello(msg1)) {
+                final String hello = msg1;
+                answer = this.compute(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            return processEcHello(hello);
+                        } catch (HandshakeFailedException e) {
+                            logger.info("EC handshake failed: " + e.getMessage());
+                            return null;
+                        }
+                    }
+                });
+                if (answer == null) {
+                    sendPlain(start, EcHandshake.FAILED);
+                    msg1 = reader.readLine();
+                }
             }
 
-            // split and check message integrity
-            String[] msg1Split = msg1.split(" ");
-            if (msg1Split.length != 3) {
-                throw new HandshakeFailedException("Message 1 has incorrect length. (msg: \"" + msg1 + "\")");
+            if (answer != null) {
+                sendPlain(start, answer);
+            } else {
+                // Message 2
+                final String request = msg1;
+                this.compute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // prepare channel
+                        RSAMessageCryptor rsaCryptor = createHandshakeCryptor();
+                        MessageCryptor limited = limit(rsaCryptor);
+                        String msg2 = processMessage1(request != null ? limited.decrypt(request) : null, rsaCryptor) + "\n";
+
+                        logger.info("Sending message: " + msg2);
+
+                        // send
+                        OutputStreamWriter rsaWriter = new OutputStreamWriter(new CryptoChannel(start, limited).getOutputStream());
+                        rsaWriter.write(msg2);
+                        rsaWriter.flush();
+                        return null;
+                    }
+                });
+
+                logger.info("Sent message!");
             }
-            if (!msg1Split[0].equals("!authenticate")) {
-                throw new HandshakeFailedException("Client does not want to login. '!authenticate' expected (msg: \"" + msg1 + "\")");
+
+            if (!this.isEcHandshake()) {
+                this.sendTicket(start);
             }
 
-            String username = msg1Split[1];
-            String clientChallenge = msg1Split[2];
+            // Message 3
+            // initialize AES channel
+            CommunicationChannel aesChannel = this.createSessionChannel(start, this.createSessionCryptor());
 
-            // find user
-            logger.info("Looking for user '" + username + "' ...");
-            UserData user = findUserByName(username);
-            if (user == null) {
-                logger.info("Cannot find user: " + username);
-                throw new HandshakeFailedException("Cannot find user");
+            logger.info("Waiting for message 3...");
+
+            // read server challenge from the new channel
+            LineReader aesReader = new LineReader(aesChannel.getInputStream());
+            final String msg3 = aesReader.readLine();
+            if (this.isEcHandshake()) {
+                // verifying the signature of the client is the expensive part of an EC handshake
+                this.compute(new Callable<Void>() {
+                    @Override
+                    public Void call() throws HandshakeFailedException {
+                        processMessage3(msg3);
+                        return null;
+                    }
+                });
+                this.sendTicket(start);
+            } else {
+                this.processMessage3(msg3);
             }
 
-            // use users public key to respond
-            File keyFile = getPublicKeyFileForUser(username);
-            if (keyFile == null) {
-                logger.info("Cannot find user public key!");
-                throw new HandshakeFailedException("Cannot find user public key");
+            return aesChannel;
+        } catch (InvalidKeyException | IOException e) {
+            throw new HandshakeFailedException(e);
+        }
+    }
+
+    /**
+     * Runs a CPU bound step of the handshake on the {@link HandshakeStage}, or right away if there is none. The
+     * calling thread waits for the step, reading from the client stays on the calling thread.
+     */
+    private <T> T compute(Callable<T> step) throws HandshakeFailedException {
+        if (this.stage == null) {
+            try {
+                return step.call();
+            } catch (HandshakeFailedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new HandshakeFailedException(e);
+            }
+        }
+
+        try {
+            return this.stage.execute(step);
+        } catch (TerminateSessionException e) {
+            if (e.getCause() instanceof HandshakeFailedException) {
+                throw (HandshakeFailedException) e.getCause();
             }
-            Key clientPubKey = Keys.readPublicPEM(keyFile);
-            rsaCryptor.setEncryptionKey(clientPubKey);
+            throw new HandshakeFailedException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
 
+    private void sendTicket(CommunicationChannel start) throws IOException {
+        String ticket = this.createTicketMessage();
+        if (ticket != null) {
+            sendPlain(start, ticket);
+        }
+    }
 
-            logger.info("Prepare for sending message 2");
+    /**
+     * Sends an unencrypted handshake line.
+     */
+    static void sendPlain(CommunicationChannel channel, String line) throws IOException {
+        OutputStream out = channel.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
 
-            // Message 2
-            SecureRandom secureRandom = new SecureRandom();
-            byte[] serverChallenge = new byte[32];
-            secureRandom.nextBytes(serverChallenge);
-            String serverChallengeEncodedB64 = new String(Base64.encode(serverChallenge));
+    /**
+     * Creates the cryptor used for message 1 and 2. The encryption key (the clients public key) is set by
+     * {@link #processMessage1(String, RSAMessageCryptor)}.
+     *
+     * @return a new cryptor decrypting with the servers private key
+     */
+    public RSAMessageCryptor createHandshakeCryptor() {
+        return new RSAMessageCryptor(null, this.context.getServerPrivateKey());
+    }
 
-            KeyGenerator aesGenerator = KeyGenerator.getInstance("AES");
-            aesGenerator.init(256);
-            SecretKey key = aesGenerator.generateKey();
-            byte[] keyEncoded = key.getEncoded();
-            String keyEncodedB64 = new String(Base64.encode(keyEncoded));
+    /**
+     * Applies the RSA limit of this handshake to the given cryptor.
+     *
+     * @param rsaCryptor the cryptor of the handshake
+     * @return a cryptor that waits for a permit before each operation
+     */
+    public MessageCryptor limit(RSAMessageCryptor rsaCryptor) {
+        if (this.context.getRsaPermits() == null) {
+            return rsaCryptor;
+        }
+        return new ThrottledMessageCryptor(rsaCryptor, this.context.getRsaPermits());
+    }
 
-            byte[] iv = new byte[16];
-            secureRandom.nextBytes(iv);
-            String ivEncodedB64 = new String(Base64.encode(iv));
+    /**
+     * Checks the (already decrypted) message 1 of the client and compiles the answer.
+     *
+     * @param msg1       the plaintext of message 1
+     * @param rsaCryptor the cryptor of the handshake, its encryption key gets set to the clients public key
+     * @return the plaintext of message 2 (without line break)
+     */
+    public String processMessage1(String msg1, RSAMessageCryptor rsaCryptor) throws HandshakeFailedException {
+        logger.info("Client sent (message 1): " + msg1);
+
+        if (msg1 == null) {
+            throw new HandshakeFailedException("Client sent empty message");
+        }
 
-            // compile
-            String msg2 = "!ok " + clientChallenge + " " + serverChallengeEncodedB64 + " " + keyEncodedB64 + " " + ivEncodedB64 + "\n";
+        // split and check message integrity (the features are optional)
+        String[] msg1Split = msg1.split(" ");
+        if (msg1Split.length != 3 && msg1Split.length != 4) {
+            throw new HandshakeFailedException("Message 1 has incorrect length. (msg: \"" + msg1 + "\")");
+        }
+        if (!msg1Split[0].equals("!authenticate")) {
+            throw new HandshakeFailedException("Client does not want to login. '!authenticate' expected (msg: \"" + msg1 + "\")");
+        }
 
-            logger.info("Sending message: " + msg2);
+        String username = msg1Split[1];
+        String clientChallenge = msg1Split[2];
+        Set<String> offered = HandshakeFeatures.parse(msg1Split.length == 4 ? msg1Split[3] : null);
 
-            // send
-            OutputStreamWriter rsaWriter = new OutputStreamWriter(rsaChannel.getOutputStream());
-            rsaWriter.write(msg2);
-            rsaWriter.flush();
+        // find user
+        logger.info("Looking for user '" + username + "' ...");
+        UserData user = findUserByName(username);
+        if (user == null) {
+            logger.info("Cannot find user: " + username);
+            throw new HandshakeFailedException("Cannot find user");
+        }
 
-            logger.info("Sent message!");
+        // use users public key to respond
+        Key clientPubKey = this.context.getClientKeys().get(username);
+        if (clientPubKey == null) {
+            logger.info("Cannot find user public key!");
+            throw new HandshakeFailedException("Cannot find user public key");
+        }
+        rsaCryptor.setEncryptionKey(clientPubKey);
 
-            // Message 3
-            // initialize AES channel
-            CommunicationChannel aesChannel = new CryptoChannel(start, new AESMessageCryptor(iv, keyEncoded));
+        logger.info("Prepare for sending message 2");
 
-            logger.info("Waiting for message 3...");
+        // Message 2
+        // the random material is generated ahead of time
+        this.serverChallengeB64 = new String(Base64.encode(this.context.getKeyMaterial().takeChallenge()));
 
-            // read server challenge from the new channel
-            LineReader aesReader = new LineReader(aesChannel.getInputStream());
-            String serverChallengeResponse = aesReader.readLine();
-            if (serverChallengeResponse == null || !serverChallengeEncodedB64.equals(serverChallengeResponse)) {
-                throw new HandshakeFailedException("Server Challenge was not returned correctly. (Got: " + serverChallengeResponse + ")");
-            }
+        this.sessionKey = this.context.getKeyMaterial().takeAesKey();
+        String keyEncodedB64 = new String(Base64.encode(this.sessionKey));
 
-            logger.info("Finished handshake!");
+        this.sessionIv = this.context.getKeyMaterial().takeIv();
+        String ivEncodedB64 = new String(Base64.encode(this.sessionIv));
 
-            this.lastLoggedIn = user;
+        this.pendingUser = user;
+        this.features = HandshakeFeatures.negotiate(offered, this.context.getFeatures());
 
-            return aesChannel;
-        } catch (InvalidKeyException | IOException e) {
-            throw new HandshakeFailedException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError(e);
+        // compile
+        String msg2 = "!ok " + clientChallenge + " " + this.serverChallengeB64 + " " + keyEncodedB64 + " " + ivEncodedB64;
+        if (!this.features.isEmpty()) {
+            msg2 += " " + HandshakeFeatures.format(this.features);
         }
+        return msg2;
     }
 
-    public UserData getLastLoggedIn() {
-        return lastLoggedIn;
+    /**
+     * Checks a resumption request the client sent instead of message 1 and compiles the answer. On success the
+     * handshake continues with message 3, just like after {@link #processMessage1(String, RSAMessageCryptor)}.
+     *
+     * @param request the resumption request, see {@link Resumption}
+     * @return the answer (without line break)
+     * @throws HandshakeFailedException if the ticket cannot be used, the client sends message 1 afterwards
+     */
+    public String processResume(String request) throws HandshakeFailedException {
+        String[] split = request.split(" ");
+        if (split.length != 3 && split.length != 4) {
+            throw new HandshakeFailedException("Resumption request has incorrect length");
+        }
+        if (!this.context.getFeatures().contains(HandshakeFeatures.RESUMPTION)) {
+            throw new HandshakeFailedException("Resumption is disabled");
+        }
+
+        TicketIssuer.Ticket ticket;
+        try {
+            ticket = this.context.getTickets().open(Base64.decode(split[1]));
+        } catch (RuntimeException e) {
+            // the decoder of this Bouncy Castle version has no checked exception for bad input
+            throw new HandshakeFailedException("Ticket is not Base64");
+        }
+        if (ticket == null) {
+            throw new HandshakeFailedException("Unknown or expired ticket");
+        }
+        UserData user = findUserByName(ticket.getUsername());
+        if (user == null) {
+            throw new HandshakeFailedException("Cannot find user");
+        }
+
+        String clientChallenge = split[2];
+        Set<String> offered = HandshakeFeatures.parse(split.length == 4 ? split[3] : null);
+
+        // the session keys are derived from the secret of the ticket, no RSA involved
+        this.serverChallengeB64 = new String(Base64.encode(this.context.getKeyMaterial().takeChallenge()));
+        this.sessionKey = KeyDerivation.deriveKey(ticket.getSecret(), clientChallenge, this.serverChallengeB64);
+        this.sessionIv = KeyDerivation.deriveIv(ticket.getSecret(), clientChallenge, this.serverChallengeB64);
+
+        this.pendingUser = user;
+        this.features = HandshakeFeatures.negotiate(offered, this.context.getFeatures());
+
+        String features = HandshakeFeatures.format(this.features);
+        String proof = new String(Base64.encode(Resumption.proof(ticket.getSecret(), clientChallenge, this.serverChallengeB64, features)));
+
+        String answer = Resumption.RESUMED + " " + this.serverChallengeB64 + " " + proof;
+        if (!features.isEmpty()) {
+            answer += " " + features;
+        }
+        return answer;
     }
 
-    private UserData findUserByName(String name) {
-        synchronized (this.userDataList) {
-            for (UserData u : this.userDataList) {
-                synchronized (u) {
-                    if (u.getName().equals(name)) {
-                        return u;
-                    }
-                }
+    /**
+     * Checks the hello of an EC handshake the client sent instead of message 1 and compiles the answer. On success
+     * the handshake continues with message 3, which carries the signature of the client.
+     *
+     * @param hello the hello, see {@link EcHandshake}
+     * @return the answer (without line break)
+     * @throws HandshakeFailedException if the EC handshake is not possible, the client sends message 1 afterwards
+     */
+    public String processEcHello(String hello) throws HandshakeFailedException {
+        String[] split = hello.split(" ");
+        if (split.length != 3 && split.length != 4) {
+            throw new HandshakeFailedException("EC hello has incorrect length");
+        }
+        if (!this.context.getFeatures().contains(HandshakeFeatures.EC_HANDSHAKE) || this.context.getServerEcKey() == null) {
+            throw new HandshakeFailedException("EC handshake is disabled");
+        }
+
+        String username = split[1];
+        String clientEphemeral = split[2];
+        Set<String> offered = HandshakeFeatures.parse(split.length == 4 ? split[3] : null);
+
+        UserData user = findUserByName(username);
+        if (user == null) {
+            throw new HandshakeFailedException("Cannot find user");
+        }
+        PublicKey clientKey = this.context.getEcClientKeys().get(username);
+        if (clientKey == null) {
+            throw new HandshakeFailedException("Cannot find user EC key");
+        }
+
+        try {
+            KeyPair serverEphemeral = this.context.getKeyMaterial().takeEcKeyPair();
+            String serverEphemeralB64 = EllipticCurves.encode(serverEphemeral.getPublic());
+            byte[] shared = EllipticCurves.agree(serverEphemeral.getPrivate(), EllipticCurves.decode(clientEphemeral));
+
+            this.features = HandshakeFeatures.negotiate(offered, this.context.getFeatures());
+            String features = HandshakeFeatures.format(this.features);
+            this.ecTranscript = EcHandshake.transcript(username, clientEphemeral, serverEphemeralB64, features);
+            this.ecClientKey = clientKey;
+
+            this.sessionKey = KeyDerivation.deriveKey(shared, clientEphemeral, serverEphemeralB64);
+            this.sessionIv = KeyDerivation.deriveIv(shared, clientEphemeral, serverEphemeralB64);
+            // tickets are derived from the challenge of the chatserver, here its ephemeral key
+            this.serverChallengeB64 = serverEphemeralB64;
+            this.pendingUser = user;
+
+            byte[] signature = EllipticCurves.sign(this.context.getServerEcKey(), EcHandshake.signedByServer(this.ecTranscript));
+
+            String answer = EcHandshake.OK + " " + serverEphemeralB64 + " " + new String(Base64.encode(signature));
+            if (!features.isEmpty()) {
+                answer += " " + features;
             }
+            return answer;
+        } catch (InvalidKeyException e) {
+            throw new HandshakeFailedException(e);
         }
-        return null;
     }
 
-    private File getPublicKeyFileForUser(String username) {
-        File f = new File(this.clientKeyDir + "/" + username + ".pub.pem");
-        if (!f.exists())
+    /**
+     * @return the line with a new resumption ticket, sent right after message 2 (or the resumption answer), after an EC
+     * handshake only once message 3 was verified; null if resumption was not negotiated
+     */
+    public String createTicketMessage() {
+        if (!this.features.contains(HandshakeFeatures.RESUMPTION)) {
             return null;
-        return f;
+        }
+        byte[] secret = Resumption.deriveSecret(this.sessionKey, this.serverChallengeB64);
+        byte[] ticket = this.context.getTickets().issue(this.pendingUser.getName(), secret);
+        return Resumption.TICKET + " " + new String(Base64.encode(ticket));
+    }
+
+    /**
+     * @return true if the session was negotiated with an EC hello. Anybody can start one in the name of a user, so the
+     * ticket is only handed out once the signature in message 3 was verified.
+     */
+    public boolean isEcHandshake() {
+        return this.ecTranscript != null;
+    }
+
+    /**
+     * @return the features negotiated in message 1 and 2
+     */
+    public Set<String> getFeatures() {
+        return this.features;
+    }
+
+    /**
+     * @return the framing of the session, valid once message 1 was processed
+     */
+    public Framing getFraming() {
+        return this.features.contains(HandshakeFeatures.BINARY_FRAMING) ? Framing.BINARY : Framing.TEXT;
+    }
+
+    /**
+     * Creates the cryptor for the session negotiated in message 2.
+     *
+     * @return the AES cryptor used from message 3 on
+     */
+    public MessageCryptor createSessionCryptor() throws InvalidKeyException {
+        if (this.sessionKey == null) {
+            throw new IllegalStateException("Message 1 has not been processed yet");
+        }
+        MessageCryptor cryptor = this.features.contains(HandshakeFeatures.AES_GCM)
+                ? new AESGCMMessageCryptor(this.sessionIv, this.sessionKey, true)
+                : new AESMessageCryptor(this.sessionIv, this.sessionKey, true);
+        if (this.features.contains(HandshakeFeatures.COMPRESSION)) {
+            cryptor = new CompressingMessageCryptor(cryptor);
+        }
+        return cryptor;
+    }
+
+    /**
+     * @param parent  the connection to the client
+     * @param cryptor the cryptor returned by {@link #createSessionCryptor()}
+     * @return the secure channel of the session, set up as negotiated
+     */
+    public CryptoChannel createSessionChannel(CommunicationChannel parent, MessageCryptor cryptor) throws InvalidKeyException {
+        CryptoChannel channel = new CryptoChannel(parent, cryptor, this.getFraming());
+        channel.setGroupRecords(this.features.contains(HandshakeFeatures.GROUP_BROADCAST));
+        return channel;
+    }
+
+    /**
+     * Checks the (already decrypted) message 3 of the client. If the server challenge was returned correctly (or, after
+     * an EC handshake, the signature of the client is valid) the handshake is finished and the user can be fetched using {@link #getLastLoggedIn()}.
+     *
+     * @param serverChallengeResponse the plaintext of message 3
+     */
+    public void processMessage3(String serverChallengeResponse) throws HandshakeFailedException {
+        if (this.ecTranscript != null) {
+            // EC handshake: message 3 is the signature of the client
+            this.verifyClientSignature(serverChallengeResponse);
+        } else if (serverChallengeResponse == null || !serverChallengeResponse.equals(this.serverChallengeB64)) {
+            throw new HandshakeFailedException("Server Challenge was not returned correctly. (Got: " + serverChallengeResponse + ")");
+        }
+
+        logger.info("Finished handshake!");
+
+        this.lastLoggedIn = this.pendingUser;
+    }
+
+    private void verifyClientSignature(String signatureB64) throws HandshakeFailedException {
+        boolean valid;
+        try {
+            valid = signatureB64 != null
+                    && EllipticCurves.verify(this.ecClientKey, EcHandshake.signedByClient(this.ecTranscript), Base64.decode(signatureB64));
+        } catch (InvalidKeyException | RuntimeException e) {
+            valid = false;
+        }
+        if (!valid) {
+            throw new HandshakeFailedException("Client signature is invalid");
+        }
+    }
+
+    public UserData getLastLoggedIn() {
+        return lastLoggedIn;
+    }
+
+    private UserData findUserByName(String name) {
+        return this.context.getUsers().find(name);
     }
 }
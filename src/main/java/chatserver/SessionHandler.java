@@ -0,0 +1,31 @@
+package chatserver;
+
+/**
+ * A {@link SessionHandler} handles a client connection in an event driven way.
+ * Instead of reading from a stream, every line the client sends is pushed into the handler.
+ */
+public interface SessionHandler {
+
+    /**
+     * Gets called for every complete line (without the line break) received from the client.
+     * This method is called from an I/O thread and must not block.
+     *
+     * @param line the raw line as sent by the client
+     * @throws TerminateSessionException in case the session should be terminated
+     */
+    void lineReceived(String line) throws TerminateSessionException;
+
+    /**
+     * Gets called for every complete record (without the length header) once the channel switched to
+     * {@link util.crypto.Framing#BINARY}. This method is called from an I/O thread and must not block.
+     *
+     * @param record the raw record as sent by the client
+     * @throws TerminateSessionException in case the session should be terminated
+     */
+    void recordReceived(byte[] record) throws TerminateSessionException;
+
+    /**
+     * Gets called once after the connection to the client is closed.
+     */
+    void connectionClosed();
+}
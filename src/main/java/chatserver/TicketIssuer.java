@@ -0,0 +1,182 @@
+package chatserver;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Issues and opens the resumption tickets of {@link util.crypto.Resumption}.
+ * <p>
+ * A ticket is the user, the secret and the expiry date, encrypted with AES-GCM under a key only the chatserver knows.
+ * Nothing is stored per ticket, so tickets stay valid across restarts as long as the ticket key does not change.
+ */
+public class TicketIssuer {
+
+    private static final Logger LOGGER = Logger.getLogger("TicketIssuer");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    private final SecretKeySpec key;
+    private final long lifetimeMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param ticketKey      the secret the ticket key is derived from, null for a random one (tickets are lost on restart)
+     * @param lifetimeMillis how long a ticket can be used
+     */
+    public TicketIssuer(Key ticketKey, long lifetimeMillis) {
+        byte[] material;
+        if (ticketKey != null) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(ticketKey.getEncoded(), "HmacSHA256"));
+                material = mac.doFinal("ticket".getBytes(StandardCharsets.US_ASCII));
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        } else {
+            material = new byte[32];
+            this.random.nextBytes(material);
+        }
+        this.key = new SecretKeySpec(material, "AES");
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * @param username the user the ticket is bound to
+     * @param secret   the secret of the ticket
+     * @return the ticket
+     */
+    public byte[] issue(String username, byte[] secret) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = ByteBuffer.allocate(8 + 1 + secret.length + name.length);
+        plain.putLong(System.currentTimeMillis() + this.lifetimeMillis);
+        plain.put((byte) secret.length).put(secret).put(name);
+        plain.flip();
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+
+        ByteBuffer ticket = ByteBuffer.allocate(NONCE_LENGTH + plain.remaining() + TAG_LENGTH);
+        ticket.put(nonce);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.doFinal(plain, ticket);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+        this.issued.incrementAndGet();
+        return ticket.array();
+    }
+
+    /**
+     * @param ticket a ticket presented by a client
+     * @return the content of the ticket, null if it is unknown (e.g. issued with another key) or expired
+     */
+    public Ticket open(byte[] ticket) {
+        if (ticket.length < NONCE_LENGTH + TAG_LENGTH + 9) {
+            this.rejected.incrementAndGet();
+            return null;
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate(ticket.length - NONCE_LENGTH - TAG_LENGTH);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH * 8, ticket, 0, NONCE_LENGTH));
+            cipher.doFinal(ByteBuffer.wrap(ticket, NONCE_LENGTH, ticket.length - NONCE_LENGTH), plain);
+        } catch (AEADBadTagException e) {
+            LOGGER.info("Unknown ticket");
+            this.rejected.incrementAndGet();
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+        plain.flip();
+
+        long expiry = plain.getLong();
+        byte[] secret = new byte[plain.get() & 0xff];
+        if (expiry < System.currentTimeMillis() || secret.length > plain.remaining()) {
+            LOGGER.info("Expired ticket");
+            this.rejected.incrementAndGet();
+            return null;
+        }
+        plain.get(secret);
+        String username = new String(plain.array(), plain.position(), plain.remaining(), StandardCharsets.UTF_8);
+
+        this.accepted.incrementAndGet();
+        return new Ticket(username, secret);
+    }
+
+    /**
+     * @return the number of tickets handed out
+     */
+    public long getIssued() {
+        return this.issued.get();
+    }
+
+    /**
+     * @return the number of tickets that were accepted
+     */
+    public long getAccepted() {
+        return this.accepted.get();
+    }
+
+    /**
+     * @return the number of tickets that were unknown or expired
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * The content of a valid ticket.
+     */
+    public static class Ticket {
+        private final String username;
+        private final byte[] secret;
+
+        Ticket(String username, byte[] secret) {
+            this.username = username;
+            this.secret = secret;
+        }
+
+        public String getUsername() {
+            return this.username;
+        }
+
+        public byte[] getSecret() {
+            return this.secret;
+        }
+    }
+}
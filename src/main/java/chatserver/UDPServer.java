@@ -0,0 +1,198 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers the UDP commands of the chatserver (currently only {@code !list}).
+ * <p>
+ * All worker threads share one {@link DatagramChannel}. Every worker owns a direct receive and a direct send buffer,
+ * so answering a request does not allocate.
+ */
+public class UDPServer {
+
+    private static final Logger LOGGER = Logger.getLogger("UDPServer");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final int RECEIVE_BUFFER_SIZE = 256;
+    private static final byte[] LIST_COMMAND = "!list".getBytes();
+    private static final byte[] MSG_UNKNOWN_COMMAND = "Unknown command".getBytes();
+
+    private final int port;
+    private final OnlineListCache onlineList;
+    private final int packetSize;
+    private final Thread[] workers;
+    private DatagramChannel channel;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong unknownCommands = new AtomicLong();
+
+    // packets received in the current second, used for the rate
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicLong currentSecondCount = new AtomicLong();
+    private volatile long lastSecondCount = 0;
+
+    public UDPServer(int port, int threads, OnlineListCache onlineList, int packetSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one UDP thread is needed");
+        }
+        this.port = port;
+        this.onlineList = onlineList;
+        this.packetSize = packetSize;
+        this.workers = new Thread[threads];
+    }
+
+    public void start() {
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.socket().bind(new InetSocketAddress(this.port));
+
+            LOGGER.info("Opened UDP Socket on " + this.port);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to open socket", e);
+            return;
+        }
+
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Thread(new Worker(), "UDPServer-" + i);
+            this.workers[i].start();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to close UDP socket");
+        }
+    }
+
+    public long getReceived() {
+        return this.received.get();
+    }
+
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return the number of requests that could not be answered (too large or failed to send)
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    public long getUnknownCommands() {
+        return this.unknownCommands.get();
+    }
+
+    /**
+     * @return the number of packets received during the last full second
+     */
+    public long getPacketsPerSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        long current = this.currentSecond.get();
+        if (current == second) {
+            return this.lastSecondCount;
+        } else if (current == second - 1) {
+            // nothing received in this second yet, so the counted second is complete
+            return this.currentSecondCount.get();
+        }
+        return 0;
+    }
+
+    private void countReceived() {
+        this.received.incrementAndGet();
+
+        long second = System.currentTimeMillis() / 1000;
+        long current = this.currentSecond.get();
+        if (second != current && this.currentSecond.compareAndSet(current, second)) {
+            long count = this.currentSecondCount.getAndSet(0);
+            this.lastSecondCount = second == current + 1 ? count : 0;
+        }
+        this.currentSecondCount.incrementAndGet();
+    }
+
+    private static boolean isCommand(ByteBuffer request, byte[] command) {
+        int length = request.remaining();
+        // clients may send the command zero terminated
+        while (length > 0 && request.get(request.position() + length - 1) == 0) {
+            length--;
+        }
+        if (length != command.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (request.get(request.position() + i) != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Worker implements Runnable {
+        private final ByteBuffer request = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(packetSize);
+
+        @Override
+        public void run() {
+            while (channel.isOpen()) {
+                try {
+                    request.clear();
+                    SocketAddress sender = channel.receive(request);
+                    request.flip();
+                    countReceived();
+
+                    if (request.remaining() == request.capacity()) {
+                        // the datagram probably did not fit, none of our commands is that long
+                        dropped.incrementAndGet();
+                        LOGGER.warning("Dropped oversized packet from " + sender);
+                    } else if (isCommand(request, LIST_COMMAND)) {
+                        LOGGER.info("List command called");
+
+                        // the response is kept encoded and only rebuilt after someone logged in or out
+                        for (byte[] data : onlineList.getPackets()) {
+                            this.send(data, sender);
+                        }
+                    } else {
+                        unknownCommands.incrementAndGet();
+                        LOGGER.warning("Unknown command from " + sender);
+                        this.send(MSG_UNKNOWN_COMMAND, sender);
+                    }
+                } catch (ClosedChannelException e) {
+                    // Thats why...
+                    break;
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to receive packet", e);
+                }
+            }
+
+            LOGGER.info("UDP worker stopped.");
+        }
+
+        private void send(byte[] data, SocketAddress target) throws IOException {
+            response.clear();
+            response.put(data);
+            response.flip();
+            if (channel.send(response, target) == 0) {
+                dropped.incrementAndGet();
+            } else {
+                sent.incrementAndGet();
+            }
+        }
+    }
+}
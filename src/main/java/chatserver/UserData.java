@@ -3,17 +3,23 @@ package chatserver;
 import util.CommunicationChannel;
 
 import java.security.Key;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class UserData {
-    private CommunicationChannel client;
+    // read without the lock, eg. by !users and the broadcasts
+    private volatile CommunicationChannel client;
 
     private Key publicKey;
 
-    private boolean onlineStatus;
+    private volatile boolean onlineStatus;
 
     private String name, password;
     private String localAddress;
 
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile OutboundMessageQueue outbound;
+
     public UserData(String name, String password, Key publicKey) {
         this.name = name;
         this.setPassword(password);
@@ -63,7 +69,25 @@ public class UserData {
         this.localAddress = localAddress;
     }
 
+    public OutboundMessageQueue getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(OutboundMessageQueue outbound) {
+        this.outbound = outbound;
+    }
+
     public Key getPublicKey() {
         return publicKey;
     }
+
+    /**
+     * Returns the lock guarding the connection of this user. A {@link ReentrantLock} is used instead of the
+     * objects monitor, so a virtual thread waiting for it does not pin its carrier thread.
+     *
+     * @return the lock of this user
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
 }
@@ -0,0 +1,109 @@
+package chatserver;
+
+import util.CommunicationChannel;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The user directory of the chatserver.
+ * <p>
+ * Users can be looked up by name in constant time. All users and the online users are kept sorted by name and
+ * can be iterated without locking: {@link #getAll()} returns an immutable snapshot, {@link #getOnline()} a weakly
+ * consistent view of the online sessions.
+ */
+public class UserRegistry {
+
+    private static final Comparator<UserData> BY_NAME = new Comparator<UserData>() {
+        @Override
+        public int compare(UserData o1, UserData o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private final ConcurrentMap<String, UserData> byName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, UserData> online = new ConcurrentSkipListMap<>();
+    private volatile List<UserData> all = Collections.emptyList();
+    private final AtomicLong presenceVersion = new AtomicLong();
+
+    /**
+     * Adds a user to the directory.
+     *
+     * @param user the user
+     * @throws IllegalArgumentException if there is already a user with the same name
+     */
+    public synchronized void add(UserData user) {
+        if (this.byName.putIfAbsent(user.getName(), user) != null) {
+            throw new IllegalArgumentException("User '" + user.getName() + "' already exists");
+        }
+
+        UserData[] sorted = this.all.toArray(new UserData[this.all.size() + 1]);
+        sorted[sorted.length - 1] = user;
+        Arrays.sort(sorted, BY_NAME);
+        this.all = Collections.unmodifiableList(Arrays.asList(sorted));
+    }
+
+    /**
+     * @param name the name of the user
+     * @return the user or null if there is no user with that name
+     */
+    public UserData find(String name) {
+        return this.byName.get(name);
+    }
+
+    /**
+     * @return all users, sorted by name
+     */
+    public List<UserData> getAll() {
+        return this.all;
+    }
+
+    /**
+     * @return the users that are currently online, sorted by name
+     */
+    public Collection<UserData> getOnline() {
+        return this.online.values();
+    }
+
+    /**
+     * Marks a user as online.
+     *
+     * @param user    the user that finished the handshake
+     * @param channel the secure channel of the session
+     */
+    public void login(UserData user, CommunicationChannel channel) {
+        user.setClient(channel);
+        user.setOnlineStatus(true);
+        this.online.put(user.getName(), user);
+        this.presenceVersion.incrementAndGet();
+    }
+
+    /**
+     * Marks a user as offline.
+     *
+     * @param user the user
+     */
+    public void logout(UserData user) {
+        this.online.remove(user.getName());
+        user.setOnlineStatus(false);
+        user.setClient(null);
+        this.presenceVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes every time a user logs in or out. It is incremented after the online set was
+     * updated, so whoever sees a new version also sees the change.
+     *
+     * @return the current presence version
+     */
+    public long getPresenceVersion() {
+        return this.presenceVersion.get();
+    }
+}
@@ -1,24 +1,29 @@
 package chatserver.stage;
 
+import chatserver.HandshakeStage;
+import chatserver.ServerHandshakeContext;
 import chatserver.ServerHandshakePerformer;
 import chatserver.TerminateSessionException;
 import chatserver.UserData;
 import util.CommunicationChannel;
 import util.HandshakeFailedException;
 
-import java.security.Key;
-import java.util.List;
-
 public class LoginStage implements ClientStage {
 
-    private Key serverPrivateKey;
-    private List<UserData> userDB;
-    private String clientKeyDir;
+    private ServerHandshakeContext context;
+    private HandshakeStage handshakes;
+
+    public LoginStage(ServerHandshakeContext context) {
+        this(context, null);
+    }
 
-    public LoginStage(Key serverPrivateKey, List<UserData> userDB, String clientKeyDir) {
-        this.serverPrivateKey = serverPrivateKey;
-        this.userDB = userDB;
-        this.clientKeyDir = clientKeyDir;
+    /**
+     * @param context    the state shared by all handshakes
+     * @param handshakes runs the RSA and EC operations of the handshake, the client is read on the calling thread
+     */
+    public LoginStage(ServerHandshakeContext context, HandshakeStage handshakes) {
+        this.context = context;
+        this.handshakes = handshakes;
     }
 
     @Override
@@ -28,14 +33,13 @@ public class LoginStage implements ClientStage {
             throw new AssertionError("The user should never be logged in in this stage!");
         }
 
-        ServerHandshakePerformer handshake = new ServerHandshakePerformer(this.serverPrivateKey, this.userDB, clientKeyDir);
+        ServerHandshakePerformer handshake = new ServerHandshakePerformer(this.context, this.handshakes);
 
         try {
             CommunicationChannel secureChannel = handshake.execute(channel);
             UserData u = handshake.getLastLoggedIn();
 
-            u.setClient(secureChannel);
-            u.setOnlineStatus(true);
+            this.context.getUsers().login(u, secureChannel);
 
             return u;
         } catch (HandshakeFailedException e) {
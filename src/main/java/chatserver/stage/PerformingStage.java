@@ -1,31 +1,40 @@
 package chatserver.stage;
 
+import chatserver.BroadcastEngine;
 import chatserver.ChatserverClientHandler;
 import chatserver.TerminateSessionException;
 import chatserver.UserData;
+import chatserver.UserRegistry;
 import nameserver.INameserverForChatserver;
 import util.CommunicationChannel;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Created by ROLAND on 30.12.2016.
  */
 public class PerformingStage implements ClientStage {
 
-    private List<UserData> userDataList;
+    private UserRegistry userDataList;
+    private BroadcastEngine broadcast;
     private INameserverForChatserver nameserver;
+    private Executor requests;
 
-    public PerformingStage(List<UserData> userDataList, INameserverForChatserver nameserver) {
+    /**
+     * @param requests executes the tagged requests of the client, see {@link ChatserverClientHandler#handleLine(String)}
+     */
+    public PerformingStage(UserRegistry userDataList, BroadcastEngine broadcast, INameserverForChatserver nameserver, Executor requests) {
         this.userDataList = userDataList;
+        this.broadcast = broadcast;
         this.nameserver = nameserver;
+        this.requests = requests;
     }
 
     @Override
     public UserData execute(UserData data, CommunicationChannel channel) throws TerminateSessionException {
         try {
-            ChatserverClientHandler clientHandler = new ChatserverClientHandler("", data.getClient(), data, this.userDataList, this.nameserver);
+            ChatserverClientHandler clientHandler = new ChatserverClientHandler("", data.getClient(), data, this.userDataList, this.broadcast, this.nameserver, this.requests);
             clientHandler.run();
 
             return data;
@@ -25,17 +25,7 @@ public class SilentShell extends Shell {
         logger.info("Using a line reader!");
         try {
             for (String line; !Thread.currentThread().isInterrupted() && (line = lineReader.readLine()) != null; ) {
-                Object result;
-                try {
-                    result = invoke(line);
-                } catch (Throwable t) {
-                    ByteArrayOutputStream str = new ByteArrayOutputStream(1024);
-                    t.printStackTrace(new PrintStream(str, true));
-                    result = str.toString();
-                }
-                if (result != null) {
-                    print(result);
-                }
+                handleLine(line);
             }
         } catch (IOException e) {
             try {
@@ -47,6 +37,27 @@ public class SilentShell extends Shell {
         }
     }
 
+    /**
+     * Executes a single command line and prints its result.
+     * This allows the shell to be driven by someone else than {@link #run()}, eg. an event loop pushing lines.
+     *
+     * @param line the command line
+     * @throws IOException if the result cannot be written
+     */
+    public void handleLine(String line) throws IOException {
+        Object result;
+        try {
+            result = invoke(line);
+        } catch (Throwable t) {
+            ByteArrayOutputStream str = new ByteArrayOutputStream(1024);
+            t.printStackTrace(new PrintStream(str, true));
+            result = str.toString();
+        }
+        if (result != null) {
+            print(result);
+        }
+    }
+
     @Override
     public void writeLine(String line) throws IOException {
         write((line + "\n").getBytes());
@@ -0,0 +1,158 @@
+package client;
+
+import chatserver.Chatserver.Marker;
+import client.RequestPipeline.Request;
+import util.LineStreamSplitter;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a client from a program (a bot or a service) instead of the shell of {@link client.stage.PerformingStage}.
+ * <p>
+ * Commands do not block: they return the {@link Request}, a future completed with the response. If the chatserver
+ * accepted {@link util.HandshakeFeatures#PIPELINE} any number of commands can be outstanding, sent from any thread;
+ * otherwise every command waits for its response before it returns. Public messages are handed to the registered
+ * {@link MessageListener}s.
+ * <p>
+ * The connection is opened (and the handshake performed) by the {@link ConnectionManager} with the first command or
+ * {@link #connect()}.
+ * <pre>
+ * ChatClient client = new ChatClient(new ConnectionManager(host, port, handshake));
+ * client.addMessageListener(listener);
+ * client.send("hello").addListener(responseListener);
+ * </pre>
+ */
+public class ChatClient implements NewConnectionListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger("ChatClient");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final String SHOW = "!show";
+
+    private final ConnectionManager connections;
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+
+    // public messages and unknown lines, two threads per connection
+    private final ExecutorService readers = Executors.newCachedThreadPool();
+
+    public ChatClient(ConnectionManager connections) {
+        this.connections = connections;
+        connections.addNewConnectionListener(this);
+    }
+
+    public void addMessageListener(MessageListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeMessageListener(MessageListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Opens the connection now instead of with the first command, so a client that only listens receives the public
+     * messages as well.
+     */
+    public void connect() {
+        this.connections.getConnection();
+    }
+
+    /**
+     * Sends a public message.
+     *
+     * @return the request, completed with "Sent successfully" once the chatserver accepted the message
+     */
+    public Request send(String message) {
+        return this.submit("!send " + message, Marker.MARKER_SEND_RESPONSE);
+    }
+
+    /**
+     * @return the request, completed with the private address of the user (or why it is not known)
+     */
+    public Request lookup(String username) {
+        return this.submit("!lookup " + username, Marker.MARKER_LOOKUP_RESPONSE);
+    }
+
+    /**
+     * Publishes the address under which this client receives private messages. Opening the socket there is up to
+     * the caller.
+     *
+     * @param privateAddress {@code <ip>:<port>}
+     */
+    public Request register(String privateAddress) {
+        return this.submit("!register " + privateAddress, Marker.MARKER_REGISTER_RESPONSE);
+    }
+
+    /**
+     * Logs out, the chatserver closes the connection afterwards. Once the request completed, the next command opens
+     * a new connection.
+     */
+    public Request logout() {
+        Request request = this.submit("!logout", Marker.MARKER_LOGOUT_RESPONSE);
+        request.addListener(new ResponseListener() {
+            @Override
+            public void responseReceived(String response) {
+                connections.closeConnection();
+            }
+        });
+        return request;
+    }
+
+    /**
+     * @return the number of commands still waiting for their response
+     */
+    public int getPending() {
+        return this.connections.getConnection().getPipeline().getPending();
+    }
+
+    private Request submit(String command, String marker) {
+        return this.connections.getConnection().getPipeline().submit(command, marker);
+    }
+
+    @Override
+    public void newConnectionEstablished(ConnectionCapsule capsule) {
+        final LineStreamSplitter splitter = capsule.getSplitter();
+        splitter.ensureQueue(SHOW);
+
+        this.readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String line; (line = splitter.readLine(SHOW)) != null; ) {
+                    for (MessageListener l : listeners) {
+                        try {
+                            l.messageReceived(line);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Message listener failed", e);
+                        }
+                    }
+                }
+            }
+        });
+
+        this.readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String line; (line = splitter.readLine()) != null; ) {
+                    LOGGER.warning("Got unknown string, discarding: " + line);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection, outstanding requests are completed with null.
+     */
+    @Override
+    public void close() {
+        this.connections.shutdown();
+        this.readers.shutdown();
+    }
+}
@@ -3,13 +3,16 @@ package client;
 import client.stage.Stage;
 import client.stage.StageGenerator;
 import util.Config;
+import util.HandshakeFeatures;
 import util.Keys;
+import util.crypto.KeyMaterialPool;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.security.Key;
+import java.security.PublicKey;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -55,10 +58,23 @@ public class Client implements Runnable {
         int serverUdpPort = this.config.getInt("chatserver.udp.port");
         String clientKeyDir = this.config.getString("keys.dir");
 
+        // the keys of the EC handshake are optional, without them the RSA handshake is used
+        PublicKey serverEcKey = null;
+        try {
+            serverEcKey = Keys.readPublicPEM(new File(this.config.getString("chatserver.ec.key")));
+        } catch (IOException e) {
+            logger.warning("Failed to load server EC key, using the RSA handshake");
+        }
+        String ecKeyDir = this.config.getString("ec.keys.dir");
+
         String hmacPath = this.config.getString("hmac.key");
         logger.info("Shared Secret Dir: " + hmacPath);
 
-        StageGenerator generator = new StageGenerator(this.userRequestStream, this.userResponseStream, serverHostname, serverPort, serverUdpPort, serverKey, clientKeyDir, hmacPath);
+        // the challenges for the handshakes are generated in the background
+        KeyMaterialPool keyMaterial = new KeyMaterialPool(this.config.getInt("handshake.pool.depth"));
+
+        StageGenerator generator = new StageGenerator(this.userRequestStream, this.userResponseStream, serverHostname, serverPort, serverUdpPort, serverKey, clientKeyDir, serverEcKey, ecKeyDir, keyMaterial,
+                HandshakeFeatures.parse(this.config.getString("handshake.features")), new TicketStore(), hmacPath);
 
         Stage stage = generator.generateLoginStage();
         while (stage != null) {
@@ -67,6 +83,7 @@ public class Client implements Runnable {
             logger.info("Stage finished");
         }
 
+        keyMaterial.shutdown();
         logger.info("Client closed!");
     }
 
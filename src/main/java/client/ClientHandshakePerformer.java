@@ -1,19 +1,39 @@
 package client;
 
+import chatserver.Chatserver;
 import org.bouncycastle.util.encoders.Base64;
 import util.CommunicationChannel;
 import util.HandshakeFailedException;
+import util.HandshakeFeatures;
 import util.HandshakePerformer;
 import util.LineReader;
+import util.crypto.BrokenMessageException;
 import util.crypto.CryptoChannel;
+import util.crypto.EcHandshake;
+import util.crypto.EllipticCurves;
+import util.crypto.Framing;
+import util.crypto.GroupKeyring;
+import util.crypto.KeyDerivation;
+import util.crypto.KeyMaterialPool;
+import util.crypto.Resumption;
+import util.crypto.cryptors.AESGCMMessageCryptor;
 import util.crypto.cryptors.AESMessageCryptor;
+import util.crypto.cryptors.CompressingMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
 import util.crypto.cryptors.RSAMessageCryptor;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.SecureRandom;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -24,78 +44,290 @@ public class ClientHandshakePerformer implements HandshakePerformer {
 
     private String username;
     private Key clientPrivateKey, serverPublicKey;
+    private PrivateKey clientEcKey;
+    private PublicKey serverEcKey;
+    private KeyMaterialPool keyMaterial;
+    private Set<String> features;
+    private Set<String> accepted = Collections.emptySet();
+    private TicketStore tickets;
 
-    public ClientHandshakePerformer(String username, Key clientPrivateKey, Key serverPublicKey) {
+    /**
+     * @param clientEcKey the EC key of the user, null if there is none
+     * @param serverEcKey the EC key of the chatserver, null if there is none
+     * @param features    the {@link HandshakeFeatures} to ask the server for
+     * @param tickets     the resumption tickets of earlier logins, updated by the handshake
+     */
+    public ClientHandshakePerformer(String username, Key clientPrivateKey, Key serverPublicKey, PrivateKey clientEcKey, PublicKey serverEcKey,
+                                    KeyMaterialPool keyMaterial, Set<String> features, TicketStore tickets) {
         this.username = username;
         this.clientPrivateKey = clientPrivateKey;
         this.serverPublicKey = serverPublicKey;
+        this.clientEcKey = clientEcKey;
+        this.serverEcKey = serverEcKey;
+        this.keyMaterial = keyMaterial;
+        this.features = features;
+        this.tickets = tickets;
+    }
+
+    /**
+     * @return the features the server accepted in the last handshake
+     */
+    public Set<String> getAcceptedFeatures() {
+        return this.accepted;
     }
 
     @Override
     public CommunicationChannel execute(CommunicationChannel start) throws HandshakeFailedException {
-        SecureRandom secureRandom = new SecureRandom();
+        try {
+            // the server lines are read raw, as a busy server answers with an unencrypted refusal
+            // and the resumption messages are not encrypted
+            LineReader reader = new LineReader(start.getInputStream());
+
+            TicketStore.Ticket ticket = this.features.contains(HandshakeFeatures.RESUMPTION) ? this.tickets.get(this.username) : null;
+            if (ticket != null) {
+                CommunicationChannel resumed = this.resume(start, reader, ticket);
+                if (resumed != null) {
+                    return resumed;
+                }
+                logger.info("Ticket was not accepted, performing the full handshake");
+            }
+
+            if (this.features.contains(HandshakeFeatures.EC_HANDSHAKE) && this.clientEcKey != null && this.serverEcKey != null) {
+                CommunicationChannel ec = this.ecHandshake(start, reader);
+                if (ec != null) {
+                    return ec;
+                }
+                logger.info("EC handshake was refused, performing the RSA handshake");
+            }
+
+            return this.authenticate(start, reader);
+        } catch (InvalidKeyException | IOException | BrokenMessageException e) {
+            throw new HandshakeFailedException(e);
+        }
+    }
 
+    /**
+     * The full handshake: message 1 and 2 encrypted with RSA.
+     */
+    private CommunicationChannel authenticate(CommunicationChannel start, LineReader reader) throws HandshakeFailedException, InvalidKeyException, IOException, BrokenMessageException {
         // Message 1
-        byte[] clientChallenge = new byte[32];
-        secureRandom.nextBytes(clientChallenge);
+        byte[] clientChallenge = this.keyMaterial.takeChallenge();
         String encodedClientChallenge = new String(Base64.encode(clientChallenge));
 
-        String msg1 = "!authenticate " + this.username + " " + encodedClientChallenge + "\n";
+        String msg1 = "!authenticate " + this.username + " " + encodedClientChallenge;
+        if (!this.features.isEmpty()) {
+            msg1 += " " + HandshakeFeatures.format(this.features);
+        }
+        msg1 += "\n";
         logger.info("Message 1: " + msg1);
-        try {
-            CommunicationChannel rsaChannel = new CryptoChannel(start, new RSAMessageCryptor(serverPublicKey, clientPrivateKey));
 
-            OutputStreamWriter msg1Writer = new OutputStreamWriter(rsaChannel.getOutputStream());
-            msg1Writer.write(msg1);
-            msg1Writer.flush();
+        RSAMessageCryptor rsaCryptor = new RSAMessageCryptor(serverPublicKey, clientPrivateKey);
+        CommunicationChannel rsaChannel = new CryptoChannel(start, rsaCryptor);
 
-            // Message 2
-            LineReader reader = new LineReader(rsaChannel.getInputStream());
-            logger.info("Waiting for server response...");
-            String msg2 = reader.readLine();
+        OutputStreamWriter msg1Writer = new OutputStreamWriter(rsaChannel.getOutputStream());
+        msg1Writer.write(msg1);
+        msg1Writer.flush();
 
-            logger.info("Got server message: " + msg2);
+        // Message 2
+        logger.info("Waiting for server response...");
+        String msg2 = rsaCryptor.decrypt(readServerLine(reader));
 
-            // parse message 2
-            // Format: !ok <client-challenge> <chatserver-challenge> <secret-key> <iv-parameter>
-            String[] msg2Split = msg2.split(" ");
-            if (msg2Split.length != 5) {
-                throw new HandshakeFailedException("Message 2 is incorrect: Incorrect length (msg: \"" + msg2 + "\")");
-            }
-            if (!msg2Split[0].equals("!ok")) {
-                throw new HandshakeFailedException("Server did not return !ok. (result: \"" + msg2 + "\")");
-            }
+        logger.info("Got server message: " + msg2);
 
-            // read sent challenge and check
-            byte[] msg2_clientChallenge = Base64.decode(msg2Split[1]);
-            if (!compareArrays(clientChallenge, msg2_clientChallenge)) {
-                throw new HandshakeFailedException("Server sent invalid challenge");
-            }
+        // parse message 2
+        // Format: !ok <client-challenge> <chatserver-challenge> <secret-key> <iv-parameter> [<features>]
+        String[] msg2Split = msg2.split(" ");
+        if (msg2Split.length != 5 && msg2Split.length != 6) {
+            throw new HandshakeFailedException("Message 2 is incorrect: Incorrect length (msg: \"" + msg2 + "\")");
+        }
+        if (!msg2Split[0].equals("!ok")) {
+            throw new HandshakeFailedException("Server did not return !ok. (result: \"" + msg2 + "\")");
+        }
 
-            // read rest of the arguments
-            String msg2_serverChallengeB64 = msg2Split[2];
-            byte[] msg2_secretKey = Base64.decode(msg2Split[3]);
-            byte[] msg2_iv = Base64.decode(msg2Split[4]);
+        // read sent challenge and check
+        byte[] msg2_clientChallenge = Base64.decode(msg2Split[1]);
+        if (!compareArrays(clientChallenge, msg2_clientChallenge)) {
+            throw new HandshakeFailedException("Server sent invalid challenge");
+        }
 
+        // read rest of the arguments
+        String msg2_serverChallengeB64 = msg2Split[2];
+        byte[] msg2_secretKey = Base64.decode(msg2Split[3]);
+        byte[] msg2_iv = Base64.decode(msg2Split[4]);
+        Set<String> accepted = this.checkAccepted(msg2Split.length == 6 ? msg2Split[5] : null);
 
-            // change crypto channel for message 3
-            CommunicationChannel aesChannel = new CryptoChannel(start, new AESMessageCryptor(msg2_iv, msg2_secretKey));
+        this.receiveTicket(reader, accepted, Resumption.deriveSecret(msg2_secretKey, msg2_serverChallengeB64));
 
+        return this.openSession(start, msg2_secretKey, msg2_iv, msg2_serverChallengeB64, accepted);
+    }
 
-            // Message 3
-            OutputStreamWriter msg3Writer = new OutputStreamWriter(aesChannel.getOutputStream());
+    /**
+     * Presents the ticket instead of message 1.
+     *
+     * @return the session, null if the server did not accept the ticket (message 1 is expected next)
+     */
+    private CommunicationChannel resume(CommunicationChannel start, LineReader reader, TicketStore.Ticket ticket) throws HandshakeFailedException, InvalidKeyException, IOException {
+        String clientChallenge = new String(Base64.encode(this.keyMaterial.takeChallenge()));
 
-            logger.info("Sending message 3");
-            String msg3 = msg2_serverChallengeB64 + "\n";
-            msg3Writer.write(msg3);
-            msg3Writer.flush();
+        String request = Resumption.RESUME + " " + ticket.getTicket() + " " + clientChallenge;
+        if (!this.features.isEmpty()) {
+            request += " " + HandshakeFeatures.format(this.features);
+        }
+        logger.info("Resuming session");
+        sendPlain(start, request);
 
-            logger.info("Handshake finished");
+        // Format: !resumed <chatserver-challenge> <proof> [<features>]
+        String answer = readServerLine(reader);
+        if (answer.equals(Resumption.RESUME_FAILED)) {
+            this.tickets.remove(this.username);
+            return null;
+        }
+        String[] split = answer.split(" ");
+        if ((split.length != 3 && split.length != 4) || !split[0].equals(Resumption.RESUMED)) {
+            throw new HandshakeFailedException("Invalid answer to resumption (msg: \"" + answer + "\")");
+        }
 
-            return aesChannel;
-        } catch (InvalidKeyException | IOException e) {
-            throw new HandshakeFailedException(e);
+        String serverChallenge = split[1];
+        String features = split.length == 4 ? split[3] : "";
+        byte[] proof = Resumption.proof(ticket.getSecret(), clientChallenge, serverChallenge, features);
+        if (!MessageDigest.isEqual(proof, Base64.decode(split[2]))) {
+            throw new HandshakeFailedException("Server does not know the secret of the ticket");
+        }
+        Set<String> accepted = this.checkAccepted(features);
+
+        byte[] key = KeyDerivation.deriveKey(ticket.getSecret(), clientChallenge, serverChallenge);
+        byte[] iv = KeyDerivation.deriveIv(ticket.getSecret(), clientChallenge, serverChallenge);
+
+        this.receiveTicket(reader, accepted, Resumption.deriveSecret(key, serverChallenge));
+
+        return this.openSession(start, key, iv, serverChallenge, accepted);
+    }
+
+    /**
+     * The EC handshake instead of message 1 and 2, see {@link EcHandshake}.
+     *
+     * @return the session, null if the server refused the EC handshake (message 1 is expected next)
+     */
+    private CommunicationChannel ecHandshake(CommunicationChannel start, LineReader reader) throws HandshakeFailedException, InvalidKeyException, IOException {
+        KeyPair ephemeral = this.keyMaterial.takeEcKeyPair();
+        String clientEphemeral = EllipticCurves.encode(ephemeral.getPublic());
+
+        String hello = EcHandshake.HELLO + " " + this.username + " " + clientEphemeral;
+        if (!this.features.isEmpty()) {
+            hello += " " + HandshakeFeatures.format(this.features);
         }
+        logger.info("Starting EC handshake");
+        sendPlain(start, hello);
+
+        // Format: !ec-ok <chatserver-ephemeral-key> <chatserver-signature> [<features>]
+        String answer = readServerLine(reader);
+        if (answer.equals(EcHandshake.FAILED)) {
+            return null;
+        }
+        String[] split = answer.split(" ");
+        if ((split.length != 3 && split.length != 4) || !split[0].equals(EcHandshake.OK)) {
+            throw new HandshakeFailedException("Invalid answer to EC hello (msg: \"" + answer + "\")");
+        }
+
+        String serverEphemeral = split[1];
+        String features = split.length == 4 ? split[3] : "";
+        String transcript = EcHandshake.transcript(this.username, clientEphemeral, serverEphemeral, features);
+        if (!EllipticCurves.verify(this.serverEcKey, EcHandshake.signedByServer(transcript), Base64.decode(split[2]))) {
+            throw new HandshakeFailedException("Server signature is invalid");
+        }
+        Set<String> accepted = this.checkAccepted(features);
+
+        byte[] shared = EllipticCurves.agree(ephemeral.getPrivate(), EllipticCurves.decode(serverEphemeral));
+        byte[] key = KeyDerivation.deriveKey(shared, clientEphemeral, serverEphemeral);
+        byte[] iv = KeyDerivation.deriveIv(shared, clientEphemeral, serverEphemeral);
+
+        // message 3 proves that we own the key of the user, the ticket is only sent after that
+        String signature = new String(Base64.encode(EllipticCurves.sign(this.clientEcKey, EcHandshake.signedByClient(transcript))));
+        CommunicationChannel session = this.openSession(start, key, iv, signature, accepted);
+        this.receiveTicket(reader, accepted, Resumption.deriveSecret(key, serverEphemeral));
+        return session;
+    }
+
+    /**
+     * Creates the session channel and sends message 3.
+     *
+     * @param msg3 the content of message 3: the challenge of the server, or the signature in an EC handshake
+     */
+    private CommunicationChannel openSession(CommunicationChannel start, byte[] key, byte[] iv, String msg3, Set<String> accepted) throws InvalidKeyException, IOException {
+        Framing framing = accepted.contains(HandshakeFeatures.BINARY_FRAMING) ? Framing.BINARY : Framing.TEXT;
+        MessageCryptor sessionCryptor = accepted.contains(HandshakeFeatures.AES_GCM)
+                ? new AESGCMMessageCryptor(iv, key, false)
+                : new AESMessageCryptor(iv, key, false);
+        if (accepted.contains(HandshakeFeatures.COMPRESSION)) {
+            sessionCryptor = new CompressingMessageCryptor(sessionCryptor);
+        }
+
+        // change crypto channel for message 3
+        CryptoChannel aesChannel = new CryptoChannel(start, sessionCryptor, framing);
+        if (accepted.contains(HandshakeFeatures.GROUP_BROADCAST)) {
+            aesChannel.setGroupKeyring(new GroupKeyring());
+        }
+
+
+        // Message 3
+        OutputStreamWriter msg3Writer = new OutputStreamWriter(aesChannel.getOutputStream());
+
+        logger.info("Sending message 3");
+        msg3Writer.write(msg3 + "\n");
+        msg3Writer.flush();
+
+        logger.info("Handshake finished");
+
+        return aesChannel;
+    }
+
+    /**
+     * @param list the features accepted by the server
+     * @return the accepted features
+     */
+    private Set<String> checkAccepted(String list) throws HandshakeFailedException {
+        Set<String> accepted = HandshakeFeatures.parse(list);
+        if (!this.features.containsAll(accepted)) {
+            throw new HandshakeFailedException("Server accepted features that were not offered: " + accepted);
+        }
+        this.accepted = accepted;
+        return accepted;
+    }
+
+    /**
+     * Reads the ticket the server sends along with its answer, if resumption was accepted.
+     */
+    private void receiveTicket(LineReader reader, Set<String> accepted, byte[] secret) throws IOException, HandshakeFailedException {
+        if (!accepted.contains(HandshakeFeatures.RESUMPTION)) {
+            this.tickets.remove(this.username);
+            return;
+        }
+        String line = readServerLine(reader);
+        String[] split = line.split(" ");
+        if (split.length != 2 || !split[0].equals(Resumption.TICKET)) {
+            throw new HandshakeFailedException("Server did not send a ticket (msg: \"" + line + "\")");
+        }
+        this.tickets.put(this.username, split[1], secret);
+    }
+
+    /**
+     * @return the next unencrypted line of the server
+     */
+    private static String readServerLine(LineReader reader) throws IOException, HandshakeFailedException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new HandshakeFailedException("Server closed the connection");
+        }
+        if (line.startsWith(Chatserver.Marker.MARKER_REFUSED)) {
+            throw new HandshakeFailedException("Server refused the connection: " + line.substring(Chatserver.Marker.MARKER_REFUSED.length()).trim());
+        }
+        return line;
+    }
+
+    private static void sendPlain(CommunicationChannel channel, String line) throws IOException {
+        OutputStream out = channel.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
     }
 
     private static boolean compareArrays(byte[] a1, byte[] a2) {
@@ -24,18 +24,31 @@ public class ConnectionCapsule implements Closeable {
     private LineReader in;
     private PrintWriter out;
     private LineStreamSplitter splitter;
+    private RequestPipeline pipeline;
 
     public ConnectionCapsule(CommunicationChannel channel) throws IOException {
+        this(channel, false);
+    }
+
+    /**
+     * @param pipelined true if the chatserver accepted {@link util.HandshakeFeatures#PIPELINE}
+     */
+    public ConnectionCapsule(CommunicationChannel channel, boolean pipelined) throws IOException {
         this.channel = channel;
         this.in = new LineReader(this.channel.getInputStream());
         this.out = new PrintWriter(this.channel.getOutputStream());
         this.splitter = new LineStreamSplitter(this.in);
+        this.pipeline = new RequestPipeline(this, pipelined);
     }
 
     public LineStreamSplitter getSplitter() {
         return this.splitter;
     }
 
+    public RequestPipeline getPipeline() {
+        return this.pipeline;
+    }
+
     public LineReader getIn() {
         return this.in;
     }
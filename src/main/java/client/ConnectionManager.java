@@ -1,5 +1,8 @@
 package client;
 
+import util.CommunicationChannel;
+import util.HandshakeFailedException;
+import util.HandshakeFeatures;
 import util.SimpleSocketCommunicationChannel;
 
 import java.io.IOException;
@@ -9,10 +12,17 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * Keeps one connection to a server, opened when it is first needed.
+ * <p>
+ * The {@link NewConnectionListener}s are told about a new connection before its lines are read, so they can register
+ * their prefixes at the {@link util.LineStreamSplitter} without missing a line.
+ */
 public class ConnectionManager {
 
     private String hostname;
     private int port;
+    private ClientHandshakePerformer handshake;
 
     private ConnectionCapsule conn;
 
@@ -20,12 +30,21 @@ public class ConnectionManager {
     private final List<NewConnectionListener> listeners;
 
     public ConnectionManager(String hostname, int port) {
+        this(hostname, port, null);
+    }
+
+    /**
+     * @param handshake performed on every new connection (to the chatserver), null for plain connections
+     */
+    public ConnectionManager(String hostname, int port, ClientHandshakePerformer handshake) {
         this.hostname = hostname;
         this.port = port;
+        this.handshake = handshake;
 
         this.conn = null;
 
-        this.pool = Executors.newFixedThreadPool(1);
+        // splitter and request pipeline of the current connection
+        this.pool = Executors.newCachedThreadPool();
         this.listeners = new LinkedList<>();
     }
 
@@ -44,6 +63,11 @@ public class ConnectionManager {
                     l.newConnectionEstablished(this.conn);
                 }
             }
+
+            this.pool.execute(this.conn.getSplitter());
+            if (this.conn.getPipeline().isTagged()) {
+                this.pool.execute(this.conn.getPipeline());
+            }
         }
 
         return this.conn;
@@ -63,12 +87,18 @@ public class ConnectionManager {
 
     private ConnectionCapsule instantiateConnection() {
         try {
-            ConnectionCapsule capsule = new ConnectionCapsule(new SimpleSocketCommunicationChannel(new Socket(this.hostname, this.port)));
-
-            this.pool.execute(capsule.getSplitter());
-
-            return capsule;
-        } catch (IOException e) {
+            CommunicationChannel channel = new SimpleSocketCommunicationChannel(new Socket(this.hostname, this.port));
+            if (this.handshake == null) {
+                return new ConnectionCapsule(channel);
+            }
+            try {
+                channel = this.handshake.execute(channel);
+            } catch (HandshakeFailedException e) {
+                channel.close();
+                throw e;
+            }
+            return new ConnectionCapsule(channel, this.handshake.getAcceptedFeatures().contains(HandshakeFeatures.PIPELINE));
+        } catch (IOException | HandshakeFailedException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,12 @@
+package client;
+
+public interface MessageListener {
+
+    /**
+     * Gets called for every public message the chatserver delivers.
+     *
+     * @param message the message including its sender, eg. {@code alice.vienna.at: hello}
+     */
+    void messageReceived(String message);
+
+}
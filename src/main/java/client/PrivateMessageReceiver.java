@@ -4,12 +4,11 @@ import util.HMAC;
 import util.LineReader;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.Key;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -24,13 +23,13 @@ public class PrivateMessageReceiver implements Runnable {
     private PrintStream userOutputStream;
     private ExecutorService pool;
 
-    private Key sharedSecret;
+    private HMAC hmac;
 
-    public PrivateMessageReceiver(int port, PrintStream userOutputStream, Key sharedSecret) throws IOException {
+    public PrivateMessageReceiver(int port, PrintStream userOutputStream, HMAC hmac) throws IOException {
         this.port = port;
         this.userOutputStream = userOutputStream;
 
-        this.sharedSecret = sharedSecret;
+        this.hmac = hmac;
 
         this.socket = new ServerSocket(port);
         this.pool = Executors.newCachedThreadPool();
@@ -82,47 +81,49 @@ public class PrivateMessageReceiver implements Runnable {
             try {
                 // open streams
                 LineReader in = new LineReader(this.socket.getInputStream());
-                PrintWriter out = new PrintWriter(this.socket.getOutputStream());
+                OutputStream out = this.socket.getOutputStream();
 
                 String line = in.readLine();
                 logger.info("Private Message was captured: '" + line + "'");
 
-                String message, hMacString;
-
-                if (line.indexOf(' ') == -1) {
+                if (line == null || line.indexOf(' ') == -1) {
                     logger.info("The received message was not in the correct format!");
+                    return;
                 }
 
-                hMacString = line.substring(0, line.indexOf(' '));
-                message = line.substring(line.indexOf(' ') + 1);
-
-                byte[] generatedHMAC = HMAC.generateHMAC(message, sharedSecret);
+                String hMacString = line.substring(0, line.indexOf(' '));
+                // the line reader decodes UTF-8, the HMAC is calculated over the bytes as sent
+                String messageString = line.substring(line.indexOf(' ') + 1);
+                byte[] message = messageString.getBytes(StandardCharsets.UTF_8);
 
-                String generatedHMACString = new String(generatedHMAC);
                 logger.info("Received HMAC: <" + hMacString + ">");
-                logger.info("Received Message: <" + message + ">");
-                logger.info("Generated HMAC: <" + generatedHMACString + ">");
+                logger.info("Received Message: <" + messageString + ">");
 
                 // write line to output stream
-                userOutputStream.println(message);
+                userOutputStream.println(messageString);
 
-                String response;
-                if (MessageDigest.isEqual(hMacString.getBytes(), generatedHMAC)) {        //Valid
+                byte[] response;
+                if (hmac.verify(message, hMacString)) {        //Valid
                     logger.info("Sending !ack...");
-                    response = "!ack";
+                    response = "!ack".getBytes(StandardCharsets.UTF_8);
                 } else {                  //Tampered
                     logger.info("Received Message was tampered, HMAC is invalid!");
                     logger.info("The Sender will be informed about this incident");
 
-                    System.out.println(message);
+                    System.out.println(messageString);
 
-                    response = "!tampered " + message;
+                    byte[] prefix = "!tampered ".getBytes(StandardCharsets.UTF_8);
+                    response = new byte[prefix.length + message.length];
+                    System.arraycopy(prefix, 0, response, 0, prefix.length);
+                    System.arraycopy(message, 0, response, prefix.length, message.length);
                 }
 
-                String responseHMAC = new String(HMAC.generateHMAC(response, sharedSecret));
+                String responseHMAC = hmac.encode(response);
 
-                logger.info("Sending Response: <" + responseHMAC + " " + response + ">");
-                out.println(responseHMAC + " " + response);
+                logger.info("Sending Response: <" + responseHMAC + " " + new String(response, StandardCharsets.UTF_8) + ">");
+                out.write((responseHMAC + " ").getBytes(StandardCharsets.US_ASCII));
+                out.write(response);
+                out.write('\n');
 
                 out.flush();
             } catch (IOException ex) {
@@ -0,0 +1,246 @@
+package client;
+
+import chatserver.Chatserver.Marker;
+import util.LineStreamSplitter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends commands to the chatserver and matches the responses to them.
+ * <p>
+ * If the chatserver accepted {@link util.HandshakeFeatures#PIPELINE} every command is sent as
+ * {@code @<id> <command>} and the response comes back as {@code @<id> <response>}: any number of commands can be
+ * outstanding at the same time, from any number of threads, and the responses may arrive in any order.
+ * {@link #run()} hands the responses to the waiting {@link Request}s and has to run as long as the connection.
+ * <p>
+ * Otherwise responses can only be told apart by their marker, so {@link #submit(String, String)} sends the command
+ * and waits for the response to it before it returns, one command at a time.
+ */
+public class RequestPipeline implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger("RequestPipeline");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final ConnectionCapsule capsule;
+    private final boolean tagged;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, Request> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param capsule the connection to the chatserver
+     * @param tagged  true if the chatserver accepted {@link util.HandshakeFeatures#PIPELINE}
+     */
+    public RequestPipeline(ConnectionCapsule capsule, boolean tagged) {
+        this.capsule = capsule;
+        this.tagged = tagged;
+        if (tagged) {
+            capsule.getSplitter().ensureQueue(Marker.REQUEST_TAG);
+        }
+    }
+
+    /**
+     * @return true if commands carry IDs and can be sent without waiting for earlier responses
+     */
+    public boolean isTagged() {
+        return this.tagged;
+    }
+
+    /**
+     * @return the number of commands sent that are still waiting for their response
+     */
+    public int getPending() {
+        return this.pending.size();
+    }
+
+    /**
+     * Sends a command.
+     *
+     * @param command the command line, eg. {@code !send hello}
+     * @param marker  the marker the chatserver puts in front of the response, removed from it
+     * @return the request, completed once the response arrived
+     */
+    public Request submit(String command, String marker) {
+        Request request = new Request(marker);
+        if (!this.tagged) {
+            LineStreamSplitter splitter = this.capsule.getSplitter();
+            splitter.ensureQueue(marker);
+            synchronized (this) {
+                this.capsule.writeLine(command);
+                request.complete(splitter.readLine(marker, false));
+            }
+            return request;
+        }
+
+        long id = this.ids.incrementAndGet();
+        this.pending.put(id, request);
+        if (this.closed) {
+            // the stream ended, there will not be a response
+            this.pending.remove(id);
+            request.complete(null);
+            return request;
+        }
+        this.capsule.writeLine(Marker.REQUEST_TAG + id + " " + command);
+        return request;
+    }
+
+    /**
+     * Sends a command and waits for the response.
+     *
+     * @return the response without its marker, null if the connection ended before the response arrived
+     */
+    public String call(String command, String marker) {
+        return this.submit(command, marker).await();
+    }
+
+    /**
+     * Hands the responses to their requests until the connection ends.
+     */
+    @Override
+    public void run() {
+        LineStreamSplitter splitter = this.capsule.getSplitter();
+        for (String line; (line = splitter.readLine(Marker.REQUEST_TAG, true)) != null; ) {
+            int space = line.indexOf(' ');
+            Request request = null;
+            try {
+                request = this.pending.remove(Long.parseLong(space < 0 ? line : line.substring(0, space)));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            if (request == null) {
+                LOGGER.warning("Discarding response to an unknown request: " + line);
+                continue;
+            }
+            request.complete(space < 0 ? "" : line.substring(space + 1));
+        }
+
+        // nothing will be answered anymore
+        this.closed = true;
+        for (Long id : this.pending.keySet()) {
+            Request request = this.pending.remove(id);
+            if (request != null) {
+                request.complete(null);
+            }
+        }
+        LOGGER.info("Request pipeline stopped!");
+    }
+
+    /**
+     * A command that was sent to the chatserver, completed with the response. A command cannot be taken back once it
+     * is sent, so the request cannot be cancelled.
+     */
+    public static class Request implements Future<String> {
+        private final String marker;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String response;
+        // told once the response arrived, guarded by the request
+        private List<ResponseListener> listeners = new ArrayList<>(1);
+
+        Request(String marker) {
+            this.marker = marker;
+        }
+
+        void complete(String response) {
+            if (response != null && response.startsWith(this.marker)) {
+                response = response.substring(this.marker.length());
+            }
+            List<ResponseListener> waiting;
+            synchronized (this) {
+                this.response = response;
+                this.done.countDown();
+                waiting = this.listeners;
+                this.listeners = null;
+            }
+            for (ResponseListener l : waiting) {
+                tell(l, response);
+            }
+        }
+
+        /**
+         * Tells the listener about the response: right away if it is already there, otherwise on the thread that
+         * receives it, which must not be blocked for long.
+         */
+        public void addListener(ResponseListener listener) {
+            synchronized (this) {
+                if (this.listeners != null) {
+                    this.listeners.add(listener);
+                    return;
+                }
+            }
+            tell(listener, this.response);
+        }
+
+        private static void tell(ResponseListener listener, String response) {
+            try {
+                listener.responseReceived(response);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Response listener failed", e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        /**
+         * @return the response like {@link #await()}
+         */
+        @Override
+        public String get() throws InterruptedException {
+            this.done.await();
+            return this.response;
+        }
+
+        /**
+         * @return the response like {@link #await()}
+         * @throws TimeoutException if it did not arrive in time
+         */
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!this.done.await(timeout, unit)) {
+                throw new TimeoutException("No response within " + timeout + " " + unit);
+            }
+            return this.response;
+        }
+
+        /**
+         * @return the response without its marker ({@link Marker#MARKER_ERROR} and the reason if the chatserver
+         * could not execute the command), null if the connection ended before the response arrived or the thread
+         * was interrupted
+         */
+        public String await() {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return this.response;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package client;
+
+public interface ResponseListener {
+
+    /**
+     * Gets called once the chatserver answered a command.
+     *
+     * @param response the response without its marker, null if the connection ended before it arrived
+     */
+    void responseReceived(String response);
+
+}
@@ -0,0 +1,50 @@
+package client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the last resumption ticket of every user that logged in, see {@link util.crypto.Resumption}.
+ * The tickets live as long as the client, they are not written to disk.
+ */
+public class TicketStore {
+
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * @return the ticket of the user, or null
+     */
+    public Ticket get(String username) {
+        return this.tickets.get(username);
+    }
+
+    /**
+     * @param ticket the ticket as sent by the chatserver (Base64)
+     * @param secret the secret belonging to the ticket
+     */
+    public void put(String username, String ticket, byte[] secret) {
+        this.tickets.put(username, new Ticket(ticket, secret));
+    }
+
+    public void remove(String username) {
+        this.tickets.remove(username);
+    }
+
+    public static class Ticket {
+        private final String ticket;
+        private final byte[] secret;
+
+        Ticket(String ticket, byte[] secret) {
+            this.ticket = ticket;
+            this.secret = secret;
+        }
+
+        public String getTicket() {
+            return this.ticket;
+        }
+
+        public byte[] getSecret() {
+            return this.secret;
+        }
+    }
+}
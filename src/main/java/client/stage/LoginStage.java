@@ -4,10 +4,13 @@ import cli.Command;
 import cli.Shell;
 import cli.SilentShell;
 import client.ClientHandshakePerformer;
+import client.TicketStore;
 import util.CommunicationChannel;
 import util.HandshakeFailedException;
+import util.HandshakeFeatures;
 import util.Keys;
 import util.SimpleSocketCommunicationChannel;
+import util.crypto.KeyMaterialPool;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,6 +18,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
 import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,18 +38,24 @@ public class LoginStage implements Stage {
 
     private Key serverKey;
     private String clientKeyDir;
+    private PublicKey serverEcKey;
+    private String ecKeyDir;
+    private KeyMaterialPool keyMaterial;
+    private Set<String> features;
+    private TicketStore tickets;
 
     private StageGenerator generator;
     private Shell shell;
     private CommunicationChannel loggedInChannel = null;
     private String loggedInUser = null;
+    private Set<String> loggedInFeatures = null;
 
     private boolean exitFlag = false;
 
     private InetAddress udpServerAddr;
     private int udpServerPort;
 
-    public LoginStage(StageGenerator generator, InputStream userInputStream, OutputStream userOutputStream, String host, int port, Key serverKey, String clientKeyDir, String hostname, int udpPort) {
+    public LoginStage(StageGenerator generator, InputStream userInputStream, OutputStream userOutputStream, String host, int port, Key serverKey, String clientKeyDir, PublicKey serverEcKey, String ecKeyDir, KeyMaterialPool keyMaterial, Set<String> features, TicketStore tickets, String hostname, int udpPort) {
         this.userInputStream = userInputStream;
         this.userOutputStream = userOutputStream;
         this.host = host;
@@ -51,6 +63,11 @@ public class LoginStage implements Stage {
         this.serverKey = serverKey;
         this.generator = generator;
         this.clientKeyDir = clientKeyDir;
+        this.serverEcKey = serverEcKey;
+        this.ecKeyDir = ecKeyDir;
+        this.keyMaterial = keyMaterial;
+        this.features = features;
+        this.tickets = tickets;
 
         try {
             this.udpServerAddr = InetAddress.getByName(hostname);
@@ -93,7 +110,7 @@ public class LoginStage implements Stage {
         // now that the shell closed itself we can read the Connection that we are going to use
 
         if (loggedInChannel != null) {
-            return generator.generatePerformingStage(loggedInChannel, loggedInUser);
+            return generator.generatePerformingStage(loggedInChannel, loggedInUser, loggedInFeatures);
         } else {
             try {
                 this.shell.writeLine("Login failed");
@@ -115,15 +132,24 @@ public class LoginStage implements Stage {
                 logger.warning("failed to retrieve key for client");
                 return "Failed to read private key!";
             }
+            PrivateKey clientEcKey = null;
+            if (features.contains(HandshakeFeatures.EC_HANDSHAKE)) {
+                try {
+                    clientEcKey = Keys.readPrivatePEM(new File(ecKeyDir + "/" + username + ".pem"));
+                } catch (IOException e) {
+                    logger.warning("failed to retrieve EC key for client, using the RSA handshake");
+                }
+            }
             try {
                 // Open socket and start handshake
                 Socket socket = new Socket(host, port);
 
                 SimpleSocketCommunicationChannel channel = new SimpleSocketCommunicationChannel(socket);
 
-                ClientHandshakePerformer handshakePerformer = new ClientHandshakePerformer(username, clientKey, serverKey);
+                ClientHandshakePerformer handshakePerformer = new ClientHandshakePerformer(username, clientKey, serverKey, clientEcKey, serverEcKey, keyMaterial, features, tickets);
                 loggedInChannel = handshakePerformer.execute(channel);
                 loggedInUser = username;
+                loggedInFeatures = handshakePerformer.getAcceptedFeatures();
 
                 Thread.currentThread().interrupt();
 
@@ -136,6 +162,7 @@ public class LoginStage implements Stage {
             } catch (HandshakeFailedException e) {
                 logger.warning("Failed to perform handshake!");
                 e.printStackTrace();
+                return "Handshake failed! (" + e.getMessage() + ")";
             }
             return "Handshake failed!";
         }
@@ -9,8 +9,9 @@ import util.*;
 
 import java.io.*;
 import java.net.*;
-import java.security.Key;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -41,11 +42,13 @@ public class PerformingStage implements Stage {
     private String myName;
     private boolean logoutFlag = false;
 
-    private Key sharedSecret;
+    private HMAC hmac;
+    private Set<String> features;
 
-    public PerformingStage(StageGenerator generator, CommunicationChannel channel, InputStream userRequestStream, OutputStream userResponseStream, String hostname, int udpPort, String myName, String hmacPath) {
+    public PerformingStage(StageGenerator generator, CommunicationChannel channel, InputStream userRequestStream, OutputStream userResponseStream, String hostname, int udpPort, String myName, String hmacPath, Set<String> features) {
         this.generator = generator;
         this.channel = channel;
+        this.features = features;
         this.userRequestStream = userRequestStream;
         this.userResponseStream = userResponseStream;
         this.myName = myName;
@@ -58,12 +61,13 @@ public class PerformingStage implements Stage {
         }
 
         try {
-            this.sharedSecret = Keys.readSecretKey(new File(hmacPath));
-        } catch (IOException e) {
+            this.hmac = new HMAC(Keys.readSecretKey(new File(hmacPath)));
+        } catch (IOException | InvalidKeyException e) {
             logger.log(Level.SEVERE, "Unable to load shared secret!");
         }
 
-        this.pool = Executors.newFixedThreadPool(4);
+        // splitter, public messages, unknown lines, responses and private messages
+        this.pool = Executors.newFixedThreadPool(5);
     }
 
     @Override
@@ -71,8 +75,11 @@ public class PerformingStage implements Stage {
         logger.info("Entered Performing Stage");
 
         try {
-            this.capsule = new ConnectionCapsule(this.channel);
+            this.capsule = new ConnectionCapsule(this.channel, this.features.contains(HandshakeFeatures.PIPELINE));
             pool.execute(this.capsule.getSplitter());
+            if (this.capsule.getPipeline().isTagged()) {
+                pool.execute(this.capsule.getPipeline());
+            }
 
             pool.execute(new Runnable() {
                 @Override
@@ -173,13 +180,7 @@ public class PerformingStage implements Stage {
         public String logout() throws IOException {
             final String marker = Chatserver.Marker.MARKER_LOGOUT_RESPONSE;
 
-            // check splitter
-            LineStreamSplitter splitter = capsule.getSplitter();
-            splitter.ensureQueue(marker);
-
-            capsule.writeLine("!logout");
-
-            String response = splitter.readLine(marker);
+            String response = capsule.getPipeline().call("!logout", marker);
             if (response == null) {
                 // server already terminated the connection before telling us if it was successful
                 // there is no connection left, so jsut logout anyways
@@ -200,14 +201,9 @@ public class PerformingStage implements Stage {
                 return "Empty messages are not sent!";
 
             final String marker = Chatserver.Marker.MARKER_SEND_RESPONSE;
-            LineStreamSplitter splitter = capsule.getSplitter();
-            splitter.ensureQueue(marker);
-
-            capsule.writeLine("!send " + message);
-
-            String response = splitter.readLine(marker);
+            String response = capsule.getPipeline().call("!send " + message, marker);
 
-            if (response.equals("Sent successfully")) {
+            if ("Sent successfully".equals(response)) {
                 return null;
             }
 
@@ -285,17 +281,21 @@ public class PerformingStage implements Stage {
             }
 
             String finalMessage = myName + ": " + message;
-            String hmac = new String(HMAC.generateHMAC(finalMessage, sharedSecret));
+            byte[] finalMessageBytes = finalMessage.getBytes(StandardCharsets.UTF_8);
+            String hmac = PerformingStage.this.hmac.encode(finalMessageBytes);
 
             // open socket for client connection
             try {
                 Socket socket = new Socket(addr.getHostName(), port);
                 CommunicationChannel channel = new SimpleSocketCommunicationChannel(socket);
 
-                PrintWriter writer = new PrintWriter(channel.getOutputStream());
+                OutputStream writer = channel.getOutputStream();
                 LineReader reader = new LineReader(channel.getInputStream());
 
-                writer.println(hmac + " " + finalMessage);
+                // the HMAC covers exactly the bytes that are sent
+                writer.write((hmac + " ").getBytes(StandardCharsets.US_ASCII));
+                writer.write(finalMessageBytes);
+                writer.write('\n');
                 writer.flush();
                 logger.info("Sent Private Message: <" + hmac + " " + finalMessage + ">");
 
@@ -303,24 +303,21 @@ public class PerformingStage implements Stage {
                 String response = reader.readLine();
                 logger.info("Raw Response: <" + response + ">");
 
-                if (response.indexOf(' ') == -1) {
+                if (response == null || response.indexOf(' ') == -1) {
                     logger.info("The received response was in a wrong format!");
                     return "Interpreting response failed!";
                 }
 
                 String responseHMACString = response.substring(0, response.indexOf(' '));
+                // the line reader decodes UTF-8, encoding it again gives the bytes as sent
                 String responseMessageString = response.substring(response.indexOf(' ') + 1);
+                byte[] responseMessage = responseMessageString.getBytes(StandardCharsets.UTF_8);
 
                 logger.info("Response Message <" + responseMessageString + ">");
                 logger.info("Response HMAC <" + responseHMACString + ">");
 
-                byte[] generatedResponseHMAC = HMAC.generateHMAC(responseMessageString, sharedSecret);
-
-                String genHMAC = new String(generatedResponseHMAC);
-                logger.info("Generated HMAC <" + genHMAC + ">");
-
                 socket.close();
-                if (!MessageDigest.isEqual(generatedResponseHMAC, responseHMACString.getBytes())) {
+                if (!PerformingStage.this.hmac.verify(responseMessage, responseHMACString)) {
                     System.out.println("Received response was tampered!");
                     logger.info("Received response was tampered!");
                     return "Received response was tampered!";
@@ -346,11 +343,7 @@ public class PerformingStage implements Stage {
 
             logger.fine("Start lookup of '" + username + "'");
 
-            LineStreamSplitter splitter = capsule.getSplitter();
-            splitter.ensureQueue(marker);
-
-            capsule.writeLine("!lookup " + username);
-            String response = splitter.readLine(marker);
+            String response = capsule.getPipeline().call("!lookup " + username, marker);
 
             logger.info("Lookup request answered with: " + response);
 
@@ -385,21 +378,20 @@ public class PerformingStage implements Stage {
 
             final String marker = Chatserver.Marker.MARKER_REGISTER_RESPONSE;
 
-            LineStreamSplitter splitter = capsule.getSplitter();
-            splitter.ensureQueue(marker);
-
-            capsule.writeLine("!register " + privateAddress);
-            String response = splitter.readLine(marker);
+            String response = capsule.getPipeline().call("!register " + privateAddress, marker);
 
             logger.info("Register process has returned: " + response);
 
+            if (response == null) {
+                return "Connection to the chatserver lost!";
+            }
             if (response.contains("already registered") || response.contains("nameserver is offline")) {
                 return response;
             }
 
             // try to open socket before telling the server its open
             try {
-                privateMsgReciever = new PrivateMessageReceiver(port, new PrintStream(userResponseStream), sharedSecret);
+                privateMsgReciever = new PrivateMessageReceiver(port, new PrintStream(userResponseStream), hmac);
                 pool.execute(privateMsgReciever);
             } catch (IOException e) {
                 return "Failed to open socket. Did not publish IP + Port to server.";
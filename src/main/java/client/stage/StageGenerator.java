@@ -1,10 +1,14 @@
 package client.stage;
 
+import client.TicketStore;
 import util.CommunicationChannel;
+import util.crypto.KeyMaterialPool;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Key;
+import java.security.PublicKey;
+import java.util.Set;
 
 /**
  * Created by ROLAND on 03.01.2017.
@@ -19,10 +23,15 @@ public class StageGenerator {
 
     private Key serverKey;
     private String clientKeyDir;
+    private PublicKey serverEcKey;
+    private String ecKeyDir;
+    private KeyMaterialPool keyMaterial;
+    private Set<String> features;
+    private TicketStore tickets;
 
     private String hmacPath;
 
-    public StageGenerator(InputStream userInputStream, OutputStream userOutputStream, String host, int tcpPort, int udpPort, Key serverKey, String clientKeyDir, String hmacPath) {
+    public StageGenerator(InputStream userInputStream, OutputStream userOutputStream, String host, int tcpPort, int udpPort, Key serverKey, String clientKeyDir, PublicKey serverEcKey, String ecKeyDir, KeyMaterialPool keyMaterial, Set<String> features, TicketStore tickets, String hmacPath) {
         this.userInputStream = userInputStream;
         this.userOutputStream = userOutputStream;
         this.host = host;
@@ -30,15 +39,23 @@ public class StageGenerator {
         this.serverKey = serverKey;
         this.udpPort = udpPort;
         this.clientKeyDir = clientKeyDir;
+        this.serverEcKey = serverEcKey;
+        this.ecKeyDir = ecKeyDir;
+        this.keyMaterial = keyMaterial;
+        this.features = features;
+        this.tickets = tickets;
         this.hmacPath = hmacPath;
     }
 
     public LoginStage generateLoginStage() {
-        return new LoginStage(this, this.userInputStream, this.userOutputStream, this.host, this.tcpPort, this.serverKey, this.clientKeyDir, this.host, this.udpPort);
+        return new LoginStage(this, this.userInputStream, this.userOutputStream, this.host, this.tcpPort, this.serverKey, this.clientKeyDir, this.serverEcKey, this.ecKeyDir, this.keyMaterial, this.features, this.tickets, this.host, this.udpPort);
     }
 
-    public PerformingStage generatePerformingStage(CommunicationChannel channel, String username) {
-        return new PerformingStage(this, channel, this.userInputStream, this.userOutputStream, this.host, this.udpPort, username, this.hmacPath);
+    /**
+     * @param features the features the chatserver accepted for the channel
+     */
+    public PerformingStage generatePerformingStage(CommunicationChannel channel, String username, Set<String> features) {
+        return new PerformingStage(this, channel, this.userInputStream, this.userOutputStream, this.host, this.udpPort, username, this.hmacPath, features);
     }
 
 }
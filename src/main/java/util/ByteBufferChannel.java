@@ -0,0 +1,19 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CommunicationChannel} that can send {@link ByteBuffer}s without going through its {@link java.io.OutputStream}.
+ */
+public interface ByteBufferChannel extends CommunicationChannel {
+
+    /**
+     * Sends the remaining bytes of the buffer. The channel takes over the buffer: once it is sent, it is given back to
+     * {@link util.crypto.BufferPool#shared()}, so the caller must not touch it after this call.
+     *
+     * @param buffer the bytes to send
+     * @throws IOException if the channel is closed or broken
+     */
+    void write(ByteBuffer buffer) throws IOException;
+}
@@ -3,38 +3,102 @@ package util;
 import org.bouncycastle.util.encoders.Base64;
 
 import javax.crypto.Mac;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
+/**
+ * HMAC-SHA256 under a fixed shared secret, as used for private messages.
+ * <p>
+ * Every thread gets its own {@link Mac}, initialized with the secret once, so computing an HMAC neither looks up the
+ * algorithm nor sets up the key again. Instances can be shared between threads.
+ */
 public class HMAC {
-    private static final Logger logger = Logger.getLogger("HMAC");
+
+    public static final String ALGORITHM = "HmacSHA256";
+
+    private final Key sharedSecret;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return createMac(sharedSecret);
+            } catch (InvalidKeyException e) {
+                // checked by the constructor
+                throw new AssertionError(e);
+            }
+        }
+    };
 
     /**
-     * This method generates the HMAC for a given message and a shared secret. The return is Base64 encoded.
-     *
-     * @param message      Message that will be used to generate the HMAC
      * @param sharedSecret The used shared secret
-     * @return The HMAC is returned in a Base6-Encoding
+     * @throws InvalidKeyException if the secret cannot be used for HMAC-SHA256
+     */
+    public HMAC(Key sharedSecret) throws InvalidKeyException {
+        this.sharedSecret = sharedSecret;
+        this.macs.set(createMac(sharedSecret));
+    }
+
+    /**
+     * @param message the bytes to authenticate
+     * @return the raw HMAC (32 bytes)
      */
-    public static byte[] generateHMAC(String message, Key sharedSecret) {
-        Mac hMac = null;
+    public byte[] compute(byte[] message) {
+        return this.macs.get().doFinal(message);
+    }
+
+    /**
+     * @param message the bytes to authenticate, from position to limit; the buffer is consumed
+     * @return the raw HMAC (32 bytes)
+     */
+    public byte[] compute(ByteBuffer message) {
+        Mac mac = this.macs.get();
+        mac.update(message);
+        return mac.doFinal();
+    }
+
+    /**
+     * @param message the bytes that were received
+     * @param hmac    the raw HMAC that was received along with them
+     * @return true if the HMAC belongs to the message; compared in constant time
+     */
+    public boolean verify(byte[] message, byte[] hmac) {
+        return MessageDigest.isEqual(this.compute(message), hmac);
+    }
+
+    /**
+     * @return the HMAC of the message in Base64, as sent in front of a private message
+     */
+    public String encode(byte[] message) {
+        return new String(Base64.encode(this.compute(message)));
+    }
+
+    /**
+     * @param message the bytes that were received
+     * @param hmacB64 the HMAC that was received along with them, in Base64
+     * @return true if the HMAC belongs to the message, false as well if it is not Base64 at all
+     */
+    public boolean verify(byte[] message, String hmacB64) {
+        byte[] hmac;
         try {
-            hMac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            logger.log(Level.SEVERE, "Unable to load HMAC-Algorithm!");
+            hmac = Base64.decode(hmacB64);
+        } catch (RuntimeException e) {
+            // this version of bouncy castle throws plain runtime exceptions on malformed input
+            return false;
         }
+        return this.verify(message, hmac);
+    }
 
+    private static Mac createMac(Key key) throws InvalidKeyException {
         try {
-            hMac.init(sharedSecret);
-        } catch (InvalidKeyException e) {
-            logger.log(Level.SEVERE, "Unable to initialize HMAC with shared secret!");
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
         }
-
-        hMac.update(message.getBytes());
-
-        return Base64.encode(hMac.doFinal());
     }
 }
@@ -0,0 +1,106 @@
+package util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Optional features of the secure channel that are negotiated during the handshake.
+ * <p>
+ * The client appends the features it would like to use to message 1
+ * ({@code !authenticate <user> <challenge> [<feature>,<feature>...]}), the server answers with the ones it
+ * accepted at the end of message 2. Without the extra argument both sides fall back to the original protocol.
+ */
+public final class HandshakeFeatures {
+
+    /**
+     * Length prefixed binary records instead of Base64 lines, see {@link util.crypto.Framing#BINARY}.
+     */
+    public static final String BINARY_FRAMING = "binary";
+
+    /**
+     * AES-GCM (authenticated, with a nonce per message) instead of AES-CTR as session cipher,
+     * see {@link util.crypto.cryptors.AESGCMMessageCryptor}.
+     */
+    public static final String AES_GCM = "gcm";
+
+    /**
+     * The server hands out tickets a client can later use to skip the RSA part of the handshake,
+     * see {@link util.crypto.Resumption}.
+     */
+    public static final String RESUMPTION = "resume";
+
+    /**
+     * The client starts with the elliptic curve handshake of {@link util.crypto.EcHandshake} instead of message 1,
+     * the server accepts it if the feature is in its list.
+     */
+    public static final String EC_HANDSHAKE = "ec";
+
+    /**
+     * Long messages are compressed with Deflate before they are encrypted,
+     * see {@link util.crypto.cryptors.CompressingMessageCryptor}.
+     */
+    public static final String COMPRESSION = "deflate";
+
+    /**
+     * Public messages are encrypted once with a key shared by all users instead of once per session,
+     * see {@link util.crypto.GroupKey}. Needs {@link #BINARY_FRAMING}.
+     */
+    public static final String GROUP_BROADCAST = "group";
+
+    /**
+     * Commands carry an ID that the chatserver repeats in front of the response, so a client can send many commands
+     * without waiting for each response, see {@link client.RequestPipeline}.
+     */
+    public static final String PIPELINE = "pipeline";
+
+    private HandshakeFeatures() {
+    }
+
+    /**
+     * @param list comma separated features, may be null or empty
+     * @return the features in the given order
+     */
+    public static Set<String> parse(String list) {
+        if (list == null || list.trim().isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> features = new LinkedHashSet<>();
+        for (String f : list.split(",")) {
+            if (!f.trim().isEmpty()) {
+                features.add(f.trim());
+            }
+        }
+        return features;
+    }
+
+    /**
+     * @param features the features
+     * @return the features as argument of a handshake message
+     */
+    public static String format(Collection<String> features) {
+        StringBuilder builder = new StringBuilder();
+        for (String f : features) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(f);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param offered   the features offered by the client
+     * @param supported the features supported by the server
+     * @return the features both sides support, in the order of the client (without those missing a feature they need)
+     */
+    public static Set<String> negotiate(Set<String> offered, Set<String> supported) {
+        Set<String> accepted = new LinkedHashSet<>(offered);
+        accepted.retainAll(supported);
+        if (!accepted.contains(BINARY_FRAMING)) {
+            accepted.remove(GROUP_BROADCAST);
+        }
+        return accepted;
+    }
+}
@@ -2,14 +2,24 @@ package util;
 
 import org.bouncycastle.openssl.PEMReader;
 import org.bouncycastle.openssl.PasswordFinder;
+import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
+import util.crypto.EllipticCurves;
 
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.interfaces.ECKey;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,6 +28,8 @@ import java.util.Map;
  * used in Lab 2.
  * <p>
  * Reads encryption keys from the file system.
+ * <p>
+ * RSA and EC (e.g. P-256) keys are supported, EC keys are returned as implemented by {@link EllipticCurves}.
  */
 public final class Keys {
 
@@ -46,13 +58,24 @@ public final class Keys {
         // PEMReader in = new PEMReader(new FileReader(file), new
         // PasswordReader(file.getName()));
 
-        PEMReader in = new PEMReader(new FileReader(file),
-                new StaticPasswordReader(file.getName()));
+        PasswordFinder password = new StaticPasswordReader(file.getName());
+
+        String pem = readFile(file);
+        if (pem.contains("BEGIN EC PRIVATE KEY") && pem.contains("Proc-Type: 4,ENCRYPTED")) {
+            // the PEMReader of this Bouncy Castle version cannot decrypt EC keys
+            pem = decryptPEM(pem, password.getPassword());
+        }
+
+        PEMReader in = new PEMReader(new StringReader(pem), password);
 
         try {
             KeyPair keyPair = (KeyPair) in.readObject();
-            return keyPair.getPrivate();
-        } catch (ClassCastException ex) {
+            PrivateKey key = keyPair.getPrivate();
+            if (key instanceof ECKey) {
+                key = EllipticCurves.translate(key);
+            }
+            return key;
+        } catch (ClassCastException | InvalidKeyException ex) {
             throw new IOException("Could not read private key " + file, ex);
         } finally {
             in.close();
@@ -70,7 +93,13 @@ public final class Keys {
     public static PublicKey readPublicPEM(File file) throws IOException {
         PEMReader in = new PEMReader(new FileReader(file));
         try {
-            return (PublicKey) in.readObject();
+            PublicKey key = (PublicKey) in.readObject();
+            if (key instanceof ECKey) {
+                key = EllipticCurves.translate(key);
+            }
+            return key;
+        } catch (InvalidKeyException ex) {
+            throw new IOException("Could not read public key " + file, ex);
         } finally {
             in.close();
         }
@@ -99,6 +128,94 @@ public final class Keys {
         }
     }
 
+    private static String readFile(File file) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        try (Reader reader = new FileReader(file)) {
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                builder.append(buffer, 0, n);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decrypts a PEM block encrypted the traditional OpenSSL way ({@code Proc-Type} and {@code DEK-Info} headers).
+     *
+     * @param pem      the encrypted PEM block
+     * @param password the password of the key file
+     * @return the same PEM block without encryption
+     */
+    private static String decryptPEM(String pem, char[] password) throws IOException {
+        String type = null, dekInfo = null;
+        StringBuilder body = new StringBuilder();
+        for (String line : pem.split("\r?\n")) {
+            if (line.startsWith("-----BEGIN ")) {
+                type = line.substring("-----BEGIN ".length(), line.lastIndexOf("-----"));
+            } else if (line.startsWith("-----END ")) {
+                break;
+            } else if (line.startsWith("DEK-Info:")) {
+                dekInfo = line.substring("DEK-Info:".length()).trim();
+            } else if (type != null && !line.contains(":")) {
+                body.append(line.trim());
+            }
+        }
+        if (type == null || dekInfo == null) {
+            throw new IOException("Malformed encrypted PEM block");
+        }
+
+        String[] dek = dekInfo.split(",");
+        String algorithm;
+        int keyLength;
+        switch (dek[0]) {
+            case "AES-128-CBC":
+                algorithm = "AES";
+                keyLength = 16;
+                break;
+            case "AES-192-CBC":
+                algorithm = "AES";
+                keyLength = 24;
+                break;
+            case "AES-256-CBC":
+                algorithm = "AES";
+                keyLength = 32;
+                break;
+            case "DES-EDE3-CBC":
+                algorithm = "DESede";
+                keyLength = 24;
+                break;
+            default:
+                throw new IOException("Unsupported PEM encryption: " + dek[0]);
+        }
+        byte[] iv = Hex.decode(dek[1]);
+
+        try {
+            // OpenSSL's EVP_BytesToKey with MD5, one iteration and the first 8 bytes of the IV as salt
+            byte[] passwordBytes = new String(password).getBytes(StandardCharsets.UTF_8);
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] key = new byte[keyLength];
+            byte[] block = new byte[0];
+            for (int filled = 0; filled < keyLength; filled += block.length) {
+                md5.update(block);
+                md5.update(passwordBytes);
+                md5.update(iv, 0, 8);
+                block = md5.digest();
+                System.arraycopy(block, 0, key, filled, Math.min(block.length, keyLength - filled));
+            }
+
+            Cipher cipher = Cipher.getInstance(algorithm + "/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, algorithm), new IvParameterSpec(iv));
+            byte[] der = cipher.doFinal(Base64.decode(body.toString()));
+
+            return "-----BEGIN " + type + "-----\n" + new String(Base64.encode(der)) + "\n-----END " + type + "-----\n";
+        } catch (BadPaddingException e) {
+            throw new IOException("Wrong password for PEM block", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt PEM block", e);
+        }
+    }
+
     /**
      * Reads the password from the standard input.
      */
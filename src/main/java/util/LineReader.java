@@ -2,34 +2,191 @@ package util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /**
- * A {@link LineReader} reads from an {@link InputStream} until a new line ('\n') character is reached.
+ * A {@link LineReader} reads from an {@link InputStream} until a new line ('\n') character (or a 0 byte) is reached.
+ * Lines are decoded as UTF-8.
+ * <p>
+ * The bytes are read in bulk into a buffer that is kept between lines. If the source supports
+ * {@link InputStream#mark(int)} no byte after the line break is consumed, so another reader can take over the stream
+ * after any line (as the handshakes do). Otherwise the reader keeps what it read ahead and has to stay the only
+ * reader of the stream.
+ * <p>
+ * Lines longer than the maximum line length are not collected: {@link #readLine()} fails with a
+ * {@link LineTooLongException} instead, so the other side cannot make the reader grow without bound.
  */
 public class LineReader {
-    private InputStream source;
+
+    /**
+     * The maximum line length of readers created without one: the largest message a secure channel accepts, so
+     * the readers of a {@link util.crypto.CryptoChannel} take every line the channel decrypted.
+     */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1 << 20;
+
+    private final InputStream source;
+    private final int maxLineLength;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(128);
+
+    private byte[] buffer = new byte[256];
+    // bytes read ahead but not returned yet (only if the source cannot mark)
+    private int start = 0, end = 0;
+    private boolean eof = false;
 
     public LineReader(InputStream source) {
+        this(source, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param source        the stream to read from
+     * @param maxLineLength the longest line (in bytes, without line break) accepted
+     */
+    public LineReader(InputStream source, int maxLineLength) {
         this.source = source;
+        this.maxLineLength = maxLineLength;
     }
 
+    /**
+     * @return the next line (without line break), the rest of the stream if it ends without one, or null if the
+     * stream ended
+     * @throws LineTooLongException if the line is longer than the maximum line length
+     */
     public String readLine() throws IOException {
-        StringBuilder builder = new StringBuilder();
+        return this.source.markSupported() ? this.readMarked() : this.readBuffered();
+    }
+
+    /**
+     * Reads ahead as far as the stream allows and rewinds it to the end of the line.
+     */
+    private String readMarked() throws IOException {
+        this.source.mark(this.maxLineLength + 1);
+        int length = 0;
+        for (; ; ) {
+            this.ensureCapacity(length);
+            int n = this.source.read(this.buffer, length, this.buffer.length - length);
+            if (n < 0) {
+                return length == 0 ? null : this.decode(0, length);
+            }
 
+            for (int i = length; i < length + n; i++) {
+                if (isLineBreak(this.buffer[i])) {
+                    this.source.reset();
+                    skipFully(this.source, i + 1);
+                    return this.decode(0, i);
+                }
+            }
+            length += n;
+            this.checkLength(length);
+        }
+    }
+
+    private String readBuffered() throws IOException {
+        int scanned = this.start;
         for (; ; ) {
-            int c = this.source.read();
-            if (c == 10 || c == 0) {
-                return builder.toString();
-            } else if (c == -1) {
-                if (builder.length() == 0) {
+            for (int i = scanned; i < this.end; i++) {
+                if (isLineBreak(this.buffer[i])) {
+                    String line = this.decode(this.start, i - this.start);
+                    this.start = i + 1;
+                    return line;
+                }
+            }
+            this.checkLength(this.end - this.start);
+
+            if (this.eof) {
+                if (this.start == this.end) {
                     return null;
-                } else {
-                    return builder.toString();
                 }
+                String line = this.decode(this.start, this.end - this.start);
+                this.start = this.end;
+                return line;
+            }
+
+            // keep only the current line, at the beginning of the buffer
+            int length = this.end - this.start;
+            if (this.start > 0) {
+                System.arraycopy(this.buffer, this.start, this.buffer, 0, length);
+                this.start = 0;
+                this.end = length;
             }
+            this.ensureCapacity(length);
+            scanned = length;
 
-            builder.append((char) c);
+            int n = this.source.read(this.buffer, this.end, this.buffer.length - this.end);
+            if (n < 0) {
+                this.eof = true;
+            } else {
+                this.end += n;
+            }
+        }
+    }
+
+    /**
+     * Makes room for at least one more byte after {@code length} bytes.
+     */
+    private void ensureCapacity(int length) {
+        if (length == this.buffer.length) {
+            // one more than the longest line, for the line break
+            byte[] larger = new byte[(int) Math.min((long) this.maxLineLength + 1, this.buffer.length * 2L)];
+            System.arraycopy(this.buffer, 0, larger, 0, length);
+            this.buffer = larger;
+        }
+    }
+
+    private void checkLength(int length) throws LineTooLongException {
+        if (length > this.maxLineLength) {
+            throw new LineTooLongException("Line longer than " + this.maxLineLength + " bytes");
+        }
+    }
+
+    private String decode(int offset, int length) {
+        int capacity = (int) Math.ceil(length * (double) this.decoder.maxCharsPerByte());
+        if (this.chars.capacity() < capacity) {
+            this.chars = CharBuffer.allocate(capacity);
+        }
+        this.chars.clear();
+        this.decoder.reset();
+        ByteBuffer bytes = ByteBuffer.wrap(this.buffer, offset, length);
+        CoderResult result = this.decoder.decode(bytes, this.chars, true);
+        if (!result.isUnderflow()) {
+            // cannot happen: malformed input is replaced and the buffer is large enough
+            throw new IllegalStateException("Decoding failed: " + result);
+        }
+        this.decoder.flush(this.chars);
+        this.chars.flip();
+        return this.chars.toString();
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == 0;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Stream ended within a line that was already read");
+            }
+            n -= skipped;
         }
     }
 
+    /**
+     * Thrown if a line is longer than the maximum line length. The stream cannot be used afterwards.
+     */
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException(String message) {
+            super(message);
+        }
+    }
 }
@@ -2,24 +2,43 @@ package util;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by ROLAND on 29.10.2016.
+ * <p>
+ * Reads lines from a {@link LineReader} and sorts them into one queue per registered prefix: a line goes to the queue
+ * of the longest prefix it starts with, lines without a registered prefix go to the default queue ({@code ""}).
+ * <p>
+ * The prefixes are kept in a trie that is rebuilt whenever a prefix is registered (which happens a few times per
+ * session), so storing a line only walks the trie along the line, without locks. The queues are
+ * {@link BlockingQueue}s, readers wait on their own queue only.
  */
 public class LineStreamSplitter implements Runnable {
 
+    /*
+     * Put into every queue once the stream ended, never handed out (compared by identity)
+     */
+    private static final String END = new String("");
+
     private LineReader in;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
+
+    /*
+     * Stores a prefix with its read strings, only changed while holding the lock of the map
+     */
+    private final Map<String, BlockingQueue<String>> storage;
 
     /*
-     * Storse a prefix with its read strings
+     * Built from the storage, replaced as a whole on registration
      */
-    private final ConcurrentHashMap<String, Queue<String>> storage;
+    private volatile Node trie;
 
     public LineStreamSplitter(LineReader in) {
         this.in = in;
-        this.storage = new ConcurrentHashMap<>();
+        this.storage = new HashMap<>();
 
         this.registerPrefix("");
     }
@@ -35,66 +54,34 @@ public class LineStreamSplitter implements Runnable {
             }
 
             // ready to register
-            this.storage.put(prefix, new LinkedList<String>());
+            BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+            if (this.stopped) {
+                lines.add(END);
+            }
+            this.storage.put(prefix, lines);
+            this.trie = Node.build(this.storage);
         }
     }
 
     public void storeLine(String line) {
-        synchronized (this.storage) {
-            List<String> keys = new ArrayList<>(this.storage.keySet());
-            Collections.sort(keys, new Comparator<String>() {
-                @Override
-                public int compare(String o1, String o2) {
-                    return o2.length() - o1.length();
-                }
-            });
-
-            // System.out.println(Arrays.toString(keys.toArray()));
-
-            for (String prefix : keys) {
-                if (line.startsWith(prefix)) {
-                    Queue<String> lines = this.storage.get(prefix);
-                    synchronized (lines) {
-                        // System.out.println(prefix + " got the line!");
-                        lines.add(line);
-                        lines.notify();
-                        break;
-                    }
-                }
-            }
-        }
+        this.trie.find(line).add(line);
     }
 
     /**
-     * read from a {@link Queue} for a specific prefix
+     * read from a {@link Queue} for a specific prefix, waits until a line arrives
      *
      * @param prefix       the prefix you are looking for
      * @param removePrefix tells if you want to remove the prefix from the string
-     * @return a line or null if nothing will be read again
+     * @return a line or null if nothing will be read again (or the thread was interrupted)
      */
     public String readLine(String prefix, boolean removePrefix) {
-        for (Queue<String> lines; !Thread.currentThread().isInterrupted() && !stopped; ) {
-            lines = this.storage.get(prefix);
-            if (lines == null) {
-                throw new IllegalArgumentException("Prefix queue does not exist!");
-            }
-
-            synchronized (lines) {
-                if (lines.size() > 0) {
-                    String l = lines.poll();
-                    if (removePrefix) {
-                        l = l.substring(prefix.length());
-                    }
-                    return l;
-                }
-                try {
-                    lines.wait();
-                } catch (InterruptedException e) {
-                    // ignore
-                }
-            }
+        BlockingQueue<String> lines = this.getQueue(prefix);
+        try {
+            return this.unwrap(lines, lines.take(), prefix, removePrefix);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return null;
     }
 
     public String readLine(String prefix) {
@@ -110,6 +97,32 @@ public class LineStreamSplitter implements Runnable {
         return this.readLine("", false);
     }
 
+    /**
+     * read from a {@link Queue} for a specific prefix without waiting longer than the timeout
+     *
+     * @param prefix       the prefix you are looking for
+     * @param removePrefix tells if you want to remove the prefix from the string
+     * @param timeout      how long to wait for a line, 0 does not wait at all
+     * @param unit         the unit of the timeout
+     * @return a line or null if no line arrived in time or nothing will be read again
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public String poll(String prefix, boolean removePrefix, long timeout, TimeUnit unit) throws InterruptedException {
+        BlockingQueue<String> lines = this.getQueue(prefix);
+        return this.unwrap(lines, lines.poll(timeout, unit), prefix, removePrefix);
+    }
+
+    public String poll(String prefix, long timeout, TimeUnit unit) throws InterruptedException {
+        return this.poll(prefix, true, timeout, unit);
+    }
+
+    /**
+     * @return true if the stream ended, readers get the lines that are still queued and then null
+     */
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
     @Override
     public void run() {
         try {
@@ -121,10 +134,10 @@ public class LineStreamSplitter implements Runnable {
         }
 
         // inform all readers that we are done
-        this.stopped = true;
-        for (Queue<String> l : this.storage.values()) {
-            synchronized (l) {
-                l.notifyAll();
+        synchronized (this.storage) {
+            this.stopped = true;
+            for (BlockingQueue<String> l : this.storage.values()) {
+                l.add(END);
             }
         }
     }
@@ -139,8 +152,86 @@ public class LineStreamSplitter implements Runnable {
     }
 
     public void ensureQueue(String prefix) {
-        if (!this.storage.containsKey(prefix)) {
-            this.registerPrefix(prefix);
+        synchronized (this.storage) {
+            if (!this.storage.containsKey(prefix)) {
+                this.registerPrefix(prefix);
+            }
+        }
+    }
+
+    private BlockingQueue<String> getQueue(String prefix) {
+        BlockingQueue<String> lines = this.trie.get(prefix);
+        if (lines == null) {
+            throw new IllegalArgumentException("Prefix queue does not exist!");
+        }
+        return lines;
+    }
+
+    private String unwrap(BlockingQueue<String> lines, String line, String prefix, boolean removePrefix) {
+        if (line == null) {
+            return null;
+        }
+        if (line == END) {
+            // leave it for the other readers of the queue
+            lines.add(END);
+            return null;
+        }
+        return removePrefix ? line.substring(prefix.length()) : line;
+    }
+
+    /**
+     * A node of the prefix trie, never changed after {@link #build(Map)}.
+     */
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        // the queue of the prefix ending here, null if no prefix ends here
+        private BlockingQueue<String> lines;
+
+        static Node build(Map<String, BlockingQueue<String>> prefixes) {
+            Node root = new Node();
+            for (Map.Entry<String, BlockingQueue<String>> e : prefixes.entrySet()) {
+                Node node = root;
+                for (int i = 0; i < e.getKey().length(); i++) {
+                    Character c = e.getKey().charAt(i);
+                    Node child = node.children.get(c);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                node.lines = e.getValue();
+            }
+            return root;
+        }
+
+        /**
+         * @return the queue of the longest prefix the line starts with (the default queue at the root at least)
+         */
+        BlockingQueue<String> find(String line) {
+            Node node = this;
+            BlockingQueue<String> found = this.lines;
+            for (int i = 0; i < line.length(); i++) {
+                node = node.children.get(line.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.lines != null) {
+                    found = node.lines;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return the queue of exactly this prefix, null if it is not registered
+         */
+        BlockingQueue<String> get(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            return node == null ? null : node.lines;
         }
     }
 }
@@ -1,24 +1,41 @@
 package util;
 
+import util.crypto.BufferPool;
+
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 
-public class SimpleSocketCommunicationChannel implements CommunicationChannel {
+public class SimpleSocketCommunicationChannel implements ByteBufferChannel {
     private static final Logger logger = Logger.getLogger("SimpleSocketCommunicationChannel");
 
+    // a socket stream can only write arrays, direct buffers are copied through this one
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BufferPool.BUFFER_SIZE];
+        }
+    };
+
     private Socket socket;
+    private InputStream in;
 
     public SimpleSocketCommunicationChannel(Socket socket) {
         this.socket = socket;
     }
 
     @Override
-    public InputStream getInputStream() throws IOException {
-        return this.socket.getInputStream();
+    public synchronized InputStream getInputStream() throws IOException {
+        // created once and markable, so a LineReader leaves everything after its line to the next reader
+        if (this.in == null) {
+            this.in = new BufferedInputStream(this.socket.getInputStream());
+        }
+        return this.in;
     }
 
     @Override
@@ -26,6 +43,26 @@ public class SimpleSocketCommunicationChannel implements CommunicationChannel {
         return this.socket.getOutputStream();
     }
 
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        try {
+            OutputStream out = this.socket.getOutputStream();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] scratch = SCRATCH.get();
+                while (buffer.hasRemaining()) {
+                    int n = Math.min(scratch.length, buffer.remaining());
+                    buffer.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+            }
+            out.flush();
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         logger.info("Closing socket! (socket: " + this.socket + ")");
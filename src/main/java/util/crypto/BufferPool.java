@@ -0,0 +1,60 @@
+package util.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s, so encrypting and sending a message does not allocate.
+ * <p>
+ * Requests larger than the buffer size get a (not pooled) heap buffer, releasing such a buffer does nothing.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 1024);
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * @param bufferSize the capacity of every pooled buffer
+     * @param maxPooled  the number of free buffers kept at most
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return the pool used by the channels
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param minCapacity the number of bytes needed
+     * @return a cleared buffer with at least the given capacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > this.bufferSize) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        ByteBuffer b = this.free.poll();
+        return b != null ? b : ByteBuffer.allocateDirect(this.bufferSize);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer a buffer returned by {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == this.bufferSize) {
+            buffer.clear();
+            this.free.offer(buffer);
+        }
+    }
+}
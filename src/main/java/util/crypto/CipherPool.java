@@ -0,0 +1,204 @@
+package util.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of initialized {@link Cipher}s of one transformation, kept per key and mode.
+ * <p>
+ * A cipher that finished a {@code doFinal} is back in its initialized state, so a cipher taken from the pool is used
+ * without provider lookup and without {@code init}. Only modes where this is safe (not for nonce based modes like GCM)
+ * may be pooled.
+ * <p>
+ * Ciphers are kept for the most recently used keys only, the ciphers of the least recently used key are dropped once
+ * there are too many keys. Keys whose ciphers were {@link #prepare(Key, int, int) prepared} (like the private key of
+ * the server) are never dropped.
+ */
+public class CipherPool {
+
+    private final String transformation;
+    private final int maxIdle;
+    private final int maxKeys;
+    // the prepared keys, never evicted
+    private final ConcurrentMap<Entry, Queue<Cipher>> pinned = new ConcurrentHashMap<>();
+    // all other keys in access order, guarded by itself
+    private final Map<Entry, Queue<Cipher>> recent;
+    private volatile Provider provider;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param transformation the transformation of all ciphers, e.g. {@code RSA/NONE/OAEPWithSHA256AndMGF1Padding}
+     * @param maxIdle        the number of idle ciphers kept at most per key and mode
+     * @param maxKeys        the number of keys and modes ciphers are kept for at most
+     */
+    public CipherPool(String transformation, int maxIdle, int maxKeys) {
+        this.transformation = transformation;
+        this.maxIdle = maxIdle;
+        this.maxKeys = maxKeys;
+        this.recent = new LinkedHashMap<Entry, Queue<Cipher>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Entry, Queue<Cipher>> eldest) {
+                // keys of users that are gone must not pile up
+                return this.size() > CipherPool.this.maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Takes a cipher from the pool, or creates one if none is idle.
+     *
+     * @param key  the key
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @return a cipher initialized with the given key and mode, to be given back by {@link #release(Key, int, Cipher)}
+     */
+    public Cipher acquire(Key key, int mode) throws InvalidKeyException {
+        Queue<Cipher> queue = this.find(new Entry(key, mode));
+        Cipher cipher = queue != null ? queue.poll() : null;
+        if (cipher != null) {
+            this.hits.incrementAndGet();
+            return cipher;
+        }
+
+        this.misses.incrementAndGet();
+        cipher = this.create();
+        cipher.init(mode, key);
+        return cipher;
+    }
+
+    /**
+     * Gives a cipher back to the pool. Only ciphers whose last operation completed (or that were not used at all) may
+     * be given back, a cipher that threw is simply dropped.
+     *
+     * @param key    the key the cipher was acquired with
+     * @param mode   the mode the cipher was acquired with
+     * @param cipher the cipher
+     */
+    public void release(Key key, int mode, Cipher cipher) {
+        Entry entry = new Entry(key, mode);
+        Queue<Cipher> queue = this.find(entry);
+        if (queue == null) {
+            synchronized (this.recent) {
+                queue = this.recent.get(entry);
+                if (queue == null) {
+                    queue = new ConcurrentLinkedQueue<>();
+                    this.recent.put(entry, queue);
+                }
+            }
+        }
+        // size() is not exact for concurrent queues, a few more idle ciphers do no harm
+        if (queue.size() < this.maxIdle) {
+            queue.offer(cipher);
+        }
+    }
+
+    /**
+     * Initializes ciphers ahead of time, e.g. for the private key of the server.
+     *
+     * @param key   the key
+     * @param mode  {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param count the number of ciphers to prepare
+     */
+    public void prepare(Key key, int mode, int count) throws InvalidKeyException {
+        Entry entry = new Entry(key, mode);
+        if (!this.pinned.containsKey(entry)) {
+            Queue<Cipher> queue;
+            synchronized (this.recent) {
+                queue = this.recent.remove(entry);
+            }
+            this.pinned.putIfAbsent(entry, queue != null ? queue : new ConcurrentLinkedQueue<Cipher>());
+        }
+        for (int i = 0; i < Math.min(count, this.maxIdle); i++) {
+            Cipher cipher = this.create();
+            cipher.init(mode, key);
+            this.release(key, mode, cipher);
+        }
+    }
+
+    /**
+     * @return the idle ciphers of the key and mode, null if none are kept
+     */
+    private Queue<Cipher> find(Entry entry) {
+        Queue<Cipher> queue = this.pinned.get(entry);
+        if (queue != null) {
+            return queue;
+        }
+        synchronized (this.recent) {
+            return this.recent.get(entry);
+        }
+    }
+
+    private Cipher create() {
+        try {
+            // look the provider up once, getInstance(transformation) walks all providers
+            Provider p = this.provider;
+            if (p == null) {
+                Cipher cipher = Cipher.getInstance(this.transformation);
+                this.provider = cipher.getProvider();
+                return cipher;
+            }
+            return Cipher.getInstance(this.transformation, p);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return the number of ciphers taken from the pool
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of ciphers that had to be created
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of keys and modes ciphers are kept for, including the prepared ones
+     */
+    public int getKeys() {
+        synchronized (this.recent) {
+            return this.pinned.size() + this.recent.size();
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final int mode;
+
+        Entry(Key key, int mode) {
+            this.key = key;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return this.mode == other.mode && this.key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.key.hashCode() + this.mode;
+        }
+    }
+}
@@ -1,89 +1,499 @@
 package util.crypto;
 
+import org.bouncycastle.util.encoders.Base64;
+import util.ByteBufferChannel;
 import util.CommunicationChannel;
 import util.Decorated;
+import util.LineReader;
 import util.crypto.cryptors.MessageCryptor;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
  * This class should be used as a Decorator for an existing {@link CommunicationChannel}.
  * It will allow the communication to be encrypted with AES.
+ * <p>
+ * Every line written is encrypted as one message, the {@link Framing} decides how messages look on the wire.
+ * {@link #send(String)} and {@link #send(ByteBuffer)} encrypt a message without the streams: in binary framing the
+ * record is built in a pooled buffer and handed to the parent channel without further copies.
+ * <p>
+ * The streams are created once per channel. Every message is written to the parent with a single write and flush,
+ * messages of different threads never interleave.
+ * <p>
+ * In binary framing the channel can also carry records encrypted with a {@link GroupKey}: the chatserver sends the
+ * same record to many channels with {@link #sendGroupRecord(byte[])}, the client reads them with the keys collected
+ * by its {@link GroupKeyring}.
  */
 public class CryptoChannel implements CommunicationChannel, Decorated<CommunicationChannel> {
 
     private static Logger logger = Logger.getLogger("CryptoChannel");
 
+    // same charset and replacement behaviour as String.getBytes()
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    // returned instead of a message for records that carry nothing to read (compared by identity)
+    private static final byte[] SKIPPED = new byte[0];
+
     private final CommunicationChannel parent;
     private final MessageCryptor cryptor;
+    private final Framing framing;
+    // ReentrantLocks instead of monitors: a virtual thread blocked in a socket write or read while holding one
+    // does not pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private InputStream in;
+    private OutputStream out;
+
+    private volatile boolean groupRecords = false;
+    private volatile GroupKeyring groupKeys;
 
     public CryptoChannel(CommunicationChannel parent, MessageCryptor cryptor) throws InvalidKeyException {
+        this(parent, cryptor, Framing.TEXT);
+    }
+
+    public CryptoChannel(CommunicationChannel parent, MessageCryptor cryptor, Framing framing) throws InvalidKeyException {
         this.parent = parent;
         this.cryptor = cryptor;
+        this.framing = framing;
+    }
+
+    public Framing getFraming() {
+        return this.framing;
+    }
+
+    /**
+     * @param enabled true if the other side negotiated {@link util.HandshakeFeatures#GROUP_BROADCAST}
+     */
+    public void setGroupRecords(boolean enabled) {
+        if (enabled && this.framing != Framing.BINARY) {
+            throw new IllegalStateException("Group records need binary framing");
+        }
+        this.groupRecords = enabled;
+    }
+
+    /**
+     * @return true if {@link #sendGroupRecord(byte[])} may be used
+     */
+    public boolean hasGroupRecords() {
+        return this.groupRecords;
+    }
+
+    /**
+     * Lets the input stream read group records. The key lines of the chatserver are taken by the keyring and do
+     * not show up in the stream.
+     *
+     * @param keys the keyring of the session
+     */
+    public void setGroupKeyring(GroupKeyring keys) {
+        this.setGroupRecords(keys != null);
+        this.groupKeys = keys;
     }
 
     @Override
-    public InputStream getInputStream() throws IOException {
-        final BufferedReader stream = new BufferedReader(new InputStreamReader(this.parent.getInputStream()));
-
-        return new InputStream() {
-            String outbuffer = "";
-            int pos = 0;
-
-            @Override
-            public int read() throws IOException {
-                if (outbuffer.isEmpty() || pos >= outbuffer.length()) {
-                    try {
-                        logger.fine("Blocking...");
-                        String line = stream.readLine();
-
-                        if (line == null) {
-                            return -1; // stream is dead!
-                        }
-
-                        outbuffer = cryptor.decrypt(line);
-                        outbuffer += "\n";
-                        pos = 0;
-                    } catch (BrokenMessageException e) {
-                        logger.warning(e.getMessage()); // TODO check handling
-                        e.printStackTrace();
-                        return -1;
-                    }
+    public synchronized InputStream getInputStream() throws IOException {
+        // created once, a second buffering stream on the parent would swallow bytes of the first one
+        if (this.in == null) {
+            this.in = new MessageInputStream(this.parent.getInputStream());
+        }
+        return this.in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (this.out == null) {
+            this.out = new MessageOutputStream();
+        }
+        return this.out;
+    }
+
+    /**
+     * Encrypts and sends one message.
+     *
+     * @param message the message (without line break)
+     */
+    public void send(String message) throws IOException {
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer buffer = BufferPool.shared().acquire((int) Math.ceil(message.length() * encoder.maxBytesPerChar()));
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(message), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        this.send(buffer);
+    }
+
+    /**
+     * Encrypts and sends one message. Like {@link ByteBufferChannel#write(ByteBuffer)} the buffer is taken over
+     * and given back to the {@link BufferPool} afterwards.
+     *
+     * @param message the plaintext of the message (without line break)
+     */
+    public void send(ByteBuffer message) throws IOException {
+        try {
+            if (this.framing == Framing.TEXT) {
+                // Base64 lines cannot be built in place
+                byte[] data = new byte[message.remaining()];
+                message.get(data);
+                this.writeLine(data, data.length);
+                return;
+            }
+
+            ByteBuffer record = BufferPool.shared().acquire(4 + this.cryptor.getMaxOutputSize(message.remaining()));
+            this.writeLock.lock();
+            try {
+                // encrypted in the order of the writes, the other side rejects reordered messages
+                record.position(4);
+                int length = this.cryptor.encrypt(message, record);
+                record.putInt(0, length);
+                record.flip();
+                this.writeRecord(record);
+            } finally {
+                this.writeLock.unlock();
+            }
+        } catch (BrokenMessageException e) {
+            throw new IOException("Failed to encrypt message", e);
+        } finally {
+            BufferPool.shared().release(message);
+        }
+    }
+
+    /**
+     * Sends a record sealed by {@link GroupKey#seal(byte[])} as it is. The array is not changed, the same record can
+     * be sent to many channels.
+     */
+    public void sendGroupRecord(byte[] record) throws IOException {
+        if (!this.groupRecords) {
+            throw new IllegalStateException("Group records were not negotiated");
+        }
+        this.writeRecord(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * Encrypts the first {@code length} bytes as one message and writes it in text framing.
+     */
+    private void writeLine(byte[] data, int length) throws IOException, BrokenMessageException {
+        byte[] plaintext = toTextPlaintext(data, length);
+        this.writeLock.lock();
+        try {
+            // encrypted in the order of the writes, the other side rejects reordered messages
+            byte[] encoded = Base64.encode(this.cryptor.encrypt(plaintext));
+
+            // line and line break in one write and one flush
+            byte[] line = Arrays.copyOf(encoded, encoded.length + 1);
+            line[encoded.length] = '\n';
+            OutputStream parentOut = this.parent.getOutputStream();
+            parentOut.write(line);
+            parentOut.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void writeRecord(ByteBuffer record) throws IOException {
+        if (this.parent instanceof ByteBufferChannel) {
+            this.writeLock.lock();
+            try {
+                ((ByteBufferChannel) this.parent).write(record);
+            } finally {
+                this.writeLock.unlock();
+            }
+            return;
+        }
+
+        try {
+            byte[] data = new byte[record.remaining()];
+            record.get(data);
+            this.writeLock.lock();
+            try {
+                OutputStream parentOut = this.parent.getOutputStream();
+                parentOut.write(data);
+                parentOut.flush();
+            } finally {
+                this.writeLock.unlock();
+            }
+        } finally {
+            BufferPool.shared().release(record);
+        }
+    }
+
+    /**
+     * Decrypts a message received in text framing, the same way the {@link InputStream} of this channel does.
+     *
+     * @param cryptor the cryptor of the channel
+     * @param line    the Base64 line (without line break)
+     * @return the bytes of the message
+     * @throws BrokenMessageException if the line is no Base64 or cannot be decrypted
+     */
+    public static byte[] decryptLine(MessageCryptor cryptor, String line) throws BrokenMessageException {
+        byte[] ciphertext;
+        try {
+            ciphertext = Base64.decode(line);
+        } catch (RuntimeException e) {
+            // the decoder of this Bouncy Castle version has no checked exception for bad input
+            throw new BrokenMessageException("Message is not Base64", e);
+        }
+        return fromTextPlaintext(cryptor.decrypt(ciphertext));
+    }
+
+    /**
+     * Text framing always encrypted a line as the string of its (sign extended) bytes, encoded with the default
+     * charset. Kept, so text framing stays compatible on the wire.
+     */
+    private static byte[] toTextPlaintext(byte[] data, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) data[i];
+        }
+        return new String(chars).getBytes();
+    }
+
+    /**
+     * Reverses {@link #toTextPlaintext(byte[], int)}.
+     */
+    private static byte[] fromTextPlaintext(byte[] plaintext) {
+        String s = new String(plaintext);
+        byte[] data = new byte[s.length()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) s.charAt(i);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the decrypted messages as lines (every message is followed by a line break).
+     */
+    private class MessageInputStream extends InputStream {
+        private final LineReader lines;
+        private final DataInputStream records;
+
+        // guards the current message, held while waiting for the next one
+        private final ReentrantLock lock = new ReentrantLock();
+        // the current message, pos == buffer.length means the line break is next, beyond that the message is consumed
+        private byte[] buffer = new byte[0];
+        private int pos = 1;
+
+        MessageInputStream(InputStream source) {
+            if (framing == Framing.BINARY) {
+                this.lines = null;
+                this.records = new DataInputStream(new BufferedInputStream(source));
+            } else {
+                this.lines = new LineReader(source, Framing.MAX_LINE_LENGTH);
+                this.records = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            this.lock.lock();
+            try {
+                if (!this.fill()) {
+                    return -1; // stream is dead!
+                }
+                if (this.pos == this.buffer.length) {
+                    this.pos++;
+                    return '\n';
+                }
+                return this.buffer[this.pos++] & 0xff;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            this.lock.lock();
+            try {
+                if (!this.fill()) {
+                    return -1;
+                }
+
+                // never block for a second message, return what is left of the current one
+                int n = Math.min(len, this.buffer.length - this.pos);
+                System.arraycopy(this.buffer, this.pos, b, off, n);
+                this.pos += n;
+                if (n < len && this.pos == this.buffer.length) {
+                    b[off + n++] = '\n';
+                    this.pos++;
                 }
+                return n;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            this.lock.lock();
+            try {
+                return Math.max(0, this.buffer.length + 1 - this.pos);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the next message if the current one is consumed.
+         *
+         * @return false if the stream ended
+         */
+        private boolean fill() throws IOException {
+            if (this.pos <= this.buffer.length) {
+                return true;
+            }
+
+            try {
+                byte[] next;
+                do {
+                    next = framing == Framing.BINARY ? this.readRecord() : this.readLine();
+                    if (next == null) {
+                        return false;
+                    }
+                } while (next == SKIPPED);
+                this.buffer = next;
+                this.pos = 0;
+                return true;
+            } catch (BrokenMessageException e) {
+                logger.warning(e.getMessage());
+                return false;
+            }
+        }
+
+        private byte[] readLine() throws IOException, BrokenMessageException {
+            logger.fine("Blocking...");
+            String line = this.lines.readLine();
+            if (line == null) {
+                return null;
+            }
+            return decryptLine(cryptor, line);
+        }
+
+        /**
+         * @return the next message, {@link #SKIPPED} for records that carry nothing to read
+         */
+        private byte[] readRecord() throws IOException, BrokenMessageException {
+            int length;
+            try {
+                length = this.records.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            GroupKeyring keys = groupKeys;
+            boolean group = keys != null && (length & Framing.GROUP_RECORD) != 0;
+            if (group) {
+                length &= ~Framing.GROUP_RECORD;
+            }
+            if (length < 0 || length > Framing.MAX_RECORD_LENGTH) {
+                throw new BrokenMessageException("Invalid record length: " + length);
+            }
 
-                char c = outbuffer.charAt(pos++);
-                logger.finest("Returning: " + (int) c);
-                return c;
+            byte[] record = new byte[length];
+            this.records.readFully(record);
+            if (group) {
+                byte[] message = keys.open(record);
+                if (message == null) {
+                    logger.warning("Dropped group message with an unknown key");
+                    return SKIPPED;
+                }
+                return message;
             }
 
-        };
+            byte[] message = cryptor.decrypt(record);
+            return keys != null && keys.accept(message) ? SKIPPED : message;
+        }
     }
 
-    @Override
-    public OutputStream getOutputStream() throws IOException {
-        return new OutputStream() {
-            StringBuilder sb = new StringBuilder();
+    /**
+     * Collects written bytes and encrypts every line as one message. Nothing is sent before the line break.
+     */
+    private class MessageOutputStream extends OutputStream {
+        // guards the line, held while the line is sent
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] line = new byte[256];
+        private int length = 0;
 
-            @Override
-            public void write(int b) throws IOException {
-                // read until \n
+        @Override
+        public void write(int b) throws IOException {
+            this.lock.lock();
+            try {
                 if (b == '\n') {
-                    try {
-                        BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(parent.getOutputStream()));
-                        bWriter.write(cryptor.encrypt(sb.toString()) + "\n");
-                        bWriter.flush();
-                        sb = new StringBuilder();
-                    } catch (BrokenMessageException e) {
-                        logger.warning(e.getMessage()); // TODO check it
+                    this.emit();
+                } else {
+                    this.append((byte) b);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.lock.lock();
+            try {
+                int end = off + len;
+                int start = off;
+                for (int i = off; i < end; i++) {
+                    if (b[i] == '\n') {
+                        this.append(b, start, i - start);
+                        this.emit();
+                        start = i + 1;
                     }
+                }
+                this.append(b, start, end - start);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void append(byte b) {
+            this.ensureCapacity(this.length + 1);
+            this.line[this.length++] = b;
+        }
+
+        private void append(byte[] b, int off, int len) {
+            this.ensureCapacity(this.length + len);
+            System.arraycopy(b, off, this.line, this.length, len);
+            this.length += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > this.line.length) {
+                this.line = Arrays.copyOf(this.line, Math.max(capacity, this.line.length * 2));
+            }
+        }
+
+        private void emit() throws IOException {
+            try {
+                if (framing == Framing.BINARY) {
+                    ByteBuffer message = BufferPool.shared().acquire(this.length);
+                    message.put(this.line, 0, this.length);
+                    message.flip();
+                    send(message);
                 } else {
-                    sb.append((char) b);
-                    //logger.info("Write: " + (char) b);
+                    writeLine(this.line, this.length);
                 }
+            } catch (BrokenMessageException e) {
+                logger.warning(e.getMessage());
+            } finally {
+                this.length = 0;
             }
-        };
+        }
     }
 
     @Override
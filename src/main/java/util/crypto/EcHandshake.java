@@ -0,0 +1,58 @@
+package util.crypto;
+
+/**
+ * The elliptic curve handshake, an alternative to message 1 and 2 of the RSA handshake:
+ * <pre>
+ * client: !ec-hello &lt;user&gt; &lt;client-ephemeral-key&gt; [&lt;features&gt;]
+ * server: !ec-ok &lt;chatserver-ephemeral-key&gt; &lt;chatserver-signature&gt; [&lt;features&gt;]   (or !ec-failed, then message 1 follows)
+ * client: message 3 = &lt;client-signature&gt;, already encrypted with the new session key
+ * server: !ticket &lt;ticket&gt;   (only with resumption, once the signature was verified)
+ * </pre>
+ * Both sides agree on a secret with P-256 ECDH of the ephemeral keys, the session key and IV are derived from it
+ * (see {@link KeyDerivation}). Each side signs the {@link #transcript(String, String, String, String) transcript}
+ * with its long-term EC key, so the other side knows whom it talks to.
+ * <p>
+ * The first two lines are sent unencrypted, unlike message 1 the user name is visible on the wire.
+ */
+public final class EcHandshake {
+
+    public static final String HELLO = "!ec-hello";
+    public static final String OK = "!ec-ok";
+    public static final String FAILED = "!ec-failed";
+
+    private EcHandshake() {
+    }
+
+    /**
+     * @param line a line received instead of message 1
+     * @return true if the client starts an EC handshake
+     */
+    public static boolean isHello(String line) {
+        return line.startsWith(HELLO + " ");
+    }
+
+    /**
+     * @param username        the user logging in
+     * @param clientEphemeral the ephemeral public key of the client, as sent
+     * @param serverEphemeral the ephemeral public key of the chatserver, as sent
+     * @param features        the features accepted by the chatserver, as sent
+     * @return everything both sides have to agree on
+     */
+    public static String transcript(String username, String clientEphemeral, String serverEphemeral, String features) {
+        return username + " " + clientEphemeral + " " + serverEphemeral + " " + features;
+    }
+
+    /**
+     * @return what the chatserver signs
+     */
+    public static String signedByServer(String transcript) {
+        return "chatserver " + transcript;
+    }
+
+    /**
+     * @return what the client signs
+     */
+    public static String signedByClient(String transcript) {
+        return "client " + transcript;
+    }
+}
@@ -0,0 +1,175 @@
+package util.crypto;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.crypto.KeyAgreement;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The elliptic curve operations of the EC handshake: P-256 key agreement (ECDH) and signatures (ECDSA with SHA-256).
+ * <p>
+ * All operations use the EC implementation of the JDK if there is one, it is several times faster than the one of
+ * the bundled Bouncy Castle. Keys read by {@link util.Keys} are translated accordingly.
+ */
+public final class EllipticCurves {
+
+    public static final String CURVE = "secp256r1";
+
+    private static final String SIGNATURE = "SHA256withECDSA";
+
+    // null: whatever provider comes first
+    private static final Provider PROVIDER = Security.getProvider("SunEC");
+
+    private static final ECParameterSpec PARAMETERS;
+
+    static {
+        try {
+            AlgorithmParameters parameters = PROVIDER != null
+                    ? AlgorithmParameters.getInstance("EC", PROVIDER) : AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(CURVE));
+            PARAMETERS = parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private EllipticCurves() {
+    }
+
+    /**
+     * @param random the source of randomness
+     * @return a new P-256 key pair
+     */
+    public static KeyPair generateKeyPair(SecureRandom random) {
+        try {
+            KeyPairGenerator generator = PROVIDER != null
+                    ? KeyPairGenerator.getInstance("EC", PROVIDER) : KeyPairGenerator.getInstance("EC");
+            generator.initialize(PARAMETERS, random);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param own  the own private key
+     * @param peer the public key of the other side
+     * @return the shared secret
+     */
+    public static byte[] agree(PrivateKey own, PublicKey peer) throws InvalidKeyException {
+        try {
+            KeyAgreement agreement = PROVIDER != null
+                    ? KeyAgreement.getInstance("ECDH", PROVIDER) : KeyAgreement.getInstance("ECDH");
+            agreement.init(own);
+            agreement.doPhase(peer, true);
+            return agreement.generateSecret();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param key  the private key
+     * @param data the text to sign
+     * @return the signature
+     */
+    public static byte[] sign(PrivateKey key, String data) throws InvalidKeyException {
+        try {
+            Signature signature = createSignature();
+            signature.initSign(key);
+            signature.update(data.getBytes(StandardCharsets.UTF_8));
+            return signature.sign();
+        } catch (SignatureException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param key       the public key of the signer
+     * @param data      the text that was signed
+     * @param signature the signature
+     * @return true if the signature is valid
+     */
+    public static boolean verify(PublicKey key, String data, byte[] signature) throws InvalidKeyException {
+        try {
+            Signature verifier = createSignature();
+            verifier.initVerify(key);
+            verifier.update(data.getBytes(StandardCharsets.UTF_8));
+            return verifier.verify(signature);
+        } catch (SignatureException e) {
+            // not even a well formed signature
+            return false;
+        }
+    }
+
+    /**
+     * @return the public key in X.509 encoding, as Base64
+     */
+    public static String encode(PublicKey key) {
+        return new String(Base64.encode(key.getEncoded()));
+    }
+
+    /**
+     * @param encoded a public key returned by {@link #encode(PublicKey)}
+     * @return the public key
+     * @throws InvalidKeyException if it is no P-256 key
+     */
+    public static PublicKey decode(String encoded) throws InvalidKeyException {
+        PublicKey key;
+        try {
+            key = keyFactory().generatePublic(new X509EncodedKeySpec(Base64.decode(encoded)));
+        } catch (InvalidKeySpecException | RuntimeException e) {
+            throw new InvalidKeyException("Not an encoded EC public key", e);
+        }
+        ECParameterSpec params = ((ECKey) key).getParams();
+        if (!params.getOrder().equals(PARAMETERS.getOrder()) || !params.getGenerator().equals(PARAMETERS.getGenerator())) {
+            throw new InvalidKeyException("Not a " + CURVE + " key");
+        }
+        return key;
+    }
+
+    /**
+     * @return the key as implemented by the provider used for the EC operations
+     */
+    public static PrivateKey translate(PrivateKey key) throws InvalidKeyException {
+        try {
+            return keyFactory().generatePrivate(new PKCS8EncodedKeySpec(key.getEncoded()));
+        } catch (InvalidKeySpecException e) {
+            throw new InvalidKeyException(e);
+        }
+    }
+
+    /**
+     * @return the key as implemented by the provider used for the EC operations
+     */
+    public static PublicKey translate(PublicKey key) throws InvalidKeyException {
+        try {
+            return keyFactory().generatePublic(new X509EncodedKeySpec(key.getEncoded()));
+        } catch (InvalidKeySpecException e) {
+            throw new InvalidKeyException(e);
+        }
+    }
+
+    private static KeyFactory keyFactory() {
+        try {
+            return PROVIDER != null ? KeyFactory.getInstance("EC", PROVIDER) : KeyFactory.getInstance("EC");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Signature createSignature() {
+        try {
+            return PROVIDER != null ? Signature.getInstance(SIGNATURE, PROVIDER) : Signature.getInstance(SIGNATURE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package util.crypto;
+
+/**
+ * How a {@link CryptoChannel} puts encrypted messages on the wire.
+ */
+public enum Framing {
+    /**
+     * Every message is sent as a Base64 encoded line.
+     */
+    TEXT,
+
+    /**
+     * Every message is sent as a record: a 4 byte (big endian) length followed by the raw ciphertext. If the length
+     * has {@link #GROUP_RECORD} set, the record is encrypted with the group key instead of the session key.
+     */
+    BINARY;
+
+    /**
+     * The largest record accepted, larger lengths are treated as a broken stream.
+     */
+    public static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    /**
+     * The longest line accepted in text framing: the Base64 encoding of the largest record.
+     */
+    public static final int MAX_LINE_LENGTH = (MAX_RECORD_LENGTH + 2) / 3 * 4;
+
+    /**
+     * Flag in the length of a binary record sent with a {@link GroupKey}.
+     */
+    public static final int GROUP_RECORD = 0x80000000;
+}
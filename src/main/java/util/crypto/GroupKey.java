@@ -0,0 +1,80 @@
+package util.crypto;
+
+import org.bouncycastle.util.encoders.Base64;
+import util.crypto.cryptors.AESGCMMessageCryptor;
+import util.crypto.cryptors.CompressingMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+/**
+ * A key the chatserver shares with all users that negotiated {@link util.HandshakeFeatures#GROUP_BROADCAST}, so a
+ * public message is encrypted once instead of once per recipient.
+ * <p>
+ * The key is handed to every member over its own session as {@code !groupKey <epoch> <key> <iv>} before the first
+ * record that uses it. A record is a binary record with {@link Framing#GROUP_RECORD} set in its length, followed by
+ * the epoch of the key (4 bytes) and the message encrypted with AES-GCM (compressed like
+ * {@link CompressingMessageCryptor} does). Every member can read what is sent to the group, the chatserver picks a
+ * new key whenever a user logs in or out.
+ */
+public class GroupKey {
+
+    public static final String MARKER = "!groupKey";
+
+    private final int epoch;
+    private final byte[] key;
+    private final byte[] iv;
+    private final MessageCryptor cryptor;
+
+    private GroupKey(int epoch, byte[] key, byte[] iv) throws InvalidKeyException {
+        this.epoch = epoch;
+        this.key = key;
+        this.iv = iv;
+        this.cryptor = new CompressingMessageCryptor(new AESGCMMessageCryptor(iv, key, true));
+    }
+
+    /**
+     * @param epoch  the number of the key, has to differ from the one of the previous key
+     * @param random the source of the key
+     * @return a new 256 bit key
+     */
+    public static GroupKey generate(int epoch, SecureRandom random) {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        try {
+            return new GroupKey(epoch, key, iv);
+        } catch (InvalidKeyException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public int getEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * @return the line that hands the key to a member, sent over the session of the member
+     */
+    public String toLine() {
+        return MARKER + " " + this.epoch + " " + new String(Base64.encode(this.key)) + " " + new String(Base64.encode(this.iv));
+    }
+
+    /**
+     * Encrypts a message for all members.
+     *
+     * @param message the plaintext
+     * @return the complete record, including its length; it is never changed, so it can be written to every session
+     */
+    public byte[] seal(byte[] message) throws BrokenMessageException {
+        byte[] ciphertext = this.cryptor.encrypt(message);
+        return ByteBuffer.allocate(8 + ciphertext.length)
+                .putInt(Framing.GROUP_RECORD | (4 + ciphertext.length))
+                .putInt(this.epoch)
+                .put(ciphertext)
+                .array();
+    }
+}
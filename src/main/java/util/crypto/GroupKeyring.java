@@ -0,0 +1,101 @@
+package util.crypto;
+
+import org.bouncycastle.util.encoders.Base64;
+import util.crypto.cryptors.AESGCMMessageCryptor;
+import util.crypto.cryptors.CompressingMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The group keys a client received, used by its {@link CryptoChannel} to read the records of {@link GroupKey}.
+ * <p>
+ * Besides the current key the previous one is kept: a message sealed just before the key changed may still be on
+ * its way.
+ */
+public class GroupKeyring {
+
+    private static final Logger LOGGER = Logger.getLogger("GroupKeyring");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private static final byte[] MARKER = (GroupKey.MARKER + " ").getBytes(StandardCharsets.US_ASCII);
+
+    private int currentEpoch, previousEpoch;
+    private MessageCryptor current, previous;
+
+    /**
+     * Takes the key if the message is a key line.
+     *
+     * @param message a message received over the session
+     * @return true if it was a key line, it must not be shown to the user then
+     */
+    public synchronized boolean accept(byte[] message) {
+        if (!startsWithMarker(message)) {
+            return false;
+        }
+
+        String[] split = new String(message, StandardCharsets.US_ASCII).split(" ");
+        try {
+            if (split.length != 4) {
+                throw new IllegalArgumentException("Expected 4 parts, got " + split.length);
+            }
+            int epoch = Integer.parseInt(split[1]);
+            MessageCryptor cryptor = new CompressingMessageCryptor(
+                    new AESGCMMessageCryptor(Base64.decode(split[3]), Base64.decode(split[2]), false, true));
+
+            this.previousEpoch = this.currentEpoch;
+            this.previous = this.current;
+            this.currentEpoch = epoch;
+            this.current = cryptor;
+        } catch (InvalidKeyException | RuntimeException e) {
+            // this version of bouncy castle throws plain runtime exceptions on malformed Base64
+            LOGGER.warning("Ignoring malformed group key: " + e);
+        }
+        return true;
+    }
+
+    /**
+     * @param record a group record, without its length
+     * @return the message, null if the key of the record is unknown
+     */
+    public byte[] open(byte[] record) throws BrokenMessageException {
+        if (record.length < 4) {
+            throw new BrokenMessageException("Group record too short: " + record.length);
+        }
+        int epoch = ByteBuffer.wrap(record).getInt();
+
+        MessageCryptor cryptor;
+        synchronized (this) {
+            if (this.current != null && epoch == this.currentEpoch) {
+                cryptor = this.current;
+            } else if (this.previous != null && epoch == this.previousEpoch) {
+                cryptor = this.previous;
+            } else {
+                return null;
+            }
+        }
+
+        byte[] ciphertext = new byte[record.length - 4];
+        System.arraycopy(record, 4, ciphertext, 0, ciphertext.length);
+        return cryptor.decrypt(ciphertext);
+    }
+
+    private static boolean startsWithMarker(byte[] message) {
+        if (message.length < MARKER.length) {
+            return false;
+        }
+        for (int i = 0; i < MARKER.length; i++) {
+            if (message[i] != MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
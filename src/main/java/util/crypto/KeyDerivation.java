@@ -0,0 +1,62 @@
+package util.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Derives session keys from a shared secret with HMAC-SHA256, for the handshakes that do not send the session key
+ * ({@link Resumption} and {@link EcHandshake}).
+ */
+public final class KeyDerivation {
+
+    // the key changes with every call, but the instance can be reused
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    private KeyDerivation() {
+    }
+
+    /**
+     * @param secret the shared secret
+     * @param a      the contribution (e.g. challenge) of the client
+     * @param b      the contribution of the chatserver
+     * @return a 256 bit AES key
+     */
+    public static byte[] deriveKey(byte[] secret, String a, String b) {
+        return hmac(secret, "key " + a + " " + b);
+    }
+
+    /**
+     * @return a 16 byte IV, see {@link #deriveKey(byte[], String, String)}
+     */
+    public static byte[] deriveIv(byte[] secret, String a, String b) {
+        return Arrays.copyOf(hmac(secret, "iv " + a + " " + b), 16);
+    }
+
+    /**
+     * @param key   the key
+     * @param label the text to authenticate
+     * @return the HMAC-SHA256 of the label
+     */
+    public static byte[] hmac(byte[] key, String label) {
+        try {
+            Mac mac = MACS.get();
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (InvalidKeyException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
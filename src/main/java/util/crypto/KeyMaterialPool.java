@@ -0,0 +1,192 @@
+package util.crypto;
+
+import javax.crypto.KeyGenerator;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Random material for handshakes (challenges, AES keys, IVs and ephemeral EC key pairs), generated ahead of time by
+ * a background thread.
+ * <p>
+ * Taking material never blocks: if the pool ran dry it is generated by the caller (a miss). Seeding and running the
+ * {@link SecureRandom} therefore happens off the handshake path as long as the pool keeps up.
+ */
+public class KeyMaterialPool {
+
+    public static final int CHALLENGE_SIZE = 32;
+    public static final int IV_SIZE = 16;
+    public static final int AES_KEY_SIZE = 256;
+
+    private final SecureRandom random = new SecureRandom();
+    private final BlockingQueue<byte[]> challenges;
+    private final BlockingQueue<byte[]> aesKeys;
+    private final BlockingQueue<byte[]> ivs;
+    private final BlockingQueue<KeyPair> ecKeyPairs;
+    private final Thread refiller;
+    private volatile boolean running = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refilled = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    /**
+     * @param depth the number of challenges, keys, IVs and key pairs to keep ready (each), 0 disables the pool
+     */
+    public KeyMaterialPool(int depth) {
+        int capacity = Math.max(depth, 1);
+        this.challenges = new ArrayBlockingQueue<>(capacity);
+        this.aesKeys = new ArrayBlockingQueue<>(capacity);
+        this.ivs = new ArrayBlockingQueue<>(capacity);
+        this.ecKeyPairs = new ArrayBlockingQueue<>(capacity);
+
+        if (depth > 0) {
+            this.refiller = new Thread(new Refiller(), "KeyMaterialPool");
+            this.refiller.setDaemon(true);
+            this.refiller.start();
+        } else {
+            this.refiller = null;
+            this.running = false;
+        }
+    }
+
+    /**
+     * @return {@value #CHALLENGE_SIZE} random bytes
+     */
+    public byte[] takeChallenge() {
+        return this.take(this.challenges, CHALLENGE_SIZE);
+    }
+
+    /**
+     * @return a {@value #IV_SIZE} bytes random IV
+     */
+    public byte[] takeIv() {
+        return this.take(this.ivs, IV_SIZE);
+    }
+
+    /**
+     * @return an encoded {@value #AES_KEY_SIZE} bit AES key
+     */
+    public byte[] takeAesKey() {
+        byte[] key = this.aesKeys.poll();
+        if (key != null) {
+            this.hits.incrementAndGet();
+            this.wakeRefiller();
+            return key;
+        }
+        this.misses.incrementAndGet();
+        return this.generateAesKey();
+    }
+
+    /**
+     * @return a new key pair for {@link EllipticCurves#CURVE}
+     */
+    public KeyPair takeEcKeyPair() {
+        KeyPair keyPair = this.ecKeyPairs.poll();
+        if (keyPair != null) {
+            this.hits.incrementAndGet();
+            this.wakeRefiller();
+            return keyPair;
+        }
+        this.misses.incrementAndGet();
+        return EllipticCurves.generateKeyPair(this.random);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getRefilled() {
+        return this.refilled.get();
+    }
+
+    /**
+     * @return the average number of items generated in the background per second
+     */
+    public double getRefillRate() {
+        double seconds = (System.nanoTime() - this.started) / 1e9;
+        return seconds <= 0 ? 0 : this.refilled.get() / seconds;
+    }
+
+    /**
+     * @return the number of items ready to be taken
+     */
+    public int getAvailable() {
+        return this.challenges.size() + this.aesKeys.size() + this.ivs.size() + this.ecKeyPairs.size();
+    }
+
+    public void shutdown() {
+        this.running = false;
+        this.wakeRefiller();
+    }
+
+    private byte[] take(BlockingQueue<byte[]> queue, int size) {
+        byte[] b = queue.poll();
+        if (b != null) {
+            this.hits.incrementAndGet();
+            this.wakeRefiller();
+            return b;
+        }
+        this.misses.incrementAndGet();
+        return this.randomBytes(size);
+    }
+
+    private void wakeRefiller() {
+        if (this.refiller != null) {
+            LockSupport.unpark(this.refiller);
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] b = new byte[size];
+        this.random.nextBytes(b);
+        return b;
+    }
+
+    private byte[] generateAesKey() {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(AES_KEY_SIZE, this.random);
+            return generator.generateKey().getEncoded();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private class Refiller implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                int added = 0;
+                if (challenges.remainingCapacity() > 0 && challenges.offer(randomBytes(CHALLENGE_SIZE))) {
+                    added++;
+                }
+                if (aesKeys.remainingCapacity() > 0 && aesKeys.offer(generateAesKey())) {
+                    added++;
+                }
+                if (ivs.remainingCapacity() > 0 && ivs.offer(randomBytes(IV_SIZE))) {
+                    added++;
+                }
+                if (ecKeyPairs.remainingCapacity() > 0 && ecKeyPairs.offer(EllipticCurves.generateKeyPair(random))) {
+                    added++;
+                }
+
+                if (added > 0) {
+                    refilled.addAndGet(added);
+                } else {
+                    // everything is full, wait until something is taken
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+}
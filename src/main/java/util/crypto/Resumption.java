@@ -0,0 +1,48 @@
+package util.crypto;
+
+/**
+ * Session resumption: after a handshake the chatserver hands out a ticket (followed by
+ * {@code !ticket <ticket>} as a plain line after message 2), a returning client skips the RSA messages with it:
+ * <pre>
+ * client: !resume &lt;ticket&gt; &lt;client-challenge&gt; [&lt;features&gt;]
+ * server: !resumed &lt;chatserver-challenge&gt; &lt;proof&gt; [&lt;features&gt;]   (or !resume-failed, then message 1 follows)
+ * client: message 3, as in the full handshake
+ * </pre>
+ * Both lines are sent unencrypted, the secret of the ticket never leaves either side: the new session key and IV are
+ * derived from it and both challenges (see {@link KeyDerivation}), the proof shows the client that the server knows it.
+ */
+public final class Resumption {
+
+    public static final String RESUME = "!resume";
+    public static final String RESUMED = "!resumed";
+    public static final String RESUME_FAILED = "!resume-failed";
+    public static final String TICKET = "!ticket";
+
+    private Resumption() {
+    }
+
+    /**
+     * @param line a line received instead of message 1
+     * @return true if the client asks for resumption
+     */
+    public static boolean isResume(String line) {
+        return line.startsWith(RESUME + " ");
+    }
+
+    /**
+     * @param sessionKey         the AES key of the session the ticket is issued for
+     * @param serverChallengeB64 the challenge of the chatserver of that session
+     * @return the secret of the ticket
+     */
+    public static byte[] deriveSecret(byte[] sessionKey, String serverChallengeB64) {
+        return KeyDerivation.hmac(sessionKey, "secret " + serverChallengeB64);
+    }
+
+    /**
+     * @param features the features as sent by the server, so they cannot be changed on the way
+     * @return the proof the server sends along with its challenge
+     */
+    public static byte[] proof(byte[] secret, String clientChallengeB64, String serverChallengeB64, String features) {
+        return KeyDerivation.hmac(secret, "proof " + clientChallengeB64 + " " + serverChallengeB64 + " " + features);
+    }
+}
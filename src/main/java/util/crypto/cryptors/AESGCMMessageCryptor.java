@@ -0,0 +1,262 @@
+package util.crypto.cryptors;
+
+import org.bouncycastle.util.encoders.Base64;
+import util.crypto.BrokenMessageException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * This class allows to encrypt and authenticate a communication channel with AES in Galois/Counter Mode.
+ * <p>
+ * Every message gets its own nonce, which is sent in front of the ciphertext:
+ * {@code <nonce (12 bytes)> <ciphertext> <tag (16 bytes)>}. The nonce is the IV of the handshake xor the sender
+ * (client or server) and a message counter, so both sides can share one key without ever reusing a nonce.
+ * Messages that were changed, sent by the wrong side, replayed or reordered fail to decrypt: every message has to
+ * carry the counter following the one of the previous message. Cryptors with a replay window accept messages that
+ * arrive late (up to {@link #WINDOW} messages) or not at all, but still every counter only once.
+ */
+public class AESGCMMessageCryptor implements MessageCryptor {
+    private static Logger logger = Logger.getLogger("AESGCMMessageCryptor");
+
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The number of messages a message may arrive late at a cryptor with a replay window.
+     */
+    public static final int WINDOW = 64;
+
+    private static final int SENDER_CLIENT = 1;
+    private static final int SENDER_SERVER = 2;
+
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private final int sender, receiver;
+
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    // guard the ciphers and counters, no monitors so waiting virtual threads do not pin their carrier
+    private final ReentrantLock encryptLock = new ReentrantLock();
+    private final ReentrantLock decryptLock = new ReentrantLock();
+    private final boolean window;
+    private long counter = 0;
+    // the counter the next message received has to carry, one more than the highest one received
+    private long expected = 0;
+    // bit i is set if the message with the counter expected - 1 - i was received (replay window only)
+    private long received = 0;
+
+    /**
+     * @param iv         the IV of the handshake, the first 12 bytes are used
+     * @param key        the AES key
+     * @param serverSide true for the cryptor of the chatserver, false for the one of the client
+     */
+    public AESGCMMessageCryptor(byte[] iv, byte[] key, boolean serverSide) throws InvalidKeyException {
+        this(iv, key, serverSide, false);
+    }
+
+    /**
+     * @param iv         the IV of the handshake, the first 12 bytes are used
+     * @param key        the AES key
+     * @param serverSide true for the cryptor of the chatserver, false for the one of the client
+     * @param window     true to accept messages that arrive late or not at all, as the records of a
+     *                   {@link util.crypto.GroupKey} do (they are sealed by many threads, a member misses the ones
+     *                   sealed before it joined)
+     */
+    public AESGCMMessageCryptor(byte[] iv, byte[] key, boolean serverSide, boolean window) throws InvalidKeyException {
+        if (iv.length < NONCE_LENGTH) {
+            throw new IllegalArgumentException("IV too short: " + iv.length);
+        }
+        this.key = new SecretKeySpec(key, "AES");
+        this.iv = iv.clone();
+        this.sender = serverSide ? SENDER_SERVER : SENDER_CLIENT;
+        this.receiver = serverSide ? SENDER_CLIENT : SENDER_SERVER;
+        this.window = window;
+
+        this.encryptCipher = createCipher();
+        this.decryptCipher = createCipher();
+
+        // fail with the key here instead of at the first message (the encrypt cipher refuses to init a nonce twice)
+        this.init(this.decryptCipher, Cipher.DECRYPT_MODE, this.nonce(this.receiver, 0));
+    }
+
+    private static Cipher createCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            logger.warning("Failed to initialize cipher!");
+            throw new AssertionError(e);
+        }
+    }
+
+    private void init(Cipher cipher, int mode, byte[] nonce) throws InvalidKeyException {
+        try {
+            cipher.init(mode, this.key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        } catch (InvalidKeyException e) {
+            logger.warning("Wrong key!");
+            throw e;
+        } catch (InvalidAlgorithmParameterException e) {
+            logger.warning("Invalid Arguments for the cipher.");
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return the nonce of the given message of the given sender
+     */
+    private byte[] nonce(int sender, long counter) {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(sender).putLong(counter).array();
+        for (int i = 0; i < NONCE_LENGTH; i++) {
+            nonce[i] ^= this.iv[i];
+        }
+        return nonce;
+    }
+
+    /**
+     * @return the nonce of the next message sent
+     */
+    private byte[] nextNonce() {
+        if (this.counter < 0) {
+            throw new IllegalStateException("Too many messages for one session key");
+        }
+        return this.nonce(this.sender, this.counter++);
+    }
+
+    /**
+     * Checks that the nonce of a received message was generated by the other side for the next message (or one that
+     * is still missing, if there is a replay window).
+     *
+     * @return the counter of the message
+     */
+    private long checkNonce(byte[] nonce) throws BrokenMessageException {
+        for (int i = 0; i < 4; i++) {
+            if ((byte) (nonce[i] ^ this.iv[i]) != (byte) (this.receiver >>> (24 - 8 * i))) {
+                throw new BrokenMessageException("Message was not sent by the other side");
+            }
+        }
+
+        long counter = 0;
+        for (int i = 4; i < NONCE_LENGTH; i++) {
+            counter = counter << 8 | ((nonce[i] ^ this.iv[i]) & 0xff);
+        }
+        if (counter == this.expected || (this.window && counter > this.expected)) {
+            return counter;
+        }
+        long late = this.expected - 1 - counter;
+        if (this.window && late >= 0 && late < WINDOW && (this.received & (1L << late)) == 0) {
+            return counter;
+        }
+        throw new BrokenMessageException("Message replayed or out of order (expected " + this.expected + ", got " + counter + ")");
+    }
+
+    /**
+     * Remembers the counter of an authentic message.
+     */
+    private void received(long counter) {
+        if (counter >= this.expected) {
+            long shift = counter + 1 - this.expected;
+            this.received = shift >= WINDOW ? 0 : this.received << shift;
+            this.received |= 1;
+            this.expected = counter + 1;
+        } else {
+            this.received |= 1L << (this.expected - 1 - counter);
+        }
+    }
+
+    @Override
+    public String decrypt(String msg) throws BrokenMessageException {
+        String ret = new String(this.decrypt(Base64.decode(msg)));
+        logger.info("Decrypted to: " + ret);
+        return ret;
+    }
+
+    @Override
+    public String encrypt(String msg) throws BrokenMessageException {
+        String encoded = new String(Base64.encode(this.encrypt(msg.getBytes())));
+
+        logger.info("Encrypted to: " + encoded);
+
+        return encoded;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws BrokenMessageException {
+        ByteBuffer dst = ByteBuffer.allocate(this.getMaxOutputSize(data.length));
+        this.encrypt(ByteBuffer.wrap(data), dst);
+        return dst.array();
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws BrokenMessageException {
+        if (data.length < NONCE_LENGTH + TAG_LENGTH) {
+            throw new BrokenMessageException("Message too short: " + data.length);
+        }
+        ByteBuffer dst = ByteBuffer.allocate(data.length - NONCE_LENGTH - TAG_LENGTH);
+        this.decrypt(ByteBuffer.wrap(data), dst);
+        return dst.array();
+    }
+
+    /**
+     * Unlike the other cryptors {@code src} and {@code dst} must not be the same buffer, as the nonce is
+     * written in front of the ciphertext.
+     */
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        this.encryptLock.lock();
+        try {
+            byte[] nonce = this.nextNonce();
+            this.init(this.encryptCipher, Cipher.ENCRYPT_MODE, nonce);
+            dst.put(nonce);
+            return NONCE_LENGTH + this.encryptCipher.doFinal(src, dst);
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new BrokenMessageException(e);
+        } finally {
+            this.encryptLock.unlock();
+        }
+    }
+
+    /**
+     * Unlike the other cryptors {@code src} and {@code dst} must not be the same buffer.
+     */
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        if (src.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+            throw new BrokenMessageException("Message too short: " + src.remaining());
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        src.get(nonce);
+
+        this.decryptLock.lock();
+        try {
+            long counter = this.checkNonce(nonce);
+            this.init(this.decryptCipher, Cipher.DECRYPT_MODE, nonce);
+            int length = this.decryptCipher.doFinal(src, dst);
+            // only authentic messages move the counter on
+            this.received(counter);
+            return length;
+        } catch (AEADBadTagException e) {
+            throw new BrokenMessageException("Message failed authentication");
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+            throw new BrokenMessageException(e);
+        } finally {
+            this.decryptLock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxOutputSize(int inputLength) {
+        return inputLength + NONCE_LENGTH + TAG_LENGTH;
+    }
+}
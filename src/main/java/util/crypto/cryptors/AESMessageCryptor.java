@@ -3,28 +3,85 @@ package util.crypto.cryptors;
 import org.bouncycastle.util.encoders.Base64;
 import util.crypto.BrokenMessageException;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
  * This class allows to encrypt a communication channel with AES.
+ * <p>
+ * Each direction of a session is one continuous CTR keystream: a message is XORed with the bytes of the keystream
+ * following the ones of the previous message, so no keystream byte is ever used twice. The chatserver starts its
+ * keystream at the IV with the highest bit flipped, the client at the IV, so the two directions do not overlap
+ * either. Both sides therefore have to encrypt and decrypt every message exactly once and in order.
+ * <p>
+ * The keystream does not depend on the messages, so it can be computed before there is anything to encrypt: by
+ * default the next {@value #DEFAULT_KEYSTREAM} bytes of each direction are prepared when the cryptor is created and
+ * refilled in the background once half of them are used. Messages longer than what is prepared take the rest
+ * straight from the cipher.
  */
 public class AESMessageCryptor implements MessageCryptor {
     private static Logger logger = Logger.getLogger("AESMessageCryptor");
 
-    private Cipher cipher;
+    /**
+     * Bytes of keystream prepared per direction for a new session.
+     */
+    public static final int DEFAULT_KEYSTREAM = 1024;
 
-    public AESMessageCryptor(byte[] iv, byte[] key) throws InvalidKeyException {
+    /**
+     * The most keystream kept prepared per direction.
+     */
+    public static final int MAX_KEYSTREAM = 64 * 1024;
+
+    private static final ExecutorService EXTENDER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AESKeystream");
+            thread.setDaemon(true);
+            // only use cores nobody else needs
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final Keystream encryptStream;
+    private final Keystream decryptStream;
+
+    /**
+     * @param serverSide true for the cryptor of the chatserver, false for the one of the client
+     */
+    public AESMessageCryptor(byte[] iv, byte[] key, boolean serverSide) throws InvalidKeyException {
+        this(iv, key, serverSide, DEFAULT_KEYSTREAM);
+    }
+
+    /**
+     * @param serverSide true for the cryptor of the chatserver, false for the one of the client
+     * @param keystream  the bytes of keystream to prepare per direction, 0 to run every message through the cipher
+     */
+    public AESMessageCryptor(byte[] iv, byte[] key, boolean serverSide, int keystream) throws InvalidKeyException {
+        byte[] serverIv = iv.clone();
+        serverIv[0] ^= (byte) 0x80;
+        int prepared = Math.min(keystream, MAX_KEYSTREAM);
+        this.encryptStream = new Keystream(createCipher(serverSide ? serverIv : iv, key), prepared);
+        this.decryptStream = new Keystream(createCipher(serverSide ? iv : serverIv, key), prepared);
+    }
+
+    private static Cipher createCipher(byte[] iv, byte[] key) throws InvalidKeyException {
+        Cipher cipher;
         try {
-            this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             logger.warning("Failed to initialize cipher!");
             throw new AssertionError(e);
@@ -34,7 +91,8 @@ public class AESMessageCryptor implements MessageCryptor {
         SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
 
         try {
-            this.cipher.init(Cipher.DECRYPT_MODE, skeySpec, ivPs);
+            // CTR mode: encrypting and decrypting is the same operation
+            cipher.init(Cipher.DECRYPT_MODE, skeySpec, ivPs);
         } catch (InvalidKeyException e) {
             logger.warning("Wrong key!");
             throw e;
@@ -42,34 +100,153 @@ public class AESMessageCryptor implements MessageCryptor {
             logger.warning("Invalid Arguments for the cipher.");
             throw new AssertionError(e);
         }
+        return cipher;
     }
 
     @Override
     public String decrypt(String msg) throws BrokenMessageException {
-        try {
-            byte[] data = Base64.decode(msg);
-            byte[] decrypted = this.cipher.doFinal(data);
-
-            String ret = new String(decrypted);
-            logger.info("Decrypted to: " + ret);
-            return ret;
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-            throw new BrokenMessageException(e);
-        }
+        String ret = new String(this.decrypt(Base64.decode(msg)));
+        logger.info("Decrypted to: " + ret);
+        return ret;
     }
 
     @Override
     public String encrypt(String msg) throws BrokenMessageException {
-        try {
-            byte[] encrypted = this.cipher.doFinal(msg.getBytes());
+        String encoded = new String(Base64.encode(this.encrypt(msg.getBytes())));
+
+        logger.info("Encrypted to: " + encoded);
+
+        return encoded;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws BrokenMessageException {
+        return this.encryptStream.apply(data);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws BrokenMessageException {
+        return this.decryptStream.apply(data);
+    }
+
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        return this.encryptStream.apply(src, dst);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        return this.decryptStream.apply(src, dst);
+    }
+
+    @Override
+    public int getMaxOutputSize(int inputLength) {
+        return inputLength;
+    }
 
-            String encoded = new String(Base64.encode(encrypted));
+    /**
+     * The keystream of one direction: the prepared bytes first, then the cipher itself. A
+     * {@link ReentrantLock} is used instead of the monitor of the cipher, so a virtual thread waiting for it
+     * does not pin its carrier thread.
+     */
+    private static class Keystream {
+        private final Cipher cipher;
+        private final int target;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
 
-            logger.info("Encrypted to: " + encoded);
+        // the prepared bytes not used yet are buffer[pos, end)
+        private byte[] buffer;
+        private int pos = 0, end = 0;
+
+        /**
+         * @param cipher the CTR cipher, only used by this keystream
+         * @param target the bytes to keep prepared, 0 for none
+         */
+        Keystream(Cipher cipher, int target) {
+            this.cipher = cipher;
+            this.target = target;
+            this.buffer = new byte[target];
+            this.refill();
+        }
+
+        byte[] apply(byte[] data) throws BrokenMessageException {
+            byte[] result = new byte[data.length];
+            this.apply(ByteBuffer.wrap(data), ByteBuffer.wrap(result));
+            return result;
+        }
+
+        /**
+         * XORs the next {@code src.remaining()} bytes of the keystream into {@code dst}, src and dst may be the same
+         * buffer.
+         */
+        int apply(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+            int length = src.remaining();
+            if (dst.remaining() < length) {
+                throw new BrokenMessageException("Output buffer too small: " + dst.remaining() + " < " + length);
+            }
+
+            boolean refill;
+            this.lock.lock();
+            try {
+                // absolute access for the prepared part
+                int n = Math.min(length, this.end - this.pos);
+                int srcPos = src.position();
+                int dstPos = dst.position();
+                for (int i = 0; i < n; i++) {
+                    dst.put(dstPos + i, (byte) (src.get(srcPos + i) ^ this.buffer[this.pos + i]));
+                }
+                this.pos += n;
+                src.position(srcPos + n);
+                dst.position(dstPos + n);
+
+                // the rest continues the same keystream (the cipher refuses to take the same buffer twice)
+                if (src.hasRemaining()) {
+                    this.cipher.update(src == dst ? src.duplicate() : src, dst);
+                }
+                refill = this.end - this.pos < this.target / 2;
+            } catch (ShortBufferException e) {
+                throw new BrokenMessageException(e);
+            } finally {
+                this.lock.unlock();
+            }
+
+            if (refill && this.refilling.compareAndSet(false, true)) {
+                EXTENDER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            refill();
+                        } finally {
+                            refilling.set(false);
+                        }
+                    }
+                });
+            }
+            return length;
+        }
 
-            return encoded;
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-            throw new BrokenMessageException(e);
+        /**
+         * Prepares keystream until {@link #target} bytes are ready.
+         */
+        private void refill() {
+            this.lock.lock();
+            try {
+                int ready = this.end - this.pos;
+                if (ready >= this.target) {
+                    return;
+                }
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, ready);
+                // the encryption of zeros is the keystream itself
+                int n = this.cipher.update(new byte[this.target - ready], 0, this.target - ready, this.buffer, ready);
+                this.pos = 0;
+                this.end = ready + n;
+            } catch (ShortBufferException e) {
+                // the buffer holds target bytes
+                throw new AssertionError(e);
+            } finally {
+                this.lock.unlock();
+            }
         }
     }
 }
@@ -0,0 +1,302 @@
+package util.crypto.cryptors;
+
+import org.bouncycastle.util.encoders.Base64;
+import util.crypto.BrokenMessageException;
+import util.crypto.Framing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decorates a {@link MessageCryptor} so that messages are compressed with Deflate before they are encrypted.
+ * <p>
+ * Every plaintext starts with one byte telling whether the rest is {@link #STORED} or {@link #DEFLATED}. Messages
+ * shorter than the threshold, and messages Deflate does not make shorter, are stored: chat lines are mostly short
+ * and would only grow. Used when both sides negotiated {@link util.HandshakeFeatures#COMPRESSION}.
+ * <p>
+ * Compressing before encrypting leaks information through the length of the ciphertext, which is what the CRIME
+ * and BREACH attacks on TLS and HTTP exploit: if an attacker can put text of their own into a message that also holds
+ * a secret, the message gets shorter whenever the guessed text matches the secret, and the secret can be recovered
+ * guess by guess. Every message is compressed on its own (the Deflater is reset), so a guess can only be compared
+ * with secrets in the same message, but that is still possible. Therefore the feature is off unless configured, and
+ * it should not be enabled for sessions whose messages mix text chosen by others with confidential text.
+ */
+public class CompressingMessageCryptor implements MessageCryptor {
+
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+
+    /**
+     * Messages below this size (in bytes) are never compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final Statistics STATISTICS = new Statistics();
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            // chat messages are small, speed matters more than the last few percent
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final MessageCryptor cryptor;
+    private final int threshold;
+
+    public CompressingMessageCryptor(MessageCryptor cryptor) {
+        this(cryptor, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param cryptor   the cryptor encrypting the (compressed) messages
+     * @param threshold messages below this size (in bytes) are sent uncompressed
+     */
+    public CompressingMessageCryptor(MessageCryptor cryptor, int threshold) {
+        this.cryptor = cryptor;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the counters of all compressing cryptors
+     */
+    public static Statistics getStatistics() {
+        return STATISTICS;
+    }
+
+    @Override
+    public String encrypt(String msg) throws BrokenMessageException {
+        return new String(Base64.encode(this.encrypt(msg.getBytes())));
+    }
+
+    @Override
+    public String decrypt(String msg) throws BrokenMessageException {
+        return new String(this.decrypt(Base64.decode(msg)));
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws BrokenMessageException {
+        byte[] plaintext = new byte[data.length + 1];
+        int length = this.compress(data, 0, data.length, plaintext);
+        if (length == plaintext.length) {
+            return this.cryptor.encrypt(plaintext);
+        }
+        byte[] compressed = new byte[length];
+        System.arraycopy(plaintext, 0, compressed, 0, length);
+        return this.cryptor.encrypt(compressed);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws BrokenMessageException {
+        byte[] plaintext = this.cryptor.decrypt(data);
+        if (plaintext.length == 0) {
+            throw new BrokenMessageException("Message without compression header");
+        }
+        if (plaintext[0] == STORED) {
+            byte[] message = new byte[plaintext.length - 1];
+            System.arraycopy(plaintext, 1, message, 0, message.length);
+            return message;
+        }
+        if (plaintext[0] != DEFLATED) {
+            throw new BrokenMessageException("Unknown compression header: " + plaintext[0]);
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(Math.min(Framing.MAX_RECORD_LENGTH, Math.max(64, plaintext.length * 4)));
+        while (true) {
+            int length = this.inflate(plaintext, message);
+            if (length >= 0) {
+                byte[] result = new byte[length];
+                System.arraycopy(message.array(), 0, result, 0, length);
+                return result;
+            }
+            if (message.capacity() >= Framing.MAX_RECORD_LENGTH) {
+                throw new BrokenMessageException("Decompressed message is longer than " + Framing.MAX_RECORD_LENGTH + " bytes");
+            }
+            message = ByteBuffer.allocate(Math.min(Framing.MAX_RECORD_LENGTH, message.capacity() * 2));
+        }
+    }
+
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        int length = src.remaining();
+        byte[] data;
+        int offset;
+        if (src.hasArray()) {
+            data = src.array();
+            offset = src.arrayOffset() + src.position();
+        } else {
+            data = new byte[length];
+            src.duplicate().get(data);
+            offset = 0;
+        }
+
+        byte[] plaintext = new byte[length + 1];
+        int plaintextLength = this.compress(data, offset, length, plaintext);
+        src.position(src.limit());
+        return this.cryptor.encrypt(ByteBuffer.wrap(plaintext, 0, plaintextLength), dst);
+    }
+
+    /**
+     * Unlike the other cryptors the plaintext can be much longer than the ciphertext: {@code dst} has to be large
+     * enough for the decompressed message, otherwise the message is treated as broken.
+     */
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        byte[] message = this.decrypt(this.remaining(src));
+        if (message.length > dst.remaining()) {
+            throw new BrokenMessageException("Decompressed message does not fit into the buffer");
+        }
+        dst.put(message);
+        return message.length;
+    }
+
+    @Override
+    public int getMaxOutputSize(int inputLength) {
+        // header byte, compressed messages are never longer than stored ones
+        return this.cryptor.getMaxOutputSize(inputLength + 1);
+    }
+
+    /**
+     * Writes header and message to {@code out} (which has room for the stored message).
+     *
+     * @return the length of the plaintext to encrypt
+     */
+    private int compress(byte[] data, int offset, int length, byte[] out) {
+        if (length >= this.threshold) {
+            long start = System.nanoTime();
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // only worth it if it fits into the space of the stored message
+            int compressed = deflater.deflate(out, 1, out.length - 1);
+            boolean shorter = deflater.finished() && compressed < length;
+            STATISTICS.deflated(length, shorter ? compressed : length, System.nanoTime() - start);
+            if (shorter) {
+                out[0] = DEFLATED;
+                return compressed + 1;
+            }
+        } else {
+            STATISTICS.stored(length);
+        }
+
+        out[0] = STORED;
+        System.arraycopy(data, offset, out, 1, length);
+        return length + 1;
+    }
+
+    /**
+     * @return the length of the message, -1 if it did not fit into {@code out}
+     */
+    private int inflate(byte[] plaintext, ByteBuffer out) throws BrokenMessageException {
+        long start = System.nanoTime();
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(plaintext, 1, plaintext.length - 1);
+        try {
+            int length = inflater.inflate(out.array(), 0, out.capacity());
+            if (!inflater.finished()) {
+                if (inflater.needsInput() || inflater.needsDictionary()) {
+                    throw new BrokenMessageException("Truncated compressed message");
+                }
+                return -1;
+            }
+            STATISTICS.inflated(System.nanoTime() - start);
+            return length;
+        } catch (DataFormatException e) {
+            throw new BrokenMessageException(e);
+        }
+    }
+
+    private byte[] remaining(ByteBuffer src) {
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        return data;
+    }
+
+    /**
+     * Counters of the compression stage: how much was saved and what it cost.
+     */
+    public static class Statistics {
+        private final AtomicLong stored = new AtomicLong();
+        private final AtomicLong deflated = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong deflateNanos = new AtomicLong();
+        private final AtomicLong inflated = new AtomicLong();
+        private final AtomicLong inflateNanos = new AtomicLong();
+
+        void stored(int length) {
+            this.stored.incrementAndGet();
+            this.bytesIn.addAndGet(length);
+            this.bytesOut.addAndGet(length);
+        }
+
+        void deflated(int length, int sent, long nanos) {
+            this.deflated.incrementAndGet();
+            this.bytesIn.addAndGet(length);
+            this.bytesOut.addAndGet(sent);
+            this.deflateNanos.addAndGet(nanos);
+        }
+
+        void inflated(long nanos) {
+            this.inflated.incrementAndGet();
+            this.inflateNanos.addAndGet(nanos);
+        }
+
+        /**
+         * @return the number of outgoing messages below the threshold
+         */
+        public long getStored() {
+            return this.stored.get();
+        }
+
+        /**
+         * @return the number of outgoing messages that were run through Deflate (sent compressed or not)
+         */
+        public long getDeflated() {
+            return this.deflated.get();
+        }
+
+        /**
+         * @return the number of incoming messages that were decompressed
+         */
+        public long getInflated() {
+            return this.inflated.get();
+        }
+
+        /**
+         * @return bytes sent divided by bytes of the messages, 1 if nothing was sent
+         */
+        public double getRatio() {
+            long in = this.bytesIn.get();
+            return in == 0 ? 1 : (double) this.bytesOut.get() / in;
+        }
+
+        /**
+         * @return the average time spent in Deflate per message run through it
+         */
+        public double getAverageDeflateMicros() {
+            long n = this.deflated.get();
+            return n == 0 ? 0 : this.deflateNanos.get() / 1000.0 / n;
+        }
+
+        /**
+         * @return the average time spent decompressing an incoming message
+         */
+        public double getAverageInflateMicros() {
+            long n = this.inflated.get();
+            return n == 0 ? 0 : this.inflateNanos.get() / 1000.0 / n;
+        }
+    }
+}
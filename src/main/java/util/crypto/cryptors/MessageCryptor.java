@@ -2,8 +2,13 @@ package util.crypto.cryptors;
 
 import util.crypto.BrokenMessageException;
 
+import java.nio.ByteBuffer;
+
 /**
- * Allows to encrypt/decrypt messages
+ * Allows to encrypt/decrypt messages.
+ * <p>
+ * The {@link String} methods work on Base64 encoded ciphertexts (for line based channels),
+ * the {@code byte[]} and {@link ByteBuffer} methods on the raw ciphertext.
  */
 public interface MessageCryptor {
 
@@ -22,4 +27,44 @@ public interface MessageCryptor {
      * @return the original message (plaintext)
      */
     String decrypt(String msg) throws BrokenMessageException;
+
+    /**
+     * Encrypts the given bytes.
+     *
+     * @param data the plaintext
+     * @return the raw ciphertext
+     */
+    byte[] encrypt(byte[] data) throws BrokenMessageException;
+
+    /**
+     * Decrypts the given bytes.
+     *
+     * @param data the raw ciphertext
+     * @return the plaintext
+     */
+    byte[] decrypt(byte[] data) throws BrokenMessageException;
+
+    /**
+     * Encrypts the remaining bytes of {@code src} into {@code dst}. Both buffers may be the same.
+     *
+     * @param src the plaintext, consumed completely
+     * @param dst the buffer receiving the raw ciphertext, needs {@link #getMaxOutputSize(int)} bytes remaining
+     * @return the number of bytes written to {@code dst}
+     */
+    int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException;
+
+    /**
+     * Decrypts the remaining bytes of {@code src} into {@code dst}. Both buffers may be the same.
+     *
+     * @param src the raw ciphertext, consumed completely
+     * @param dst the buffer receiving the plaintext, needs {@link #getMaxOutputSize(int)} bytes remaining
+     * @return the number of bytes written to {@code dst}
+     */
+    int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException;
+
+    /**
+     * @param inputLength the length of a plaintext or ciphertext
+     * @return the most bytes encrypting or decrypting it may produce
+     */
+    int getMaxOutputSize(int inputLength);
 }
@@ -2,76 +2,132 @@ package util.crypto.cryptors;
 
 import org.bouncycastle.util.encoders.Base64;
 import util.crypto.BrokenMessageException;
+import util.crypto.CipherPool;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAKey;
 import java.util.logging.Logger;
 
 /**
- * This class allows to encrypt a communication channel with AES.
+ * This class allows to encrypt a communication channel with RSA.
+ * <p>
+ * The ciphers come from a pool shared by all instances, so one cryptor can be used by several threads.
  */
 public class RSAMessageCryptor implements MessageCryptor {
     private static final String RSAMODE = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
 
     private static final Logger logger = Logger.getLogger("RSAMessageCryptor");
 
-    private final Cipher cipher;
-    private Key encryptionKey, decryptionKey;
+    // shared by all cryptors, so a handshake neither looks up a provider nor initializes a cipher
+    private static final CipherPool CIPHERS = new CipherPool(RSAMODE, 16, 4096);
 
-    public RSAMessageCryptor(Key encryptionKey, Key decryptionKey) {
-        try {
-            this.cipher = Cipher.getInstance(RSAMODE);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            logger.warning("Failed to initialize cipher!");
-            throw new AssertionError(e);
-        }
+    private volatile Key encryptionKey, decryptionKey;
 
+    public RSAMessageCryptor(Key encryptionKey, Key decryptionKey) {
         this.encryptionKey = encryptionKey;
         this.decryptionKey = decryptionKey;
     }
 
+    /**
+     * @return the ciphers used by all RSA cryptors
+     */
+    public static CipherPool getCipherPool() {
+        return CIPHERS;
+    }
+
     @Override
     public String encrypt(String msg) throws BrokenMessageException {
         logger.info("Trying to encrypt: " + msg);
-        try {
-            this.cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey);
-
-            byte[] encrypted = this.cipher.doFinal(msg.getBytes());
 
-            String encoded = new String(Base64.encode(encrypted));
+        String encoded = new String(Base64.encode(this.encrypt(msg.getBytes())));
 
-            logger.info("Encrypted to: " + encoded);
+        logger.info("Encrypted to: " + encoded);
 
-            return encoded;
-        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            throw new BrokenMessageException(e);
-        }
+        return encoded;
     }
 
     @Override
     public String decrypt(String msg) throws BrokenMessageException {
         logger.info("Trying to decrypt: " + msg);
-        try {
-            this.cipher.init(Cipher.DECRYPT_MODE, this.decryptionKey);
-            byte[] decoded = Base64.decode(msg);
 
-            //logger.info("Decrypting: " + new String(decoded));
+        String ret = new String(this.decrypt(Base64.decode(msg)));
+
+        logger.info("Decrypted to: " + ret);
 
-            byte[] decrypted = this.cipher.doFinal(decoded);
+        return ret;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws BrokenMessageException {
+        return doFinal(this.encryptionKey, Cipher.ENCRYPT_MODE, data);
+    }
 
-            String ret = new String(decrypted);
+    @Override
+    public byte[] decrypt(byte[] data) throws BrokenMessageException {
+        return doFinal(this.decryptionKey, Cipher.DECRYPT_MODE, data);
+    }
 
-            logger.info("Decrypted to: " + ret);
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        return doFinal(this.encryptionKey, Cipher.ENCRYPT_MODE, src, dst);
+    }
 
-            return ret;
-        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        return doFinal(this.decryptionKey, Cipher.DECRYPT_MODE, src, dst);
+    }
+
+    private static byte[] doFinal(Key key, int mode, byte[] data) throws BrokenMessageException {
+        Cipher cipher = acquire(key, mode);
+        byte[] result;
+        try {
+            result = cipher.doFinal(data);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new BrokenMessageException(e);
+        }
+        CIPHERS.release(key, mode, cipher);
+        return result;
+    }
+
+    private static int doFinal(Key key, int mode, ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        Cipher cipher = acquire(key, mode);
+        int result;
+        try {
+            result = cipher.doFinal(src, dst);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
             throw new BrokenMessageException(e);
         }
+        CIPHERS.release(key, mode, cipher);
+        return result;
+    }
+
+    private static Cipher acquire(Key key, int mode) throws BrokenMessageException {
+        if (key == null) {
+            throw new BrokenMessageException("No key set for " + (mode == Cipher.ENCRYPT_MODE ? "encryption" : "decryption"));
+        }
+        try {
+            return CIPHERS.acquire(key, mode);
+        } catch (InvalidKeyException e) {
+            throw new BrokenMessageException(e);
+        }
+    }
+
+    @Override
+    public int getMaxOutputSize(int inputLength) {
+        // a ciphertext is as long as the modulus, a plaintext is shorter than its ciphertext
+        int modulus = 0;
+        for (Key k : new Key[]{this.encryptionKey, this.decryptionKey}) {
+            if (k instanceof RSAKey) {
+                modulus = Math.max(modulus, (((RSAKey) k).getModulus().bitLength() + 7) / 8);
+            }
+        }
+        return Math.max(inputLength, modulus);
     }
 
     public void setEncryptionKey(Key encryptionKey) {
@@ -0,0 +1,95 @@
+package util.crypto.cryptors;
+
+import util.crypto.BrokenMessageException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decorates a {@link MessageCryptor} so that at most as many encryptions/decryptions run at the same time as the
+ * given {@link Semaphore} has permits. Useful to keep expensive cryptors (eg. RSA) from eating up all cores.
+ */
+public class ThrottledMessageCryptor implements MessageCryptor {
+
+    private final MessageCryptor cryptor;
+    private final Semaphore permits;
+
+    public ThrottledMessageCryptor(MessageCryptor cryptor, Semaphore permits) {
+        this.cryptor = cryptor;
+        this.permits = permits;
+    }
+
+    @Override
+    public String encrypt(String msg) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.encrypt(msg);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public String decrypt(String msg) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.decrypt(msg);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.encrypt(data);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.decrypt(data);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.encrypt(src, dst);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws BrokenMessageException {
+        this.acquire();
+        try {
+            return this.cryptor.decrypt(src, dst);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public int getMaxOutputSize(int inputLength) {
+        return this.cryptor.getMaxOutputSize(inputLength);
+    }
+
+    private void acquire() throws BrokenMessageException {
+        try {
+            this.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BrokenMessageException("Interrupted while waiting for the cryptor", e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import util.SecurityUtils;
+import util.crypto.CipherPool;
+
+import javax.crypto.Cipher;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+/**
+ * Times the RSA part of a login on the server: decrypting message 1 with the private key of the server and
+ * encrypting message 2 with the public key of the user. Once with ciphers created per operation, once with a
+ * {@link CipherPool} that sees more user keys than it keeps, so the user keys are evicted all the time while the
+ * prepared server key has to stay.
+ * <p>
+ * Usage: {@code java bench.CipherPoolBenchmark [logins] [users]}
+ */
+public class CipherPoolBenchmark {
+
+	private static final String RSAMODE = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
+
+	public static void main(String[] args) throws Exception {
+		int logins = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+		SecurityUtils.registerBouncyCastle();
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair server = generator.generateKeyPair();
+		generator.initialize(1024);
+		PublicKey[] userKeys = new PublicKey[users];
+		for (int i = 0; i < users; i++) {
+			userKeys[i] = generator.generateKeyPair().getPublic();
+		}
+
+		Cipher client = Cipher.getInstance(RSAMODE);
+		client.init(Cipher.ENCRYPT_MODE, server.getPublic());
+		byte[] message1 = client.doFinal(new byte[64]);
+		byte[] message2 = new byte[32];
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			long start = System.nanoTime();
+			for (int i = 0; i < logins; i++) {
+				Cipher decrypt = Cipher.getInstance(RSAMODE);
+				decrypt.init(Cipher.DECRYPT_MODE, server.getPrivate());
+				decrypt.doFinal(message1);
+				Cipher encrypt = Cipher.getInstance(RSAMODE);
+				encrypt.init(Cipher.ENCRYPT_MODE, userKeys[i % users]);
+				encrypt.doFinal(message2);
+			}
+			report(round, "created", logins, start, "");
+
+			CipherPool pool = new CipherPool(RSAMODE, 16, users / 4);
+			pool.prepare(server.getPrivate(), Cipher.DECRYPT_MODE, 4);
+			long serverMisses = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < logins; i++) {
+				long misses = pool.getMisses();
+				Cipher decrypt = pool.acquire(server.getPrivate(), Cipher.DECRYPT_MODE);
+				serverMisses += pool.getMisses() - misses;
+				decrypt.doFinal(message1);
+				pool.release(server.getPrivate(), Cipher.DECRYPT_MODE, decrypt);
+
+				Cipher encrypt = pool.acquire(userKeys[i % users], Cipher.ENCRYPT_MODE);
+				encrypt.doFinal(message2);
+				pool.release(userKeys[i % users], Cipher.ENCRYPT_MODE, encrypt);
+			}
+			report(round, "pooled", logins, start, String.format(", %d hits, %d misses (%d for the server key)",
+					pool.getHits(), pool.getMisses(), serverMisses));
+		}
+	}
+
+	private static void report(int round, String mode, int logins, long start, String details) {
+		if (round > 0) {
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%s: %.0f logins/s%s%n", mode, logins / seconds, details);
+		}
+	}
+}
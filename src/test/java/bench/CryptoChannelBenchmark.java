@@ -0,0 +1,203 @@
+package bench;
+
+import util.CommunicationChannel;
+import util.LineReader;
+import util.SimpleSocketCommunicationChannel;
+import util.crypto.BrokenMessageException;
+import util.crypto.CryptoChannel;
+import util.crypto.cryptors.AESMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how many messages per second go through a text framed {@link CryptoChannel} over a loopback socket: one
+ * thread writes lines to the stream of one channel, another one reads them from the stream of the other side.
+ * Compared with the previous channel, which wrote byte by byte into a {@link StringBuilder}, created a new
+ * {@link BufferedWriter} for every line and read through a {@link BufferedReader}.
+ * <p>
+ * Usage: {@code java bench.CryptoChannelBenchmark [messages] [message length]}
+ */
+public class CryptoChannelBenchmark {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+
+	private interface ChannelFactory {
+		CommunicationChannel create(CommunicationChannel parent, MessageCryptor cryptor) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		String message = "!show alice.vienna.at: " + new String(chars);
+
+		ChannelFactory previous = new ChannelFactory() {
+			@Override
+			public CommunicationChannel create(CommunicationChannel parent, MessageCryptor cryptor) {
+				return new PreviousCryptoChannel(parent, cryptor);
+			}
+		};
+		ChannelFactory current = new ChannelFactory() {
+			@Override
+			public CommunicationChannel create(CommunicationChannel parent, MessageCryptor cryptor) throws Exception {
+				return new CryptoChannel(parent, cryptor);
+			}
+		};
+
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm up
+			double previousRate = run(previous, message, messages);
+			double currentRate = run(current, message, messages);
+			if (round == 2) {
+				System.out.printf("previous: %.0f messages/s, current: %.0f messages/s%n", previousRate, currentRate);
+			}
+		}
+	}
+
+	/**
+	 * @return the messages per second
+	 */
+	private static double run(ChannelFactory factory, String message, final int messages) throws Exception {
+		try (ServerSocket server = new ServerSocket(0);
+			 Socket client = new Socket("localhost", server.getLocalPort());
+			 Socket accepted = server.accept()) {
+			final CommunicationChannel sender = factory.create(new SimpleSocketCommunicationChannel(client),
+					new AESMessageCryptor(IV, KEY, true));
+			CommunicationChannel receiver = factory.create(new SimpleSocketCommunicationChannel(accepted),
+					new AESMessageCryptor(IV, KEY, false));
+			final byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+			long start = System.nanoTime();
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						OutputStream out = sender.getOutputStream();
+						for (int i = 0; i < messages; i++) {
+							out.write(line);
+							out.flush();
+						}
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			writer.start();
+
+			InputStream in = receiver.getInputStream();
+			LineReader lines = receiver instanceof CryptoChannel ? new LineReader(in) : null;
+			for (int i = 0; i < messages; i++) {
+				if (!message.equals(lines != null ? lines.readLine() : readLine(in))) {
+					throw new IllegalStateException("Message " + i + " broken");
+				}
+			}
+			writer.join();
+			return messages / ((System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	/**
+	 * Reads a line byte by byte: a bulk read on the previous stream blocks until the whole array is filled.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int b; (b = in.read()) != '\n'; ) {
+			if (b < 0) {
+				return null;
+			}
+			line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * The channel before the streams became persistent, only the logging is left out.
+	 */
+	private static class PreviousCryptoChannel implements CommunicationChannel {
+		private final CommunicationChannel parent;
+		private final MessageCryptor cryptor;
+
+		PreviousCryptoChannel(CommunicationChannel parent, MessageCryptor cryptor) {
+			this.parent = parent;
+			this.cryptor = cryptor;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			final BufferedReader stream = new BufferedReader(new InputStreamReader(this.parent.getInputStream()));
+
+			return new InputStream() {
+				String outbuffer = "";
+				int pos = 0;
+
+				@Override
+				public int read() throws IOException {
+					if (outbuffer.isEmpty() || pos >= outbuffer.length()) {
+						try {
+							String line = stream.readLine();
+							if (line == null) {
+								return -1;
+							}
+							outbuffer = cryptor.decrypt(line) + "\n";
+							pos = 0;
+						} catch (BrokenMessageException e) {
+							return -1;
+						}
+					}
+					return outbuffer.charAt(pos++);
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return new OutputStream() {
+				StringBuilder sb = new StringBuilder();
+
+				@Override
+				public void write(int b) throws IOException {
+					if (b == '\n') {
+						try {
+							BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(parent.getOutputStream()));
+							bWriter.write(cryptor.encrypt(sb.toString()) + "\n");
+							bWriter.flush();
+							sb = new StringBuilder();
+						} catch (BrokenMessageException e) {
+							throw new IOException(e);
+						}
+					} else {
+						sb.append((char) b);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.parent.close();
+		}
+	}
+
+	static {
+		// the String methods log every message, which would be timed instead of the channel
+		Logger.getLogger("AESMessageCryptor").setLevel(Level.WARNING);
+		Arrays.fill(KEY, (byte) 1);
+		Arrays.fill(IV, (byte) 2);
+	}
+}
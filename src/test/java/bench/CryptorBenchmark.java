@@ -0,0 +1,97 @@
+package bench;
+
+import util.HMAC;
+import util.crypto.cryptors.AESGCMMessageCryptor;
+import util.crypto.cryptors.AESMessageCryptor;
+import util.crypto.cryptors.MessageCryptor;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
+/**
+ * Compares the session ciphers at 64 B, 1 KB and 64 KB messages: AES-CTR alone, AES-CTR with an HMAC-SHA256 over
+ * the ciphertext (what authenticating a CTR message costs, like the private messages do) and AES-GCM. Every message
+ * is encrypted by one side and decrypted (and checked) by the other.
+ * <p>
+ * Usage: {@code java bench.CryptorBenchmark [megabytes per size]}
+ */
+public class CryptorBenchmark {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+	private static final int[] SIZES = {64, 1024, 64 * 1024};
+
+	private interface Mode {
+		void roundTrip(byte[] message) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long bytes = (args.length > 0 ? Long.parseLong(args[0]) : 128) << 20;
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			for (int size : SIZES) {
+				byte[] message = new byte[size];
+				Arrays.fill(message, (byte) 'x');
+				int messages = (int) Math.max(1000, bytes / size);
+
+				double ctr = run(ctr(false), message, messages);
+				double ctrHmac = run(ctr(true), message, messages);
+				double gcm = run(gcm(), message, messages);
+				if (round > 0) {
+					System.out.printf("%6d B: ctr %.2f us (%.0f MB/s), ctr+hmac %.2f us (%.0f MB/s), gcm %.2f us (%.0f MB/s)%n",
+							size, ctr, size / ctr, ctrHmac, size / ctrHmac, gcm, size / gcm);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the microseconds per message
+	 */
+	private static double run(Mode mode, byte[] message, int messages) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			mode.roundTrip(message);
+		}
+		return (System.nanoTime() - start) / 1e3 / messages;
+	}
+
+	private static Mode ctr(boolean authenticated) throws Exception {
+		final MessageCryptor sender = new AESMessageCryptor(IV, KEY, true);
+		final MessageCryptor receiver = new AESMessageCryptor(IV, KEY, false);
+		final HMAC hmac = authenticated ? new HMAC(new SecretKeySpec(KEY, HMAC.ALGORITHM)) : null;
+		return new Mode() {
+			@Override
+			public void roundTrip(byte[] message) throws Exception {
+				byte[] ciphertext = sender.encrypt(message);
+				if (hmac != null && !hmac.verify(ciphertext, hmac.compute(ciphertext))) {
+					throw new IllegalStateException("HMAC broken");
+				}
+				check(receiver.decrypt(ciphertext), message);
+			}
+		};
+	}
+
+	private static Mode gcm() throws Exception {
+		final MessageCryptor sender = new AESGCMMessageCryptor(IV, KEY, true);
+		final MessageCryptor receiver = new AESGCMMessageCryptor(IV, KEY, false);
+		return new Mode() {
+			@Override
+			public void roundTrip(byte[] message) throws Exception {
+				check(receiver.decrypt(sender.encrypt(message)), message);
+			}
+		};
+	}
+
+	private static void check(byte[] plaintext, byte[] message) {
+		if (plaintext.length != message.length) {
+			throw new IllegalStateException("Message broken");
+		}
+	}
+
+	static {
+		Arrays.fill(KEY, (byte) 1);
+		Arrays.fill(IV, (byte) 2);
+	}
+}
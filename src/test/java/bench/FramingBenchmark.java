@@ -0,0 +1,98 @@
+package bench;
+
+import util.CommunicationChannel;
+import util.LineReader;
+import util.crypto.CryptoChannel;
+import util.crypto.Framing;
+import util.crypto.cryptors.AESMessageCryptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compares the two {@link Framing}s of a {@link CryptoChannel}: bytes on the wire per message, and the time to send a
+ * message and read it on the other side. The channel runs in memory, so only framing and encryption are timed.
+ * <p>
+ * Usage: {@code java bench.FramingBenchmark [messages] [message length]}
+ */
+public class FramingBenchmark {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		String message = "!show alice.vienna.at: " + new String(chars);
+
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm up
+			for (Framing framing : Framing.values()) {
+				long[] result = run(framing, message, messages);
+				if (round == 2) {
+					System.out.printf("%s: %.1f bytes/message, %.2f us/message%n", framing,
+							result[0] / (double) messages, result[1] / 1e3 / messages);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes on the wire and the nanoseconds spent
+	 */
+	private static long[] run(Framing framing, String message, int messages) throws Exception {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+
+		CryptoChannel sender = new CryptoChannel(new Channel(new byte[0], wire), new AESMessageCryptor(IV, KEY, true), framing);
+		for (int i = 0; i < messages; i++) {
+			sender.send(message);
+		}
+
+		byte[] bytes = wire.toByteArray();
+		CryptoChannel receiver = new CryptoChannel(new Channel(bytes, null), new AESMessageCryptor(IV, KEY, false), framing);
+		LineReader lines = new LineReader(receiver.getInputStream());
+		for (int i = 0; i < messages; i++) {
+			if (!message.equals(lines.readLine())) {
+				throw new IllegalStateException("Message " + i + " broken");
+			}
+		}
+
+		return new long[]{bytes.length, System.nanoTime() - start};
+	}
+
+	private static class Channel implements CommunicationChannel {
+		private final InputStream in;
+		private final OutputStream out;
+
+		Channel(byte[] in, OutputStream out) {
+			this.in = new ByteArrayInputStream(in);
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return this.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static {
+		Arrays.fill(KEY, (byte) 1);
+		Arrays.fill(IV, (byte) 2);
+	}
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import chatserver.TicketIssuer;
+import util.SecurityUtils;
+import util.crypto.EcHandshake;
+import util.crypto.EllipticCurves;
+import util.crypto.KeyDerivation;
+import util.crypto.Resumption;
+
+import javax.crypto.Cipher;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+
+/**
+ * Times the cryptographic work of the chatserver per handshake on one thread, as in a reconnect storm where every
+ * client comes back at once: the full RSA handshake (decrypt message 1, encrypt message 2, hand out a ticket) against
+ * resuming with a ticket (open the ticket, derive the keys and the proof, hand out a new ticket) and the
+ * {@link EcHandshake} (ephemeral key pair, ECDH, sign message 2, verify message 3). The RSA keys have the size of those
+ * in {@code keys/}, the ciphers are reused like those of the {@link util.crypto.CipherPool}.
+ * <p>
+ * Usage: {@code java bench.HandshakeBenchmark [handshakes]}
+ */
+public class HandshakeBenchmark {
+
+	private static final String RSAMODE = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
+
+	private interface Handshake {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+		SecurityUtils.registerBouncyCastle();
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(4096);
+		KeyPair server = generator.generateKeyPair();
+		KeyPair user = generator.generateKeyPair();
+		final SecureRandom random = new SecureRandom();
+		final TicketIssuer tickets = new TicketIssuer(null, 3600 * 1000);
+
+		Cipher client = Cipher.getInstance(RSAMODE);
+		client.init(Cipher.ENCRYPT_MODE, server.getPublic());
+		// message 1 carries the user name and the challenge of the client, message 2 both challenges, key and IV
+		final byte[] message1 = client.doFinal(new byte[80]);
+		final byte[] message2 = new byte[200];
+		final Cipher decrypt = Cipher.getInstance(RSAMODE);
+		decrypt.init(Cipher.DECRYPT_MODE, server.getPrivate());
+		final Cipher encrypt = Cipher.getInstance(RSAMODE);
+		encrypt.init(Cipher.ENCRYPT_MODE, user.getPublic());
+
+		final byte[] secret = new byte[32];
+		random.nextBytes(secret);
+		final byte[] ticket = tickets.issue("alice.vienna.at", secret);
+
+		Handshake rsa = new Handshake() {
+			@Override
+			public void run() throws Exception {
+				decrypt.doFinal(message1);
+				byte[] challenge = new byte[32];
+				random.nextBytes(challenge);
+				encrypt.doFinal(message2);
+				tickets.issue("alice.vienna.at", Resumption.deriveSecret(challenge, "c2VydmVy"));
+			}
+		};
+		Handshake resume = new Handshake() {
+			@Override
+			public void run() {
+				TicketIssuer.Ticket opened = tickets.open(ticket);
+				byte[] challenge = new byte[32];
+				random.nextBytes(challenge);
+				byte[] key = KeyDerivation.deriveKey(opened.getSecret(), "Y2xpZW50", "c2VydmVy");
+				KeyDerivation.deriveIv(opened.getSecret(), "Y2xpZW50", "c2VydmVy");
+				Resumption.proof(opened.getSecret(), "Y2xpZW50", "c2VydmVy", "");
+				tickets.issue(opened.getUsername(), Resumption.deriveSecret(key, "c2VydmVy"));
+			}
+		};
+
+		final KeyPair serverEc = EllipticCurves.generateKeyPair(random);
+		final KeyPair userEc = EllipticCurves.generateKeyPair(random);
+		final String clientEphemeral = EllipticCurves.encode(EllipticCurves.generateKeyPair(random).getPublic());
+		final String transcript = EcHandshake.transcript("alice.vienna.at", clientEphemeral, "c2VydmVy", "");
+		final byte[] clientSignature = EllipticCurves.sign(userEc.getPrivate(), EcHandshake.signedByClient(transcript));
+
+		Handshake ec = new Handshake() {
+			@Override
+			public void run() throws Exception {
+				KeyPair ephemeral = EllipticCurves.generateKeyPair(random);
+				String serverEphemeral = EllipticCurves.encode(ephemeral.getPublic());
+				byte[] shared = EllipticCurves.agree(ephemeral.getPrivate(), EllipticCurves.decode(clientEphemeral));
+				KeyDerivation.deriveKey(shared, clientEphemeral, serverEphemeral);
+				KeyDerivation.deriveIv(shared, clientEphemeral, serverEphemeral);
+				EllipticCurves.sign(serverEc.getPrivate(), EcHandshake.signedByServer(transcript));
+				if (!EllipticCurves.verify(userEc.getPublic(), EcHandshake.signedByClient(transcript), clientSignature)) {
+					throw new IllegalStateException("Signature of the client broken");
+				}
+			}
+		};
+
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			double rsaRate = run(rsa, handshakes);
+			double resumeRate = run(resume, handshakes * 100);
+			double ecRate = run(ec, handshakes * 4);
+			if (round > 0) {
+				System.out.printf("rsa: %.0f handshakes/s, resume: %.0f handshakes/s, ec: %.0f handshakes/s%n",
+						rsaRate, resumeRate, ecRate);
+			}
+		}
+	}
+
+	/**
+	 * @return the handshakes per second
+	 */
+	private static double run(Handshake handshake, int handshakes) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < handshakes; i++) {
+			handshake.run();
+		}
+		return handshakes / ((System.nanoTime() - start) / 1e9);
+	}
+}
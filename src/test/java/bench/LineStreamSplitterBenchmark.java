@@ -0,0 +1,142 @@
+package bench;
+
+import util.LineReader;
+import util.LineStreamSplitter;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times sorting the lines a busy client receives into the queues of a {@link LineStreamSplitter}: one thread stores
+ * {@code !show} lines, another one reads them. Compared with the previous splitter, which sorted the prefixes for
+ * every line under a global lock and woke the readers with {@code wait}/{@code notify}.
+ * <p>
+ * Usage: {@code java bench.LineStreamSplitterBenchmark [lines]}
+ */
+public class LineStreamSplitterBenchmark {
+
+	// the prefixes a client registers
+	private static final String[] PREFIXES = {"!show", "!sendResponse", "!logoutResponse", "!lookupResponse",
+			"!registerResponse", "!loginResponse", "!ack", "@"};
+
+	private interface Splitter {
+		void storeLine(String line);
+
+		String readLine(String prefix);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		for (int round = 0; round < 3; round++) {
+			// the first rounds warm up
+			final LineStreamSplitter current = new LineStreamSplitter(new LineReader(new ByteArrayInputStream(new byte[0])));
+			final PreviousSplitter previous = new PreviousSplitter();
+			for (String prefix : PREFIXES) {
+				current.ensureQueue(prefix);
+				previous.registerPrefix(prefix);
+			}
+
+			double previousNanos = run(lines, previous);
+			double currentNanos = run(lines, new Splitter() {
+				@Override
+				public void storeLine(String line) {
+					current.storeLine(line);
+				}
+
+				@Override
+				public String readLine(String prefix) {
+					return current.readLine(prefix);
+				}
+			});
+			if (round == 2) {
+				System.out.printf("previous: %.0f ns/line, trie: %.0f ns/line%n", previousNanos, currentNanos);
+			}
+		}
+	}
+
+	/**
+	 * @return the nanoseconds per line
+	 */
+	private static double run(final int lines, final Splitter splitter) throws InterruptedException {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < lines; i++) {
+					splitter.readLine("!show");
+				}
+			}
+		});
+		reader.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < lines; i++) {
+			splitter.storeLine("!show alice.vienna.at: hello number " + (i & 1023));
+		}
+		reader.join();
+		return (System.nanoTime() - start) / (double) lines;
+	}
+
+	/**
+	 * How lines were sorted before the trie: the prefixes are sorted by length for every line under one lock.
+	 */
+	private static class PreviousSplitter implements Splitter {
+		private final ConcurrentHashMap<String, Queue<String>> storage = new ConcurrentHashMap<>();
+
+		PreviousSplitter() {
+			this.registerPrefix("");
+		}
+
+		void registerPrefix(String prefix) {
+			synchronized (this.storage) {
+				this.storage.put(prefix, new LinkedList<String>());
+			}
+		}
+
+		@Override
+		public void storeLine(String line) {
+			synchronized (this.storage) {
+				List<String> keys = new ArrayList<>(this.storage.keySet());
+				Collections.sort(keys, new Comparator<String>() {
+					@Override
+					public int compare(String o1, String o2) {
+						return o2.length() - o1.length();
+					}
+				});
+
+				for (String prefix : keys) {
+					if (line.startsWith(prefix)) {
+						Queue<String> lines = this.storage.get(prefix);
+						synchronized (lines) {
+							lines.add(line);
+							lines.notify();
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public String readLine(String prefix) {
+			Queue<String> lines = this.storage.get(prefix);
+			synchronized (lines) {
+				while (lines.isEmpty()) {
+					try {
+						lines.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+				return lines.poll().substring(prefix.length());
+			}
+		}
+	}
+}
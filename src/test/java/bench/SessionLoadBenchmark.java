@@ -0,0 +1,138 @@
+package bench;
+
+import chatserver.AsynchronousTCPServer;
+import chatserver.ClientHandlerFactory;
+import chatserver.NioCommunicationChannel;
+import chatserver.SessionHandler;
+import util.LineReader;
+import util.SimpleSocketCommunicationChannel;
+import util.crypto.CryptoChannel;
+import util.crypto.Framing;
+import util.crypto.cryptors.AESGCMMessageCryptor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Holds many idle sessions on the blocking engine and measures how fast they are served, once with platform threads
+ * and once with virtual threads. Every session reads and writes through a {@link CryptoChannel}, like a chatserver
+ * session after the handshake.
+ * <p>
+ * Usage: {@code java bench.SessionLoadBenchmark <platform|virtual> [sessions] [rounds] [port]}, virtual threads need
+ * Java 21. Every session needs two file descriptors.
+ */
+public class SessionLoadBenchmark {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "platform";
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 11090;
+
+		AsynchronousTCPServer server = new AsynchronousTCPServer(port,
+				AsynchronousTCPServer.createSessionExecutor(mode, 0, 0), new EchoFactory());
+		server.setDaemon(true);
+		server.start();
+
+		long start = System.nanoTime();
+		final List<CryptoChannel> clients = new ArrayList<>(sessions);
+		final List<LineReader> readers = new ArrayList<>(sessions);
+		for (int i = 0; i < sessions; i++) {
+			CryptoChannel channel = new CryptoChannel(new SimpleSocketCommunicationChannel(new Socket("localhost", port)),
+					new AESGCMMessageCryptor(IV, KEY, false), Framing.BINARY);
+			clients.add(channel);
+			readers.add(new LineReader(channel.getInputStream()));
+		}
+		// every session answers once, so all of them are running
+		roundTrip(clients, readers, 0, sessions, "hello");
+		double connectMillis = (System.nanoTime() - start) / 1e6;
+
+		ExecutorService drivers = Executors.newFixedThreadPool(8);
+		int slice = (sessions + 7) / 8;
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			List<Future<?>> done = new ArrayList<>();
+			for (int d = 0; d < 8; d++) {
+				final int from = d * slice, to = Math.min(sessions, from + slice);
+				done.add(drivers.submit(new java.util.concurrent.Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						roundTrip(clients, readers, from, to, "message");
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : done) {
+				f.get();
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		drivers.shutdown();
+
+		Runtime rt = Runtime.getRuntime();
+		System.out.printf("%s: %d sessions opened in %.0f ms, %.0f round trips/s, peak threads %d, heap %d MB%n",
+				mode, sessions, connectMillis, sessions * (double) rounds / seconds,
+				ManagementFactory.getThreadMXBean().getPeakThreadCount(), (rt.totalMemory() - rt.freeMemory()) >> 20);
+
+		// ends the sessions as well
+		System.exit(0);
+	}
+
+	/**
+	 * Sends a line on every session of the range, then reads all answers.
+	 */
+	private static void roundTrip(List<CryptoChannel> clients, List<LineReader> readers, int from, int to, String line) throws IOException {
+		for (int i = from; i < to; i++) {
+			clients.get(i).send(line);
+		}
+		for (int i = from; i < to; i++) {
+			if (!line.equals(readers.get(i).readLine())) {
+				throw new IOException("Session " + i + " did not answer");
+			}
+		}
+	}
+
+	/**
+	 * Sessions that send every line back.
+	 */
+	private static class EchoFactory implements ClientHandlerFactory {
+		@Override
+		public Runnable createClientHandler(final Socket client) throws IOException {
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						CryptoChannel channel = new CryptoChannel(new SimpleSocketCommunicationChannel(client),
+								new AESGCMMessageCryptor(IV, KEY, true), Framing.BINARY);
+						LineReader lines = new LineReader(channel.getInputStream());
+						for (String line; (line = lines.readLine()) != null; ) {
+							channel.send(line);
+						}
+					} catch (Exception e) {
+						// client gone
+					}
+				}
+			};
+		}
+
+		@Override
+		public SessionHandler createSessionHandler(NioCommunicationChannel channel) {
+			throw new UnsupportedOperationException("Blocking engine only");
+		}
+	}
+
+	static {
+		Arrays.fill(KEY, (byte) 1);
+		Arrays.fill(IV, (byte) 2);
+	}
+}
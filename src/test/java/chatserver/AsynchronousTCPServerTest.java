@@ -0,0 +1,75 @@
+package chatserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the session executors created by {@link AsynchronousTCPServer#createSessionExecutor(String, int, int)}.
+ */
+public class AsynchronousTCPServerTest {
+
+	@Test
+	public void limitedExecutorQueuesThenRejects() throws Exception {
+		ExecutorService pool = AsynchronousTCPServer.createSessionExecutor("platform", 2, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			assertTrue(pool instanceof ThreadPoolExecutor);
+			for (int i = 0; i < 3; i++) {
+				pool.execute(block(release));
+			}
+			assertEquals(1, ((ThreadPoolExecutor) pool).getQueue().size());
+			try {
+				pool.execute(block(release));
+				fail("Fourth session accepted");
+			} catch (RejectedExecutionException e) {
+				// expected, the server refuses the connection
+			}
+		} finally {
+			release.countDown();
+			pool.shutdown();
+		}
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void everyModeRunsSessions() throws Exception {
+		for (String mode : new String[]{"platform", "virtual"}) {
+			for (int max : new int[]{0, 4}) {
+				ExecutorService pool = AsynchronousTCPServer.createSessionExecutor(mode, max, 0);
+				final CountDownLatch done = new CountDownLatch(4);
+				for (int i = 0; i < 4; i++) {
+					pool.execute(new Runnable() {
+						@Override
+						public void run() {
+							done.countDown();
+						}
+					});
+				}
+				assertTrue(mode + " " + max, done.await(5, TimeUnit.SECONDS));
+				pool.shutdown();
+			}
+		}
+	}
+
+	private static Runnable block(final CountDownLatch release) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,158 @@
+package chatserver;
+
+import chatserver.Chatserver.Marker;
+import nameserver.INameserverForChatserver;
+import org.junit.After;
+import org.junit.Test;
+import util.CommunicationChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link ChatserverClientHandler} answers commands that carry a request ID.
+ */
+public class ChatserverClientHandlerTest {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final UserData user = new UserData("alice", "12345", null);
+	private final ExecutorService requests = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		this.requests.shutdownNow();
+	}
+
+	@Test
+	public void untaggedResponseHasNoId() throws Exception {
+		handler(null, null).handleLine("!send hello");
+		assertEquals(Marker.MARKER_SEND_RESPONSE + "Sent successfully\n", this.out.toString());
+	}
+
+	@Test
+	public void responseStartsWithId() throws Exception {
+		handler(null, null).handleLine("@17 !send hello");
+		assertEquals("@17 " + Marker.MARKER_SEND_RESPONSE + "Sent successfully\n", this.out.toString());
+	}
+
+	@Test
+	public void unknownCommandIsAnsweredWithError() throws Exception {
+		handler(null, null).handleLine("@3 !dance");
+		assertTrue(this.out.toString(), this.out.toString().startsWith("@3 " + Marker.MARKER_ERROR + " "));
+		assertEquals(1, lines());
+	}
+
+	@Test
+	public void idWithoutCommandIsAnswered() throws Exception {
+		handler(null, null).handleLine("@4");
+		assertEquals("@4 " + Marker.MARKER_ERROR + " No response\n", this.out.toString());
+	}
+
+	@Test
+	public void failingCommandIsAnsweredWithItsMessage() throws Exception {
+		this.user.setOnlineStatus(true);
+		handler(new Nameserver(null) {
+			@Override
+			public String lookup(String username) {
+				throw new IllegalStateException("nameserver gone");
+			}
+		}, null).handleLine("@5 !lookup bill");
+		assertEquals("@5 " + Marker.MARKER_ERROR + " nameserver gone\n", this.out.toString());
+	}
+
+	@Test
+	public void taggedRequestsRunConcurrently() throws Exception {
+		this.user.setOnlineStatus(true);
+		CountDownLatch release = new CountDownLatch(1);
+		ChatserverClientHandler handler = handler(new Nameserver(release), this.requests);
+
+		handler.handleLine("@1 !lookup bill");
+		handler.handleLine("@2 !send hello");
+		awaitLines(1);
+		assertEquals("@2 " + Marker.MARKER_SEND_RESPONSE + "Sent successfully\n", this.out.toString());
+
+		release.countDown();
+		awaitLines(2);
+		assertTrue(this.out.toString(), this.out.toString().endsWith("@1 " + Marker.MARKER_LOOKUP_RESPONSE + "10.0.0.1:1234\n"));
+	}
+
+	private ChatserverClientHandler handler(INameserverForChatserver nameserver, ExecutorService requests) throws Exception {
+		return new ChatserverClientHandler("", new Channel(this.out), this.user, new UserRegistry(),
+				new BroadcastEngine(new UserRegistry(), 4, 1), nameserver, requests);
+	}
+
+	private int lines() {
+		String s = this.out.toString();
+		return s.length() - s.replace("\n", "").length();
+	}
+
+	private void awaitLines(int count) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (lines() < count && System.nanoTime() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, lines());
+	}
+
+	/**
+	 * Knows every user, answers a lookup once it is released.
+	 */
+	private static class Nameserver implements INameserverForChatserver {
+		private final CountDownLatch release;
+
+		Nameserver(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public void registerUser(String username, String address) {
+		}
+
+		@Override
+		public INameserverForChatserver getNameserver(String zone) {
+			return this;
+		}
+
+		@Override
+		public String lookup(String username) throws RemoteException {
+			try {
+				this.release.await();
+			} catch (InterruptedException e) {
+				throw new RemoteException("Interrupted", e);
+			}
+			return "10.0.0.1:1234";
+		}
+	}
+
+	private static class Channel implements CommunicationChannel {
+		private final OutputStream out;
+
+		Channel(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package chatserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link HandshakeStage} counts handshakes that time out.
+ */
+public class HandshakeStageTest {
+
+	private final HandshakeStage stage = new HandshakeStage(1, 4, 1, 100);
+
+	@After
+	public void tearDown() {
+		this.stage.shutdown();
+	}
+
+	@Test
+	public void slowBlockingHandshakeCountsOnce() throws Exception {
+		CountDownLatch aborted = new CountDownLatch(1);
+		this.stage.scheduleTimeout(abort(aborted, true));
+
+		try {
+			this.stage.execute(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					Thread.sleep(5000);
+					return null;
+				}
+			});
+			fail("Slow handshake finished");
+		} catch (TerminateSessionException e) {
+			// expected
+		}
+
+		assertTrue(aborted.await(5, TimeUnit.SECONDS));
+		// the stage counts once the action returned
+		for (int i = 0; i < 50 && this.stage.getTimedOut() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, this.stage.getTimedOut());
+	}
+
+	@Test
+	public void loggedInSessionIsNotCounted() throws Exception {
+		CountDownLatch aborted = new CountDownLatch(1);
+		this.stage.scheduleTimeout(abort(aborted, false));
+
+		assertTrue(aborted.await(5, TimeUnit.SECONDS));
+		assertEquals(0, this.stage.getTimedOut());
+	}
+
+	@Test
+	public void cancelledTimeoutIsNotCounted() throws Exception {
+		CountDownLatch aborted = new CountDownLatch(1);
+		this.stage.scheduleTimeout(abort(aborted, true)).cancel(false);
+
+		assertFalse(aborted.await(300, TimeUnit.MILLISECONDS));
+		assertEquals(0, this.stage.getTimedOut());
+	}
+
+	/**
+	 * @param closed what the action tells the stage: whether there was a handshake to abort
+	 */
+	private static Callable<Boolean> abort(final CountDownLatch aborted, final boolean closed) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				aborted.countDown();
+				return closed;
+			}
+		};
+	}
+}
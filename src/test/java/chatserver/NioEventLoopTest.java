@@ -0,0 +1,126 @@
+package chatserver;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that one broken session cannot take the other sessions of its {@link NioEventLoop} down.
+ */
+public class NioEventLoopTest {
+
+	private ServerSocketChannel server;
+	private NioEventLoop loop;
+	private final List<Socket> clients = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = ServerSocketChannel.open();
+		this.server.socket().bind(new InetSocketAddress("localhost", 0));
+		this.loop = new NioEventLoop("NioEventLoopTest");
+		this.loop.setDaemon(true);
+		this.loop.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.loop.shutdown();
+		for (Socket client : this.clients) {
+			client.close();
+		}
+		this.server.close();
+	}
+
+	@Test
+	public void malformedLineOnlyEndsItsSession() throws Exception {
+		Socket good = this.connect();
+		Socket bad = this.connect();
+
+		send(bad, "abc");
+		assertNull(reader(bad).readLine());
+
+		send(good, "aGVsbG8=");
+		assertEquals("hello", reader(good).readLine());
+	}
+
+	@Test
+	public void clientGoneBeforeRegistration() throws Exception {
+		SocketChannel gone = this.accept(new Socket("localhost", this.server.socket().getLocalPort()));
+		gone.close();
+		this.register(gone);
+
+		Socket good = this.connect();
+		send(good, "aGVsbG8=");
+		assertEquals("hello", reader(good).readLine());
+	}
+
+	private Socket connect() throws IOException {
+		Socket client = new Socket("localhost", this.server.socket().getLocalPort());
+		this.register(this.accept(client));
+		return client;
+	}
+
+	private SocketChannel accept(Socket client) throws IOException {
+		this.clients.add(client);
+		SocketChannel accepted = this.server.accept();
+		accepted.configureBlocking(false);
+		return accepted;
+	}
+
+	/**
+	 * Registers a session that answers every line with its Base64 decoding, like a session decrypting commands.
+	 */
+	private void register(SocketChannel socket) {
+		final NioCommunicationChannel channel = new NioCommunicationChannel(socket, this.loop);
+		channel.setHandler(new SessionHandler() {
+			@Override
+			public void lineReceived(String line) {
+				try {
+					// throws unchecked exceptions for lines that are no Base64
+					byte[] decoded = Base64.decode(line);
+					OutputStream out = channel.getOutputStream();
+					out.write((new String(decoded, StandardCharsets.UTF_8) + "\n").getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+
+			@Override
+			public void recordReceived(byte[] record) {
+			}
+
+			@Override
+			public void connectionClosed() {
+			}
+		});
+		this.loop.register(channel);
+	}
+
+	private static void send(Socket client, String line) throws IOException {
+		OutputStream out = client.getOutputStream();
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private static BufferedReader reader(Socket client) throws IOException {
+		client.setSoTimeout(5000);
+		return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+	}
+}
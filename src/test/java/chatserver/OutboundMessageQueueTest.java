@@ -0,0 +1,84 @@
+package chatserver;
+
+import org.junit.Test;
+import util.CommunicationChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the delivery statistics of {@link OutboundMessageQueue}.
+ */
+public class OutboundMessageQueueTest {
+
+	// drains the queue on the offering thread
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	@Test
+	public void countsDeliveredLines() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutboundMessageQueue queue = new OutboundMessageQueue(user(), new Channel(out), DIRECT, 4);
+
+		assertTrue(queue.offer("hello"));
+		assertTrue(queue.offer("world"));
+
+		assertEquals("hello\nworld\n", out.toString());
+		assertEquals(2, queue.getDelivered());
+		assertEquals(0, queue.getFailed());
+	}
+
+	@Test
+	public void failedWritesAreNotDelivered() {
+		OutboundMessageQueue queue = new OutboundMessageQueue(user(), new Channel(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		}), DIRECT, 4);
+
+		assertTrue(queue.offer("hello"));
+
+		assertEquals(0, queue.getDelivered());
+		assertEquals(1, queue.getFailed());
+		assertEquals(0, queue.getAverageLatencyMillis(), 0);
+		assertEquals(0, queue.getMaxLatencyMillis(), 0);
+	}
+
+	private static UserData user() {
+		return new UserData("alice", "12345", null);
+	}
+
+	private static class Channel implements CommunicationChannel {
+		private final OutputStream out;
+
+		Channel(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.out;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package chatserver;
+
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Issues and opens resumption tickets with {@link TicketIssuer}.
+ */
+public class TicketIssuerTest {
+
+	private static final byte[] SECRET = new byte[32];
+	private static final long HOUR = 3600 * 1000;
+
+	static {
+		Arrays.fill(SECRET, (byte) 9);
+	}
+
+	@Test
+	public void openIssuedTicket() {
+		TicketIssuer issuer = new TicketIssuer(null, HOUR);
+		TicketIssuer.Ticket ticket = issuer.open(issuer.issue("alice.vienna.at", SECRET));
+
+		assertNotNull(ticket);
+		assertEquals("alice.vienna.at", ticket.getUsername());
+		assertArrayEquals(SECRET, ticket.getSecret());
+		assertEquals(1, issuer.getIssued());
+		assertEquals(1, issuer.getAccepted());
+		assertEquals(0, issuer.getRejected());
+	}
+
+	@Test
+	public void ticketsDoNotRepeat() {
+		TicketIssuer issuer = new TicketIssuer(null, HOUR);
+		assertFalse(Arrays.equals(issuer.issue("alice.vienna.at", SECRET), issuer.issue("alice.vienna.at", SECRET)));
+	}
+
+	@Test
+	public void sameTicketKeyOpensTicketsOfAnotherIssuer() {
+		Key key = key(1);
+		byte[] ticket = new TicketIssuer(key, HOUR).issue("bill.de", SECRET);
+
+		assertEquals("bill.de", new TicketIssuer(key, HOUR).open(ticket).getUsername());
+		assertNull(new TicketIssuer(key(2), HOUR).open(ticket));
+		assertNull(new TicketIssuer(null, HOUR).open(ticket));
+	}
+
+	@Test
+	public void expiredTicketIsRejected() {
+		TicketIssuer issuer = new TicketIssuer(null, -1);
+		assertNull(issuer.open(issuer.issue("alice.vienna.at", SECRET)));
+		assertEquals(1, issuer.getRejected());
+	}
+
+	@Test
+	public void modifiedTicketIsRejected() {
+		TicketIssuer issuer = new TicketIssuer(null, HOUR);
+		byte[] ticket = issuer.issue("alice.vienna.at", SECRET);
+		ticket[ticket.length / 2] ^= 1;
+
+		assertNull(issuer.open(ticket));
+		assertNull(issuer.open(Arrays.copyOf(ticket, 20)));
+		assertNull(issuer.open(new byte[0]));
+		assertEquals(3, issuer.getRejected());
+		assertEquals(0, issuer.getAccepted());
+	}
+
+	private static Key key(int seed) {
+		byte[] material = new byte[32];
+		Arrays.fill(material, (byte) seed);
+		return new SecretKeySpec(material, "HmacSHA256");
+	}
+}
@@ -0,0 +1,62 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks parsing and negotiation of the {@link HandshakeFeatures}.
+ */
+public class HandshakeFeaturesTest {
+
+	@Test
+	public void parseNothing() {
+		assertTrue(HandshakeFeatures.parse(null).isEmpty());
+		assertTrue(HandshakeFeatures.parse("").isEmpty());
+		assertTrue(HandshakeFeatures.parse("  ").isEmpty());
+		assertTrue(HandshakeFeatures.parse(",,").isEmpty());
+	}
+
+	@Test
+	public void parseKeepsOrderAndTrims() {
+		assertEquals(Arrays.asList("gcm", "binary", "resume"),
+				Arrays.asList(HandshakeFeatures.parse(" gcm, binary,,resume ,gcm").toArray()));
+	}
+
+	@Test
+	public void formatIsParsedBack() {
+		Set<String> features = set("binary", "gcm", "pipeline");
+		assertEquals("binary,gcm,pipeline", HandshakeFeatures.format(features));
+		assertEquals(features, HandshakeFeatures.parse(HandshakeFeatures.format(features)));
+		assertEquals("", HandshakeFeatures.format(Collections.<String>emptySet()));
+	}
+
+	@Test
+	public void negotiateKeepsClientOrder() {
+		Set<String> accepted = HandshakeFeatures.negotiate(set("resume", "binary", "gcm"), set("gcm", "binary", "ec"));
+		assertEquals(Arrays.asList("binary", "gcm"), Arrays.asList(accepted.toArray()));
+	}
+
+	@Test
+	public void groupNeedsBinary() {
+		assertEquals(set("gcm"), HandshakeFeatures.negotiate(set("group", "gcm"), set("group", "gcm")));
+		assertEquals(set("gcm"), HandshakeFeatures.negotiate(set("group", "binary", "gcm"), set("group", "gcm")));
+		assertEquals(set("binary", "group"), HandshakeFeatures.negotiate(set("binary", "group"), set("group", "binary")));
+	}
+
+	@Test
+	public void nothingOfferedNothingAccepted() {
+		assertTrue(HandshakeFeatures.negotiate(Collections.<String>emptySet(), set("binary", "gcm")).isEmpty());
+		assertTrue(HandshakeFeatures.negotiate(set("binary", "gcm"), Collections.<String>emptySet()).isEmpty());
+	}
+
+	private static Set<String> set(String... features) {
+		return new LinkedHashSet<>(Arrays.asList(features));
+	}
+}
@@ -0,0 +1,141 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link LineReader} on streams that can be marked (read ahead and rewound) and on streams that cannot (read
+ * ahead into the buffer of the reader).
+ */
+public class LineReaderTest {
+
+	private static final String UNICODE = "gr\u00fc\u00dfe \u20ac \ud83d\ude00";
+
+	@Test
+	public void markedReadsLines() throws IOException {
+		assertLines(new LineReader(marked("one\ntwo\n\nlast")), "one", "two", "", "last");
+	}
+
+	@Test
+	public void bufferedReadsLines() throws IOException {
+		assertLines(new LineReader(trickle("one\ntwo\n\nlast", 3)), "one", "two", "", "last");
+	}
+
+	@Test
+	public void zeroByteEndsLine() throws IOException {
+		assertLines(new LineReader(marked("one\0two")), "one", "two");
+		assertLines(new LineReader(trickle("one\0two", 2)), "one", "two");
+	}
+
+	@Test
+	public void markedLeavesTheRestToOthers() throws IOException {
+		InputStream in = marked("first\nsecond\n");
+		assertEquals("first", new LineReader(in).readLine());
+		assertEquals('s', in.read());
+		assertEquals("econd", new LineReader(in).readLine());
+	}
+
+	@Test
+	public void markedWithShortReads() throws IOException {
+		InputStream in = new BufferedInputStream(trickle("first\n" + UNICODE + "\nthird", 1));
+		assertLines(new LineReader(in), "first", UNICODE, "third");
+	}
+
+	@Test
+	public void bufferedDecodesCharactersSplitAcrossReads() throws IOException {
+		for (int chunk = 1; chunk <= 4; chunk++) {
+			assertLines(new LineReader(trickle(UNICODE + "\n" + UNICODE, chunk)), UNICODE, UNICODE);
+		}
+	}
+
+	@Test
+	public void replacesMalformedInput() throws IOException {
+		byte[] bytes = {'a', (byte) 0xc3, '\n'};
+		assertEquals("a\ufffd", new LineReader(new ByteArrayInputStream(bytes)).readLine());
+	}
+
+	@Test
+	public void acceptsLinesOfMaximumLength() throws IOException {
+		String line = repeat('x', 1000);
+		assertLines(new LineReader(marked(line + "\n" + line), 1000), line, line);
+		assertLines(new LineReader(trickle(line + "\n" + line, 7), 1000), line, line);
+	}
+
+	@Test
+	public void markedRejectsLongerLines() throws IOException {
+		assertTooLong(new LineReader(marked(repeat('x', 1001) + "\n"), 1000));
+	}
+
+	@Test
+	public void bufferedRejectsLongerLines() throws IOException {
+		assertTooLong(new LineReader(trickle(repeat('x', 1001) + "\n", 7), 1000));
+		// without a line break as well
+		assertTooLong(new LineReader(trickle(repeat('x', 5000), 64), 1000));
+	}
+
+	@Test
+	public void defaultTakesLinesOfLargestMessage() throws IOException {
+		String line = repeat('x', LineReader.DEFAULT_MAX_LINE_LENGTH);
+		assertEquals(line, new LineReader(trickle(line + "\n", 8192)).readLine());
+	}
+
+	private static void assertLines(LineReader reader, String... lines) throws IOException {
+		for (String line : lines) {
+			assertEquals(line, reader.readLine());
+		}
+		assertNull(reader.readLine());
+	}
+
+	private static void assertTooLong(LineReader reader) throws IOException {
+		try {
+			reader.readLine();
+			fail("Line should be too long");
+		} catch (LineReader.LineTooLongException e) {
+			assertFalse(e.getMessage().isEmpty());
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static InputStream marked(String s) {
+		return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return a stream that cannot be marked and returns at most {@code chunk} bytes per read
+	 */
+	private static InputStream trickle(String s, final int chunk) {
+		final ByteArrayInputStream in = new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+		return new InputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				return in.read(b, off, Math.min(len, chunk));
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,131 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link LineStreamSplitter} sorts lines into the queues of their prefixes.
+ */
+public class LineStreamSplitterTest {
+
+	@Test
+	public void linesGoToTheirPrefix() {
+		LineStreamSplitter splitter = splitter("");
+		splitter.registerPrefix("!show");
+		splitter.registerPrefix("!ack");
+
+		splitter.storeLine("!show hello");
+		splitter.storeLine("!ack 1");
+		splitter.storeLine("something else");
+
+		assertEquals(" hello", splitter.readLine("!show"));
+		assertEquals("!ack 1", splitter.readLine("!ack", false));
+		assertEquals("something else", splitter.readLine());
+	}
+
+	@Test
+	public void longestPrefixWins() {
+		LineStreamSplitter splitter = splitter("");
+		splitter.registerPrefix("!show");
+		splitter.registerPrefix("!s");
+
+		splitter.storeLine("!showing");
+		splitter.storeLine("!send");
+		splitter.storeLine("!sho");
+
+		assertEquals("ing", splitter.readLine("!show"));
+		assertEquals("end", splitter.readLine("!s"));
+		assertEquals("ho", splitter.readLine("!s"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPrefixOfRegisteredPrefix() {
+		LineStreamSplitter splitter = splitter("");
+		splitter.registerPrefix("!s");
+		splitter.registerPrefix("!show");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void readingUnknownPrefixFails() {
+		splitter("").readLine("!unknown");
+	}
+
+	@Test
+	public void ensureQueueRegistersOnce() {
+		LineStreamSplitter splitter = splitter("");
+		splitter.ensureQueue("!show");
+		splitter.ensureQueue("!show");
+		assertEquals(1, splitter.getPrefixes().size());
+	}
+
+	@Test
+	public void pollWaitsAtMostTheTimeout() throws InterruptedException {
+		LineStreamSplitter splitter = splitter("");
+		splitter.registerPrefix("!show");
+
+		assertNull(splitter.poll("!show", 0, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		assertNull(splitter.poll("!show", 50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		splitter.storeLine("!show hi");
+		assertEquals(" hi", splitter.poll("!show", 1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void readsTheStreamAndEnds() {
+		LineStreamSplitter splitter = splitter("!show one\nplain\n!show two\n");
+		splitter.registerPrefix("!show");
+		assertFalse(splitter.isStopped());
+
+		splitter.run();
+
+		assertTrue(splitter.isStopped());
+		assertEquals(" one", splitter.readLine("!show"));
+		assertEquals(" two", splitter.readLine("!show"));
+		assertNull(splitter.readLine("!show"));
+		// every reader of the queue learns about the end
+		assertNull(splitter.readLine("!show"));
+		assertEquals("plain", splitter.readLine());
+		assertNull(splitter.readLine());
+	}
+
+	@Test
+	public void prefixRegisteredAfterTheEndIsEmpty() throws InterruptedException {
+		LineStreamSplitter splitter = splitter("");
+		splitter.run();
+		splitter.registerPrefix("!late");
+		assertNull(splitter.readLine("!late"));
+		assertNull(splitter.poll("!late", 1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void readerWaitsForLine() throws InterruptedException {
+		final LineStreamSplitter splitter = splitter("");
+		splitter.registerPrefix("!show");
+		final String[] read = new String[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read[0] = splitter.readLine("!show");
+			}
+		});
+		reader.start();
+
+		splitter.storeLine("!show late");
+		reader.join(5000);
+		assertEquals(" late", read[0]);
+	}
+
+	private static LineStreamSplitter splitter(String input) {
+		return new LineStreamSplitter(new LineReader(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))));
+	}
+}
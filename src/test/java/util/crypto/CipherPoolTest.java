@@ -0,0 +1,89 @@
+package util.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks which ciphers {@link CipherPool} keeps.
+ */
+public class CipherPoolTest {
+
+	private static final String AES = "AES/ECB/PKCS5Padding";
+
+	@Test
+	public void reusesReleasedCipher() throws Exception {
+		CipherPool pool = new CipherPool(AES, 4, 4);
+		Key key = key(1);
+		Cipher cipher = pool.acquire(key, Cipher.ENCRYPT_MODE);
+		pool.release(key, Cipher.ENCRYPT_MODE, cipher);
+
+		assertSame(cipher, pool.acquire(key, Cipher.ENCRYPT_MODE));
+		assertNotSame(cipher, pool.acquire(key, Cipher.ENCRYPT_MODE));
+		assertEquals(1, pool.getHits());
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	public void keepsModesApart() throws Exception {
+		CipherPool pool = new CipherPool(AES, 4, 4);
+		Key key = key(1);
+		pool.release(key, Cipher.ENCRYPT_MODE, pool.acquire(key, Cipher.ENCRYPT_MODE));
+
+		pool.acquire(key, Cipher.DECRYPT_MODE);
+		assertEquals(0, pool.getHits());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedKey() throws Exception {
+		CipherPool pool = new CipherPool(AES, 4, 2);
+		Cipher first = cycle(pool, key(1));
+		Cipher second = cycle(pool, key(2));
+		// the first key is used again, so the second is the oldest
+		cycle(pool, key(1));
+		cycle(pool, key(3));
+
+		assertEquals(2, pool.getKeys());
+		assertSame(first, pool.acquire(key(1), Cipher.ENCRYPT_MODE));
+		assertNotSame(second, pool.acquire(key(2), Cipher.ENCRYPT_MODE));
+	}
+
+	@Test
+	public void preparedKeyIsNeverEvicted() throws Exception {
+		CipherPool pool = new CipherPool(AES, 4, 2);
+		Key server = key(0);
+		pool.prepare(server, Cipher.DECRYPT_MODE, 2);
+
+		for (int i = 1; i <= 100; i++) {
+			cycle(pool, key(i));
+		}
+
+		long hits = pool.getHits();
+		pool.acquire(server, Cipher.DECRYPT_MODE);
+		pool.acquire(server, Cipher.DECRYPT_MODE);
+		assertEquals(hits + 2, pool.getHits());
+		assertEquals(3, pool.getKeys());
+	}
+
+	/**
+	 * Acquires and releases a cipher for encryption.
+	 */
+	private static Cipher cycle(CipherPool pool, Key key) throws Exception {
+		Cipher cipher = pool.acquire(key, Cipher.ENCRYPT_MODE);
+		pool.release(key, Cipher.ENCRYPT_MODE, cipher);
+		return cipher;
+	}
+
+	private static Key key(int id) {
+		byte[] bytes = new byte[16];
+		bytes[0] = (byte) id;
+		bytes[1] = (byte) (id >> 8);
+		return new SecretKeySpec(bytes, "AES");
+	}
+}
@@ -0,0 +1,172 @@
+package util.crypto;
+
+import org.junit.Assume;
+import org.junit.Test;
+import util.CommunicationChannel;
+import util.LineReader;
+import util.crypto.cryptors.AESMessageCryptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends messages through one {@link CryptoChannel} and reads them from another one, in both framings.
+ */
+public class CryptoChannelTest {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+	private static final String UNICODE = "gr\u00fc\u00dfe \u20ac \ud83d\ude00";
+
+	static {
+		Arrays.fill(KEY, (byte) 7);
+		Arrays.fill(IV, (byte) 3);
+	}
+
+	@Test
+	public void textRoundTrip() throws Exception {
+		assertRoundTrip(Framing.TEXT);
+	}
+
+	@Test
+	public void binaryRoundTrip() throws Exception {
+		assertRoundTrip(Framing.BINARY);
+		assertRoundTrip(Framing.BINARY, UNICODE);
+	}
+
+	@Test
+	public void textRoundTripNonAscii() throws Exception {
+		// text framing encodes the plaintext with the default charset, only UTF-8 keeps every byte
+		Assume.assumeTrue(StandardCharsets.UTF_8.equals(Charset.defaultCharset()));
+		assertRoundTrip(Framing.TEXT, UNICODE);
+	}
+
+	@Test
+	public void textIsOneBase64LinePerMessage() throws Exception {
+		byte[] wire = send(Framing.TEXT, "hello", "world");
+		String[] lines = new String(wire, StandardCharsets.US_ASCII).split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].matches("[A-Za-z0-9+/=]+"));
+	}
+
+	@Test
+	public void binaryIsLengthAndCiphertext() throws Exception {
+		byte[] wire = send(Framing.BINARY, "hello");
+		ByteBuffer record = ByteBuffer.wrap(wire);
+		assertEquals(wire.length - 4, record.getInt());
+		// AES-CTR does not grow the message
+		assertEquals(5, wire.length - 4);
+	}
+
+	@Test
+	public void binaryNeedsFewerBytes() throws Exception {
+		String[] messages = new String[100];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = "!show alice.vienna.at: message number " + i;
+		}
+		int text = send(Framing.TEXT, messages).length;
+		int binary = send(Framing.BINARY, messages).length;
+		assertTrue(text + " / " + binary, binary * 5 < text * 4);
+	}
+
+	@Test
+	public void brokenRecordEndsTheStream() throws Exception {
+		ByteBuffer wire = ByteBuffer.allocate(8);
+		wire.putInt(Framing.MAX_RECORD_LENGTH + 1).putInt(0);
+		CryptoChannel receiver = new CryptoChannel(new Channel(wire.array(), null),
+				new AESMessageCryptor(IV, KEY, false), Framing.BINARY);
+		assertNull(new LineReader(receiver.getInputStream()).readLine());
+	}
+
+	@Test(expected = BrokenMessageException.class)
+	public void lineThatIsNoBase64() throws Exception {
+		CryptoChannel.decryptLine(new AESMessageCryptor(IV, KEY, false), "abc");
+	}
+
+	@Test(expected = BrokenMessageException.class)
+	public void lineWithNonAsciiCharacters() throws Exception {
+		CryptoChannel.decryptLine(new AESMessageCryptor(IV, KEY, false), "\u00e9==");
+	}
+
+	private static void assertRoundTrip(Framing framing) throws Exception {
+		assertRoundTrip(framing, "hello", "", "!msg bob.vienna.at hi", repeat(70000));
+	}
+
+	private static void assertRoundTrip(Framing framing, String... messages) throws Exception {
+		byte[] wire = send(framing, messages);
+
+		CryptoChannel receiver = new CryptoChannel(new Channel(wire, null), new AESMessageCryptor(IV, KEY, false), framing);
+		LineReader lines = new LineReader(receiver.getInputStream());
+		for (String m : messages) {
+			if (framing == Framing.TEXT && m.isEmpty()) {
+				// an empty message is an empty Base64 line, which text framing never decoded
+				continue;
+			}
+			assertEquals(m, lines.readLine());
+		}
+		assertNull(lines.readLine());
+	}
+
+	/**
+	 * Writes every message once through the stream and once with {@link CryptoChannel#send(String)}.
+	 *
+	 * @return the bytes on the wire
+	 */
+	private static byte[] send(Framing framing, String... messages) throws Exception {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		CryptoChannel sender = new CryptoChannel(new Channel(new byte[0], wire), new AESMessageCryptor(IV, KEY, true), framing);
+		OutputStream out = sender.getOutputStream();
+		for (int i = 0; i < messages.length; i++) {
+			if (framing == Framing.TEXT && messages[i].isEmpty()) {
+				continue;
+			}
+			if (i % 2 == 0) {
+				out.write((messages[i] + "\n").getBytes(StandardCharsets.UTF_8));
+			} else {
+				sender.send(messages[i]);
+			}
+		}
+		return wire.toByteArray();
+	}
+
+	private static String repeat(int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+
+	private static class Channel implements CommunicationChannel {
+		private final InputStream in;
+		private final OutputStream out;
+
+		Channel(byte[] in, OutputStream out) {
+			this.in = new ByteArrayInputStream(in);
+			this.out = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return this.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return this.out;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package util.crypto;
+
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the P-256 operations of {@link EllipticCurves} as used by the {@link EcHandshake}.
+ */
+public class EllipticCurvesTest {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	@Test
+	public void bothSidesAgreeOnTheSecret() throws Exception {
+		KeyPair client = EllipticCurves.generateKeyPair(RANDOM);
+		KeyPair server = EllipticCurves.generateKeyPair(RANDOM);
+
+		byte[] secret = EllipticCurves.agree(client.getPrivate(), EllipticCurves.decode(EllipticCurves.encode(server.getPublic())));
+		assertEquals(32, secret.length);
+		assertArrayEquals(secret, EllipticCurves.agree(server.getPrivate(), EllipticCurves.decode(EllipticCurves.encode(client.getPublic()))));
+	}
+
+	@Test
+	public void signedTranscript() throws Exception {
+		KeyPair server = EllipticCurves.generateKeyPair(RANDOM);
+		String transcript = EcHandshake.transcript("alice.vienna.at", "Y2xpZW50", "c2VydmVy", "binary");
+		byte[] signature = EllipticCurves.sign(server.getPrivate(), EcHandshake.signedByServer(transcript));
+
+		assertTrue(EllipticCurves.verify(server.getPublic(), EcHandshake.signedByServer(transcript), signature));
+		// a signature of the chatserver cannot be replayed as that of the client
+		assertFalse(EllipticCurves.verify(server.getPublic(), EcHandshake.signedByClient(transcript), signature));
+		assertFalse(EllipticCurves.verify(server.getPublic(), EcHandshake.signedByServer(
+				EcHandshake.transcript("alice.vienna.at", "Y2xpZW50", "c2VydmVy", "")), signature));
+		assertFalse(EllipticCurves.verify(EllipticCurves.generateKeyPair(RANDOM).getPublic(),
+				EcHandshake.signedByServer(transcript), signature));
+		assertFalse(EllipticCurves.verify(server.getPublic(), EcHandshake.signedByServer(transcript), new byte[8]));
+	}
+
+	@Test
+	public void recognizesHello() {
+		assertTrue(EcHandshake.isHello("!ec-hello alice.vienna.at Y2xpZW50"));
+		assertFalse(EcHandshake.isHello("!ec-hello"));
+		assertFalse(EcHandshake.isHello("!authenticate alice.vienna.at Y2hhbGxlbmdl"));
+	}
+
+	@Test(expected = InvalidKeyException.class)
+	public void decodeRejectsGarbage() throws Exception {
+		EllipticCurves.decode("bm8ga2V5");
+	}
+
+	@Test(expected = InvalidKeyException.class)
+	public void decodeRejectsOtherCurves() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec("secp384r1"));
+		EllipticCurves.decode(EllipticCurves.encode(generator.generateKeyPair().getPublic()));
+	}
+
+	@Test
+	public void translatedKeysStillMatch() throws Exception {
+		KeyPair pair = EllipticCurves.generateKeyPair(RANDOM);
+		byte[] signature = EllipticCurves.sign(EllipticCurves.translate(pair.getPrivate()), "data");
+		assertTrue(EllipticCurves.verify(EllipticCurves.translate(pair.getPublic()), "data", signature));
+	}
+}
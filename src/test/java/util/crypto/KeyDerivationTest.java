@@ -0,0 +1,60 @@
+package util.crypto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the session keys derived by {@link KeyDerivation}.
+ */
+public class KeyDerivationTest {
+
+	private static final byte[] SECRET = new byte[32];
+
+	static {
+		Arrays.fill(SECRET, (byte) 4);
+	}
+
+	@Test
+	public void keyAndIvLength() {
+		assertEquals(32, KeyDerivation.deriveKey(SECRET, "a", "b").length);
+		assertEquals(16, KeyDerivation.deriveIv(SECRET, "a", "b").length);
+	}
+
+	@Test
+	public void bothSidesDeriveTheSame() {
+		assertArrayEquals(KeyDerivation.deriveKey(SECRET, "a", "b"), KeyDerivation.deriveKey(SECRET.clone(), "a", "b"));
+		assertArrayEquals(KeyDerivation.deriveIv(SECRET, "a", "b"), KeyDerivation.deriveIv(SECRET.clone(), "a", "b"));
+	}
+
+	@Test
+	public void everyInputCounts() {
+		byte[] key = KeyDerivation.deriveKey(SECRET, "a", "b");
+		byte[] other = SECRET.clone();
+		other[0]++;
+
+		assertFalse(Arrays.equals(key, KeyDerivation.deriveKey(other, "a", "b")));
+		assertFalse(Arrays.equals(key, KeyDerivation.deriveKey(SECRET, "b", "a")));
+		assertFalse(Arrays.equals(key, KeyDerivation.deriveKey(SECRET, "a", "c")));
+		assertFalse(Arrays.equals(Arrays.copyOf(key, 16), KeyDerivation.deriveIv(SECRET, "a", "b")));
+	}
+
+	@Test
+	public void knownHmac() {
+		// RFC 4231, test case 2
+		byte[] mac = KeyDerivation.hmac("Jefe".getBytes(), "what do ya want for nothing?");
+		assertEquals("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843", hex(mac));
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte b : bytes) {
+			builder.append(String.format("%02x", b));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,63 @@
+package util.crypto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the messages and secrets of {@link Resumption}.
+ */
+public class ResumptionTest {
+
+	private static final byte[] SESSION_KEY = new byte[32];
+
+	static {
+		Arrays.fill(SESSION_KEY, (byte) 5);
+	}
+
+	@Test
+	public void recognizesResumeRequest() {
+		assertTrue(Resumption.isResume("!resume dGlja2V0 Y2hhbGxlbmdl"));
+		assertFalse(Resumption.isResume("!resume"));
+		assertFalse(Resumption.isResume("!resumed Y2hhbGxlbmdl cHJvb2Y="));
+		assertFalse(Resumption.isResume("!authenticate alice.vienna.at Y2hhbGxlbmdl"));
+	}
+
+	@Test
+	public void secretDependsOnSession() {
+		byte[] secret = Resumption.deriveSecret(SESSION_KEY, "c2VydmVy");
+
+		assertEquals(32, secret.length);
+		assertArrayEquals(secret, Resumption.deriveSecret(SESSION_KEY, "c2VydmVy"));
+		assertFalse(Arrays.equals(secret, Resumption.deriveSecret(SESSION_KEY, "b3RoZXI=")));
+		assertFalse(Arrays.equals(secret, SESSION_KEY));
+	}
+
+	@Test
+	public void proofCoversChallengesAndFeatures() {
+		byte[] secret = Resumption.deriveSecret(SESSION_KEY, "c2VydmVy");
+		byte[] proof = Resumption.proof(secret, "Y2xpZW50", "c2VydmVy", "binary");
+
+		assertArrayEquals(proof, Resumption.proof(secret, "Y2xpZW50", "c2VydmVy", "binary"));
+		assertFalse(Arrays.equals(proof, Resumption.proof(secret, "Y2xpZW50", "c2VydmVy", "")));
+		assertFalse(Arrays.equals(proof, Resumption.proof(secret, "b3RoZXI=", "c2VydmVy", "binary")));
+		assertFalse(Arrays.equals(proof, Resumption.proof(secret, "Y2xpZW50", "b3RoZXI=", "binary")));
+		assertFalse(Arrays.equals(proof, Resumption.proof(SESSION_KEY, "Y2xpZW50", "c2VydmVy", "binary")));
+	}
+
+	@Test
+	public void sessionKeysDifferPerResumption() {
+		byte[] secret = Resumption.deriveSecret(SESSION_KEY, "c2VydmVy");
+		byte[] key = KeyDerivation.deriveKey(secret, "Y2xpZW50", "c2VydmVy");
+
+		assertEquals(32, key.length);
+		assertEquals(16, KeyDerivation.deriveIv(secret, "Y2xpZW50", "c2VydmVy").length);
+		assertFalse(Arrays.equals(key, KeyDerivation.deriveKey(secret, "Y2xpZW50", "bmV3")));
+		assertFalse(Arrays.equals(key, secret));
+	}
+}
@@ -0,0 +1,121 @@
+package util.crypto.cryptors;
+
+import org.junit.Before;
+import org.junit.Test;
+import util.crypto.BrokenMessageException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the nonces of {@link AESGCMMessageCryptor} let only authentic messages through, each once and in order.
+ */
+public class AESGCMMessageCryptorTest {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+
+	static {
+		for (int i = 0; i < KEY.length; i++) {
+			KEY[i] = (byte) i;
+		}
+		Arrays.fill(IV, (byte) 0x5a);
+	}
+
+	private AESGCMMessageCryptor server;
+	private AESGCMMessageCryptor client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new AESGCMMessageCryptor(IV, KEY, true);
+		client = new AESGCMMessageCryptor(IV, KEY, false);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			byte[] message = ("message " + i).getBytes(StandardCharsets.UTF_8);
+			assertArrayEquals(message, client.decrypt(server.encrypt(message)));
+			assertArrayEquals(message, server.decrypt(client.encrypt(message)));
+		}
+	}
+
+	@Test
+	public void rejectsTamperedMessage() throws Exception {
+		byte[] record = server.encrypt(bytes("hello"));
+		byte[] ciphertext = record.clone();
+		ciphertext[AESGCMMessageCryptor.NONCE_LENGTH] ^= 1;
+		assertBroken(client, ciphertext);
+
+		byte[] nonce = record.clone();
+		nonce[AESGCMMessageCryptor.NONCE_LENGTH - 1] ^= 1;
+		assertBroken(client, nonce);
+	}
+
+	@Test
+	public void tamperedMessageDoesNotMoveTheCounter() throws Exception {
+		byte[] record = server.encrypt(bytes("hello"));
+		byte[] tampered = record.clone();
+		tampered[tampered.length - 1] ^= 1;
+		assertBroken(client, tampered);
+		assertArrayEquals(bytes("hello"), client.decrypt(record));
+	}
+
+	@Test
+	public void rejectsReplay() throws Exception {
+		byte[] record = server.encrypt(bytes("hello"));
+		assertArrayEquals(bytes("hello"), client.decrypt(record));
+		assertBroken(client, record);
+	}
+
+	@Test
+	public void rejectsReorderedMessages() throws Exception {
+		byte[] first = server.encrypt(bytes("first"));
+		byte[] second = server.encrypt(bytes("second"));
+		assertBroken(client, second);
+		assertArrayEquals(bytes("first"), client.decrypt(first));
+		assertArrayEquals(bytes("second"), client.decrypt(second));
+		assertBroken(client, first);
+	}
+
+	@Test
+	public void rejectsOwnMessages() throws Exception {
+		assertBroken(server, server.encrypt(bytes("echo")));
+	}
+
+	@Test
+	public void windowAcceptsLateMessagesOnce() throws Exception {
+		AESGCMMessageCryptor member = new AESGCMMessageCryptor(IV, KEY, false, true);
+		byte[][] records = new byte[AESGCMMessageCryptor.WINDOW + 2][];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = server.encrypt(bytes("record " + i));
+		}
+
+		// a gap, then the missing one arrives late
+		assertArrayEquals(bytes("record 2"), member.decrypt(records[2]));
+		assertArrayEquals(bytes("record 1"), member.decrypt(records[1]));
+		assertBroken(member, records[1]);
+		assertBroken(member, records[2]);
+
+		// far behind the newest record
+		assertArrayEquals(bytes("record " + (records.length - 1)), member.decrypt(records[records.length - 1]));
+		assertBroken(member, records[0]);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void assertBroken(MessageCryptor cryptor, byte[] record) {
+		try {
+			byte[] message = cryptor.decrypt(record);
+			fail("Decrypted a message that should be rejected: " + new String(message, StandardCharsets.UTF_8));
+		} catch (BrokenMessageException e) {
+			assertEquals(BrokenMessageException.class, e.getClass());
+		}
+	}
+}
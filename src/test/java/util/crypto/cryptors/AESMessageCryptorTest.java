@@ -0,0 +1,83 @@
+package util.crypto.cryptors;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that {@link AESMessageCryptor} never XORs two messages with the same keystream.
+ */
+public class AESMessageCryptorTest {
+
+	private static final byte[] KEY = new byte[32];
+	private static final byte[] IV = new byte[16];
+
+	static {
+		Arrays.fill(KEY, (byte) 7);
+		Arrays.fill(IV, (byte) 0x5a);
+	}
+
+	@Test
+	public void roundTripAcrossThePreparedKeystream() throws Exception {
+		AESMessageCryptor server = new AESMessageCryptor(IV, KEY, true, 64);
+		AESMessageCryptor client = new AESMessageCryptor(IV, KEY, false, 64);
+		Random random = new Random(1);
+		// shorter and longer than what is prepared
+		for (int length : new int[]{1, 10, 31, 64, 100, 5, 1000, 0, 17}) {
+			byte[] message = new byte[length];
+			random.nextBytes(message);
+			assertArrayEquals(message, client.decrypt(server.encrypt(message)));
+			assertArrayEquals(message, server.decrypt(client.encrypt(message)));
+		}
+	}
+
+	@Test
+	public void messagesDoNotShareKeystream() throws Exception {
+		AESMessageCryptor server = new AESMessageCryptor(IV, KEY, true);
+		byte[] zeros = new byte[32];
+		byte[] first = server.encrypt(zeros);
+		byte[] second = server.encrypt(zeros);
+		assertFalse(Arrays.equals(first, second));
+	}
+
+	@Test
+	public void directionsDoNotShareKeystream() throws Exception {
+		byte[] zeros = new byte[32];
+		byte[] fromServer = new AESMessageCryptor(IV, KEY, true).encrypt(zeros);
+		byte[] fromClient = new AESMessageCryptor(IV, KEY, false).encrypt(zeros);
+		assertFalse(Arrays.equals(fromServer, fromClient));
+	}
+
+	@Test
+	public void preparedKeystreamMatchesTheCipher() throws Exception {
+		AESMessageCryptor prepared = new AESMessageCryptor(IV, KEY, true, 48);
+		AESMessageCryptor unprepared = new AESMessageCryptor(IV, KEY, true, 0);
+		for (int length : new int[]{20, 20, 20, 200, 3}) {
+			byte[] message = new byte[length];
+			Arrays.fill(message, (byte) length);
+			assertArrayEquals(unprepared.encrypt(message), prepared.encrypt(message));
+		}
+	}
+
+	@Test
+	public void byteBuffersInPlace() throws Exception {
+		AESMessageCryptor server = new AESMessageCryptor(IV, KEY, true, 16);
+		AESMessageCryptor client = new AESMessageCryptor(IV, KEY, false, 16);
+		byte[] message = "a message longer than the prepared keystream".getBytes("UTF-8");
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
+		buffer.put(message).flip();
+		assertEquals(message.length, server.encrypt(buffer, buffer));
+		buffer.flip();
+
+		byte[] ciphertext = new byte[message.length];
+		buffer.get(ciphertext);
+		assertArrayEquals(message, client.decrypt(ciphertext));
+	}
+}